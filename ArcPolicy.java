@@ -0,0 +1,116 @@
+// --------------------------------ArcPolicy.java-------------------------------
+/*
+ * PURPOSE OF FILE
+ * This is ARC, the adaptive replacement cache (Megiddo and Modha), as a
+ * CachePolicy. The cached blocks are split in two LRU lists: T1 holds blocks
+ * used once recently, T2 blocks used at least twice. Each has a ghost list,
+ * B1 and B2, of the block ids it evicted lately. Together the four lists
+ * remember up to twice as many blocks as the cache holds.
+ *
+ * The target size p of T1 adapts on its own. A miss on a block in B1 means
+ * T1 was too small, so p grows; a miss on a block in B2 means T2 was too
+ * small, so p shrinks. The victim comes from T1 while T1 is over p, and
+ * from T2 otherwise. A scan only fills T1, and T2 keeps the blocks that
+ * were used again.
+ */
+
+import java.util.*;
+
+public class ArcPolicy implements CachePolicy {
+    private LinkedHashSet t1 = new LinkedHashSet( ); //Pages, LRU first
+    private LinkedHashSet t2 = new LinkedHashSet( ); //Pages, LRU first
+    private LinkedHashSet b1 = new LinkedHashSet( ); //Block ids, LRU first
+    private LinkedHashSet b2 = new LinkedHashSet( ); //Block ids, LRU first
+    private int[] blockOf;                           //Block in each page
+    private int capacity;                            //Pages
+    private int p = 0;                               //Target size of T1
+
+    public ArcPolicy( int pages ) {
+        blockOf = new int[pages];
+        capacity = pages;
+    }
+
+    public String getName( ) {
+        return "arc";
+    }
+
+    public void hit( int page ) {
+        Integer key = Integer.valueOf( page );
+        if ( !t1.remove( key ) ) {
+            t2.remove( key );
+        }
+        t2.add( key );
+    }
+
+    // -------------------------------------------------------------------------
+    // miss( int blockId, int freePage )
+    /*
+     * SUMMARY
+     * This function is cases II to IV of the paper's ARC(c). A ghost hit
+     * adapts p and brings the block straight into T2. A new block goes into
+     * T1, after trimming the ghost lists so that the directory stays within
+     * twice the cache. With all the pages in use, replace( ) frees one.
+     */
+    public int miss( int blockId, int freePage ) {
+        Integer id = Integer.valueOf( blockId );
+        boolean inB2 = b2.contains( id );
+        LinkedHashSet target = t2;
+        if ( b1.contains( id ) ) {
+            p = Math.min( capacity,
+                          p + Math.max( b2.size( ) / b1.size( ), 1 ) );
+            b1.remove( id );
+        } else if ( inB2 ) {
+            p = Math.max( 0, p - Math.max( b1.size( ) / b2.size( ), 1 ) );
+            b2.remove( id );
+        } else {
+            target = t1;
+            if ( t1.size( ) + b1.size( ) >= capacity ) {
+                if ( t1.size( ) < capacity ) {
+                    removeFirst( b1 );
+                } else if ( freePage < 0 ) {
+                    freePage = removeFirst( t1 );    //Not remembered
+                }
+            } else if ( t1.size( ) + t2.size( ) + b1.size( ) + b2.size( )
+                        >= 2 * capacity ) {
+                removeFirst( b2 );
+            }
+        }
+        int page = ( freePage >= 0 ) ? freePage : replace( inB2 );
+        target.add( Integer.valueOf( page ) );
+        blockOf[page] = blockId;
+        return page;
+    }
+
+    public void removed( int page ) {
+        Integer key = Integer.valueOf( page );
+        if ( !t1.remove( key ) ) {
+            t2.remove( key );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // replace( boolean inB2 )
+    /*
+     * SUMMARY
+     * This function evicts the LRU page of T1 into B1 if T1 is over its
+     * target, or the LRU page of T2 into B2, and returns the page.
+     */
+    private int replace( boolean inB2 ) {
+        boolean overTarget = t1.size( ) > p || ( inB2 && t1.size( ) == p );
+        if ( !t1.isEmpty( ) && ( overTarget || t2.isEmpty( ) ) ) {
+            int page = removeFirst( t1 );
+            b1.add( Integer.valueOf( blockOf[page] ) );
+            return page;
+        }
+        int page = removeFirst( t2 );
+        b2.add( Integer.valueOf( blockOf[page] ) );
+        return page;
+    }
+
+    private static int removeFirst( LinkedHashSet set ) {
+        Iterator first = set.iterator( );
+        int value = ( ( Integer )first.next( ) ).intValue( );
+        first.remove( );
+        return value;
+    }
+}
@@ -0,0 +1,66 @@
+// --------------------------------BlockCache.java------------------------------
+/*
+ * PURPOSE OF FILE
+ * This interface is the disk cache as Kernel sees it, behind SysLib.cread( ),
+ * cwrite( ), creadv( ), cwritev( ), csync( ) and flush( ). Kernel's BOOT case
+ * picks the implementation with -Dthreados.cache.shards:
+ *   0        Cache            one lock around the whole cache (the default)
+ *   N > 0    ConcurrentCache  N shards, each with its own lock, and hits
+ *                             that take no lock at all
+ * Both write back dirty blocks the same way and keep the same contents
+ * after csync( ) and flush( ). A Flusher may write dirty blocks back in the
+ * background meanwhile.
+ *
+ * Both count their hits, misses, evictions and write-backs for
+ * SysLib.cstats( ). Given a memory budget with -Dthreados.cache.budget,
+ * they also estimate their miss-ratio curve (see MissRatioCurve.java) and
+ * grow or shrink to the smallest size that misses about as little as the
+ * whole budget would.
+ */
+
+public interface BlockCache {
+    // what getStats( ) puts at each index of its array
+    int STAT_PAGES       = 0;  // pages now
+    int STAT_HITS        = 1;  // cread, cwrite and creadv blocks found cached
+    int STAT_MISSES      = 2;  // and not found
+    int STAT_EVICTIONS   = 3;  // blocks that lost their page
+    int STAT_WRITE_BACKS = 4;  // dirty blocks written to the disk
+    int STAT_RESIZES     = 5;
+    int STAT_MISS_RATIO  = 6;  // estimated at the current size, per mille,
+                               // or -1 without a budget or samples yet
+    int STAT_BUDGET      = 7;  // most pages, 0 without a budget
+    int STATS            = 8;
+
+    // copy blockId into buffer, reading it from the disk on a miss
+    boolean read( int blockId, byte buffer[] );
+
+    // copy buffer into the cached blockId; it reaches the disk later
+    boolean write( int blockId, byte buffer[] );
+
+    // the same for blocks.length blocks, the i-th at i * 512 in buffer
+    boolean readv( int blocks[], byte buffer[] );
+
+    boolean writev( int blocks[], byte buffer[] );
+
+    // write back every dirty block, then sync the disk
+    void sync( );
+
+    // sync( ), then empty the cache
+    void flush( );
+
+    // the number of pages, and how many of them hold a dirty block
+    int getPages( );
+
+    int getDirty( );
+
+    // write back the blocks dirty since before dirtiedBefore (on the
+    // kernel's clock), then the oldest others until at most keep are left
+    // dirty, adjacent blocks in one request; returns how many were written
+    int writeBackOld( long dirtiedBefore, int keep );
+
+    // let the cache resize itself to at most pages from now on
+    void setBudget( int pages );
+
+    // fill stats with the counters above, as far as it is long
+    void getStats( long stats[] );
+}
@@ -0,0 +1,598 @@
+import java.util.*;
+
+// The disk cache behind SysLib.cread( ) and cwrite( ). Which page a missing
+// block replaces is up to a CachePolicy chosen at boot (see CachePolicy.java);
+// the cache itself keeps the pages, their dirty bits and an index from block
+// ids to pages, so a lookup does not depend on the number of pages. One
+// lock guards it all; ConcurrentCache.java is the sharded variant. Misses
+// that follow each other on the disk make the cache read ahead (see
+// ReadAhead.java). With a budget, a MissRatioCurve sizes the cache.
+public class Cache implements BlockCache {
+    public static final String DEFAULT_POLICY = "esc";
+    private static final String[] POLICIES = { "esc", "lru", "2q", "arc",
+					       "clockpro" };
+
+    private int blockSize;            // 512 bytes
+    private Vector pages;             // This is actual pages cached
+    private CachePolicy policy;       // picks the page a missing block takes
+    private HashMap blockIndex = new HashMap( ); // block id to its page
+    private int used = 0;             // pages caching a block
+    private ReadAhead readAhead;      // blocks fetched before they are read
+    private HashMap writing = new HashMap( ); // the Flusher's blocks to data
+    private static final int[] NONE = new int[0];
+    private static final int MIN_PAGES = 8; // the least a budget resizes to
+    // what a read that the disk failed returns, here and in ConcurrentCache
+    static final ReadAhead.Fetch READ_FAILED =
+	new ReadAhead.Fetch( -1, 0, null, new Disk.Request[0] );
+
+    private long ticks = 0;           // orders the pages by their last use
+    private MissRatioCurve curve = null; // only with a budget
+    private int budget = 0;           // most pages, 0 = a fixed size
+    private long hits = 0, misses = 0, evictions = 0, writeBacks = 0;
+    private long resizes = 0;
+
+    class Entry {
+	public static final int INVALID = -1;
+	public boolean dirty;
+	public long dirtied;          // when it became dirty, for the Flusher
+	public long lastUse;          // ticks at the last hit or install
+	public int frame;             // the disk block cached in this page
+	public Entry( ) {
+	    dirty = false;
+	    frame = INVALID;
+	}
+    }
+
+    private Entry[] pageTable = null;
+
+    private int findFreePage( ) {
+	if ( used == pageTable.length )
+	    return -1;
+	for ( int i = 0; i < pageTable.length; i++ ) {
+	    if ( pageTable[i].frame == Entry.INVALID )
+		return i;
+	}
+	return -1;
+    }
+
+    private void writeBack( int victimEntry ) {
+	if ( pageTable[victimEntry].frame != Entry.INVALID &&
+	     pageTable[victimEntry].dirty == true ) {
+	    byte[] p = ( byte[] )pages.elementAt( victimEntry );
+	    SysLib.rawwrite( pageTable[victimEntry].frame, p );
+	    pageTable[victimEntry].dirty = false;
+	    writeBacks++;
+	}
+	if ( pageTable[victimEntry].frame != Entry.INVALID )
+	    evictions++;
+    }
+
+    // The page caching blockId, or -1
+    private int findPage( int blockId ) {
+	Integer page = ( Integer )blockIndex.get( Integer.valueOf( blockId ) );
+	return ( page != null ) ? page.intValue( ) : -1;
+    }
+
+    // Putting a copy of blockId's data, found in buffer at offset, in page
+    private void install( int page, int blockId, byte buffer[], int offset,
+			  boolean dirty ) {
+	if ( pageTable[page].frame != Entry.INVALID )
+	    blockIndex.remove( Integer.valueOf( pageTable[page].frame ) );
+	else
+	    used++;
+	byte[] p = new byte[blockSize];
+	System.arraycopy( buffer, offset, p, 0, blockSize );
+	pages.set( page, p );
+	if ( dirty && !( pageTable[page].dirty &&
+			 pageTable[page].frame == blockId ) )
+	    pageTable[page].dirtied = VirtualClock.nanoTime( );
+	pageTable[page].frame = blockId;
+	pageTable[page].dirty = dirty;
+	pageTable[page].lastUse = ++ticks;
+	blockIndex.put( Integer.valueOf( blockId ), Integer.valueOf( page ) );
+    }
+
+    public Cache( int blockSize, int cacheBlocks ) {
+	this( blockSize, cacheBlocks, DEFAULT_POLICY );
+    }
+
+    public Cache( int blockSize, int cacheBlocks, String policyName ) {
+	this( blockSize, cacheBlocks, policyName, ReadAhead.DEFAULT_WINDOW );
+    }
+
+    // readAhead is the most blocks read ahead at once, 0 for none
+    public Cache( int blockSize, int cacheBlocks, String policyName,
+		  int readAhead ) {
+	this.blockSize = blockSize;
+	this.readAhead = new ReadAhead( blockSize, readAhead );
+	pages = new Vector( );
+	for ( int i = 0; i < cacheBlocks; i++ ) {
+	    byte[] p = new byte[blockSize];
+	    pages.addElement( p );
+	}
+	pageTable = new Entry[ cacheBlocks ];
+	for ( int i = 0; i < cacheBlocks; i++ )
+	    pageTable[i] = new Entry( );
+	policy = newPolicy( policyName, cacheBlocks );
+	if ( policy == null ) {
+	    SysLib.cerr( "threadOS: unknown cache policy " + policyName +
+			 ", using " + DEFAULT_POLICY + "\n" );
+	    policy = newPolicy( DEFAULT_POLICY, cacheBlocks );
+	}
+    }
+
+    // A new CachePolicy of the named kind for a cache of the given number
+    // of pages, or null if there is no such kind
+    public static CachePolicy newPolicy( String name, int pages ) {
+	if ( name.equals( "esc" ) )
+	    return new SecondChancePolicy( pages );
+	else if ( name.equals( "lru" ) )
+	    return new LruPolicy( pages );
+	else if ( name.equals( "2q" ) )
+	    return new TwoQueuePolicy( pages );
+	else if ( name.equals( "arc" ) )
+	    return new ArcPolicy( pages );
+	else if ( name.equals( "clockpro" ) )
+	    return new ClockProPolicy( pages );
+	return null;
+    }
+
+    public static String[] getPolicyNames( ) {
+	return POLICIES.clone( );
+    }
+
+    public String getPolicy( ) {
+	return policy.getName( );
+    }
+
+    // Telling the policy about a hit on page
+    private void hit( int page ) {
+	policy.hit( page );
+	pageTable[page].lastUse = ++ticks;
+	hits++;
+    }
+
+    public boolean read( int blockId, byte buffer[] ) {
+	if ( blockId < 0 ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for cread\n" );
+	    return false;
+	}
+
+	// a block on its way in ahead of time is waited for without the lock
+	ReadAhead.Fetch fetch = readLocked( blockId, buffer, null );
+	while ( fetch != null && fetch != READ_FAILED ) {
+	    readAhead.await( fetch );
+	    fetch = readLocked( blockId, buffer, fetch );
+	}
+	return fetch == null;
+    }
+
+    // Reading blockId into buffer and returning null, or returning the
+    // Fetch to wait for first if blockId is being read ahead. waited is the
+    // Fetch waited for last time; if it has not arrived even so, the caller
+    // cannot wait for it and the block is read from the disk. If the disk
+    // cannot read it, nothing is cached and READ_FAILED is returned.
+    private synchronized ReadAhead.Fetch readLocked( int blockId,
+						     byte buffer[],
+						     ReadAhead.Fetch waited ) {
+	awaitFlusher( NONE );
+	if ( waited == null )
+	    sample( blockId );
+
+	// locate a valid page
+	int i = findPage( blockId );
+	if ( i >= 0 ) {
+	    // cache hit!!
+	    // copy pages[i] to buffer
+	    byte[] p = ( byte[] )pages.elementAt( i );
+	    System.arraycopy( p, 0, buffer, 0, blockSize );
+	    hit( i );
+	    return null;
+	}
+
+	// page miss!!
+	// tell the read-ahead once, then wait for a block read ahead
+	ReadAhead.Fetch fetch = readAhead.find( blockId );
+	if ( waited == null )
+	    cancelCached( readAhead.missed( blockId ) );
+	if ( fetch != null && fetch != waited && !fetch.isDone( ) )
+	    return fetch;
+
+	// read a requested block from disk, unless the Flusher is writing
+	// it or it was read ahead
+	byte[] written = ( byte[] )writing.get( Integer.valueOf( blockId ) );
+	if ( written != null )
+	    System.arraycopy( written, 0, buffer, 0, blockSize );
+	else if ( ( fetch == null || !readAhead.take( fetch, blockId, buffer ) )
+		  && SysLib.rawread( blockId, buffer ) != Kernel.OK )
+	    return READ_FAILED;
+
+	// find an invalid page
+	// if no invalid page is found, all pages are full
+	//    let the policy pick a victim
+	int victimEntry = policy.miss( blockId, findFreePage( ) );
+
+	// write back a dirty copy
+	writeBack( victimEntry );
+	misses++;
+
+	// cache it
+	// copy buffer to pages[victimEntry]
+	install( victimEntry, blockId, buffer, 0, false );
+	return null;
+    }
+
+    // The blocks cached or being written by the Flusher when a read-ahead
+    // started may be newer than the disk, so their copies read ahead are
+    // dropped
+    private void cancelCached( ReadAhead.Fetch started ) {
+	if ( started == null )
+	    return;
+	for ( int i = 0; i < started.getCount( ); i++ ) {
+	    int blockId = started.getFirst( ) + i;
+	    if ( findPage( blockId ) >= 0 ||
+		 writing.containsKey( Integer.valueOf( blockId ) ) )
+		readAhead.cancel( blockId );
+	}
+    }
+
+    // Waiting, with the lock let go, while the Flusher writes any of blocks
+    // (any block at all if blocks is null), so that the disk is not read or
+    // written there before the Flusher is done, or a block that is dirty
+    // here again: writing it back could overtake the Flusher's older copy
+    // at the disk, and then be overwritten by it
+    private void awaitFlusher( int blocks[] ) {
+	while ( !writing.isEmpty( ) ) {
+	    boolean busy = ( blocks == null );
+	    for ( int i = 0; !busy && i < blocks.length; i++ )
+		busy = writing.containsKey( Integer.valueOf( blocks[i] ) );
+	    Iterator i = writing.keySet( ).iterator( );
+	    while ( !busy && i.hasNext( ) ) {
+		int page = findPage( ( ( Integer )i.next( ) ).intValue( ) );
+		busy = page >= 0 && pageTable[page].dirty;
+	    }
+	    if ( !busy )
+		return;
+	    try {
+		wait( );
+	    } catch ( InterruptedException e ) {
+	    }
+	}
+    }
+
+    public synchronized boolean write( int blockId, byte buffer[] ) {
+	if ( blockId < 0 ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for cwrite\n" );
+	    return false;
+	}
+	awaitFlusher( NONE );
+	sample( blockId );
+	readAhead.cancel( blockId ); // a copy read ahead is stale now
+
+	// locate a valid page
+	int i = findPage( blockId );
+	if ( i >= 0 ) {
+	    // cache hit
+	    // copy buffer to pages[i]
+	    install( i, blockId, buffer, 0, true );
+	    hit( i );
+	    return true;
+	}
+
+	// page miss
+	// find an invalid page
+	// if no invalid page is found, all pages are full.
+	//    let the policy pick a victim
+	int victimEntry = policy.miss( blockId, findFreePage( ) );
+
+	// write back a dirty copy
+	writeBack( victimEntry );
+	misses++;
+
+	// cache it but not write through.
+	// copy buffer to pages[victimEntry]
+	install( victimEntry, blockId, buffer, 0, true );
+	return true;
+    }
+
+    // Reading blocks.length blocks, the i-th one into buffer at i * blockSize.
+    // Hits are copied from their pages and all the misses are read from the
+    // disk in one vectored request, so a run of misses costs one seek. Only
+    // the last pageTable.length misses are cached; the earlier ones would
+    // just evict each other.
+    public synchronized boolean readv( int blocks[], byte buffer[] ) {
+	if ( !checkVector( blocks, buffer, "creadv" ) )
+	    return false;
+	awaitFlusher( blocks );
+	for ( int i = 0; i < blocks.length; i++ )
+	    sample( blocks[i] );
+
+	int missing[] = new int[ blocks.length ]; // indices into blocks
+	int missCount = 0;
+	for ( int i = 0; i < blocks.length; i++ ) {
+	    int page = findPage( blocks[i] );
+	    if ( page >= 0 ) {
+		byte[] p = ( byte[] )pages.elementAt( page );
+		System.arraycopy( p, 0, buffer, i * blockSize, blockSize );
+		hit( page );
+	    } else
+		missing[missCount++] = i;
+	}
+	if ( missCount == 0 )
+	    return true;
+
+	int missBlocks[] = new int[missCount];
+	byte missData[] = new byte[ missCount * blockSize ];
+	for ( int j = 0; j < missCount; j++ )
+	    missBlocks[j] = blocks[ missing[j] ];
+	if ( SysLib.rawreadv( missBlocks, missData ) != Kernel.OK )
+	    return false;
+	misses += missCount;
+	for ( int j = 0; j < missCount; j++ )
+	    System.arraycopy( missData, j * blockSize,
+			      buffer, missing[j] * blockSize, blockSize );
+
+	// cache them, writing back the dirty victims together
+	TreeMap victims = new TreeMap( );
+	int firstCached = Math.max( 0, missCount - pageTable.length );
+	for ( int j = firstCached; j < missCount; j++ ) {
+	    if ( findPage( missBlocks[j] ) >= 0 )
+		continue; // listed twice
+	    int victimEntry = policy.miss( missBlocks[j], findFreePage( ) );
+	    evict( victimEntry, victims );
+	    install( victimEntry, missBlocks[j], missData, j * blockSize,
+		     false );
+	}
+	writeRuns( victims, blockSize );
+	writeBacks += victims.size( );
+	return true;
+    }
+
+    // Writing blocks.length blocks, the i-th one from buffer at i * blockSize.
+    // A vectored write goes through to the disk in one request instead of
+    // evicting a page per block; the pages already caching any of its blocks
+    // are updated and become clean.
+    public synchronized boolean writev( int blocks[], byte buffer[] ) {
+	if ( !checkVector( blocks, buffer, "cwritev" ) )
+	    return false;
+	awaitFlusher( blocks );
+	if ( SysLib.rawwritev( blocks, buffer ) != Kernel.OK )
+	    return false;
+	for ( int i = 0; i < blocks.length; i++ ) {
+	    readAhead.cancel( blocks[i] );
+	    int page = findPage( blocks[i] );
+	    if ( page >= 0 ) {
+		install( page, blocks[i], buffer, i * blockSize, false );
+		policy.hit( page ); // written through, not counted as a hit
+	    }
+	}
+	return true;
+    }
+
+    private boolean checkVector( int blocks[], byte buffer[], String call ) {
+	if ( blocks == null || blocks.length == 0 || buffer == null ||
+	     buffer.length < blocks.length * blockSize ) {
+	    SysLib.cerr( "threadOS: a wrong buffer for " + call + "\n" );
+	    return false;
+	}
+	for ( int i = 0; i < blocks.length; i++ ) {
+	    if ( blocks[i] < 0 ) {
+		SysLib.cerr( "threadOS: a wrong blockId for " + call + "\n" );
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    // Writing back dirty copies, a map from block id to its data, with one
+    // vectored request for each run of adjacent blocks
+    static void writeRuns( TreeMap copies, int blockSize ) {
+	if ( copies.isEmpty( ) )
+	    return;
+	int blocks[] = new int[ copies.size( ) ];
+	byte data[] = new byte[ copies.size( ) * blockSize ];
+	int n = 0;
+	Iterator i = copies.entrySet( ).iterator( );
+	while ( i.hasNext( ) ) {
+	    Map.Entry copy = ( Map.Entry )i.next( );
+	    blocks[n] = ( ( Integer )copy.getKey( ) ).intValue( );
+	    System.arraycopy( ( byte[] )copy.getValue( ), 0,
+			      data, n * blockSize, blockSize );
+	    n++;
+	}
+	SysLib.rawwritev( blocks, data ); // the disk splits it into runs
+    }
+
+    // Writing back every dirty page, adjacent blocks in one request
+    private void writeBackAll( ) {
+	TreeMap copies = new TreeMap( );
+	for ( int i = 0; i < pageTable.length; i++ ) {
+	    if ( pageTable[i].frame != Entry.INVALID &&
+		 pageTable[i].dirty == true ) {
+		copies.put( Integer.valueOf( pageTable[i].frame ),
+			    pages.elementAt( i ) );
+		pageTable[i].dirty = false;
+	    }
+	}
+	writeRuns( copies, blockSize );
+	writeBacks += copies.size( );
+    }
+
+    // Adding the dirty copy in page, if any, to victims, a map from block
+    // id to data, and counting the eviction
+    private void evict( int page, TreeMap victims ) {
+	if ( pageTable[page].frame == Entry.INVALID )
+	    return;
+	if ( pageTable[page].dirty == true ) {
+	    victims.put( Integer.valueOf( pageTable[page].frame ),
+			 pages.elementAt( page ) );
+	    pageTable[page].dirty = false;
+	}
+	evictions++;
+    }
+
+    public synchronized int getPages( ) {
+	return pageTable.length;
+    }
+
+    public synchronized int getDirty( ) {
+	int dirty = 0;
+	for ( int i = 0; i < pageTable.length; i++ ) {
+	    if ( pageTable[i].frame != Entry.INVALID && pageTable[i].dirty )
+		dirty++;
+	}
+	return dirty;
+    }
+
+    // Writing back, for the Flusher, the pages dirty since before
+    // dirtiedBefore and then the oldest others until keep are left dirty.
+    // The lock is let go while they are written; until then they are in
+    // writing, where misses find them and awaitFlusher( ) sees them.
+    public int writeBackOld( long dirtiedBefore, int keep ) {
+	TreeMap copies = takeOld( dirtiedBefore, keep );
+	writeRuns( copies, blockSize );
+	synchronized ( this ) {
+	    writing.keySet( ).removeAll( copies.keySet( ) );
+	    writeBacks += copies.size( );
+	    notifyAll( );
+	}
+	return copies.size( );
+    }
+
+    // Marking clean the pages writeBackOld( ) writes, and returning them,
+    // a map from block id to data, after adding them to writing
+    private synchronized TreeMap takeOld( long dirtiedBefore, int keep ) {
+	Vector dirty = new Vector( );
+	for ( int i = 0; i < pageTable.length; i++ ) {
+	    if ( pageTable[i].frame != Entry.INVALID && pageTable[i].dirty )
+		dirty.add( pageTable[i] );
+	}
+	Collections.sort( dirty, new Comparator( ) {
+		public int compare( Object a, Object b ) {
+		    long x = ( ( Entry )a ).dirtied;
+		    long y = ( ( Entry )b ).dirtied;
+		    return ( x < y ) ? -1 : ( x > y ) ? 1 : 0;
+		}
+	    } );
+	TreeMap copies = new TreeMap( );
+	for ( int n = 0; n < dirty.size( ); n++ ) {
+	    Entry entry = ( Entry )dirty.elementAt( n );
+	    if ( entry.dirtied >= dirtiedBefore && dirty.size( ) - n <= keep )
+		break; // the rest are young, and few enough
+	    copies.put( Integer.valueOf( entry.frame ),
+			pages.elementAt( findPage( entry.frame ) ) );
+	    entry.dirty = false;
+	}
+	writing.putAll( copies );
+	return copies;
+    }
+
+    // Growing and shrinking between MIN_PAGES and pages from now on, as the
+    // miss-ratio curve suggests
+    public synchronized void setBudget( int pages ) {
+	budget = Math.max( 0, pages );
+	curve = ( budget > 0 ) ? new MissRatioCurve( budget ) : null;
+	if ( budget > 0 && pageTable.length > budget )
+	    resize( budget );
+    }
+
+    public synchronized void getStats( long stats[] ) {
+	long[] all = new long[STATS];
+	all[STAT_PAGES] = pageTable.length;
+	all[STAT_HITS] = hits;
+	all[STAT_MISSES] = misses;
+	all[STAT_EVICTIONS] = evictions;
+	all[STAT_WRITE_BACKS] = writeBacks;
+	all[STAT_RESIZES] = resizes;
+	double ratio = -1;
+	if ( curve != null )
+	    ratio = curve.missRatio( pageTable.length );
+	all[STAT_MISS_RATIO] = ( ratio < 0 ) ? -1 : Math.round( ratio * 1000 );
+	all[STAT_BUDGET] = budget;
+	System.arraycopy( all, 0, stats, 0, Math.min( STATS, stats.length ) );
+    }
+
+    // Telling the miss-ratio curve about an access to blockId, and now and
+    // then resizing to the size it suggests, if that is at least an eighth
+    // off
+    private void sample( int blockId ) {
+	if ( curve == null || !curve.isSampled( blockId ) ||
+	     !curve.access( blockId ) )
+	    return;
+	int size = curve.bestSize( Math.min( MIN_PAGES, budget ) );
+	int pages = pageTable.length;
+	if ( size > 0 && Math.abs( size - pages ) * 8 >= pages )
+	    resize( size );
+    }
+
+    // Rebuilding the cache with size pages. The blocks used last stay and
+    // are told to a fresh policy, the least recent first, as misses; the
+    // dirty ones that lose their page are written back together.
+    private void resize( int size ) {
+	awaitFlusher( null );
+	final Entry[] oldTable = pageTable;
+	Vector oldPages = pages;
+	Vector cached = new Vector( ); // their pages, least recently used first
+	for ( int i = 0; i < oldTable.length; i++ ) {
+	    if ( oldTable[i].frame != Entry.INVALID )
+		cached.add( Integer.valueOf( i ) );
+	}
+	Collections.sort( cached, new Comparator( ) {
+		public int compare( Object a, Object b ) {
+		    long x = oldTable[ ( ( Integer )a ).intValue( ) ].lastUse;
+		    long y = oldTable[ ( ( Integer )b ).intValue( ) ].lastUse;
+		    return ( x < y ) ? -1 : ( x > y ) ? 1 : 0;
+		}
+	    } );
+
+	pages = new Vector( );
+	pages.setSize( size );
+	pageTable = new Entry[size];
+	for ( int i = 0; i < size; i++ )
+	    pageTable[i] = new Entry( );
+	policy = newPolicy( policy.getName( ), size );
+	blockIndex = new HashMap( );
+	used = 0;
+
+	TreeMap victims = new TreeMap( );
+	int dropped = Math.max( 0, cached.size( ) - size );
+	for ( int n = 0; n < cached.size( ); n++ ) {
+	    int old = ( ( Integer )cached.elementAt( n ) ).intValue( );
+	    Entry entry = oldTable[old];
+	    byte[] data = ( byte[] )oldPages.elementAt( old );
+	    if ( n < dropped ) {
+		if ( entry.dirty )
+		    victims.put( Integer.valueOf( entry.frame ), data );
+		evictions++;
+		continue;
+	    }
+	    int page = policy.miss( entry.frame, findFreePage( ) );
+	    evict( page, victims );
+	    install( page, entry.frame, data, 0, entry.dirty );
+	    pageTable[page].dirtied = entry.dirtied;
+	    pageTable[page].lastUse = entry.lastUse;
+	}
+	writeRuns( victims, blockSize );
+	writeBacks += victims.size( );
+	resizes++;
+    }
+
+    public synchronized void sync( ) {
+	awaitFlusher( null );
+	writeBackAll( );
+	SysLib.sync( );
+    }
+
+    public synchronized void flush( ) {
+	awaitFlusher( null );
+	writeBackAll( );
+	for ( int i = 0; i < pageTable.length; i++ ) {
+	    if ( pageTable[i].frame != Entry.INVALID )
+		policy.removed( i );
+	    pageTable[i].frame = Entry.INVALID;
+	}
+	blockIndex.clear( );
+	used = 0;
+	SysLib.sync( );
+    }
+}
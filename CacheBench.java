@@ -0,0 +1,204 @@
+import java.io.*;
+import java.util.*;
+
+// CacheBench compares the Cache's replacement policies (see CachePolicy.java)
+// by replaying block traces. It runs outside ThreadOS:
+// "java CacheBench [pages] [trace file]".
+//
+// Without a trace file it makes three of its own: "zipf" draws blocks with
+// a skewed popularity, "scan" mixes a small hot set with long sequential
+// scans, and "loop" goes round a few more blocks than the cache holds. A
+// trace file lists block ids separated by white space; lines that start
+// with # are skipped.
+//
+// Each policy replays each trace the way the Cache would: a block index
+// finds hits, and a miss takes a free page or the policy's victim. No data
+// is moved, so ns/op is the cost of the lookup and of the policy. For each
+// one the hit ratio and the time per access are printed.
+//
+// "java CacheBench -threads [max]" measures read hits instead: 1, 2, 4 ...
+// up to max threads (default: the number of processors) read blocks that
+// are all cached, from the single-lock Cache and from a ConcurrentCache.
+// The blocks are cached with cwrite( )s into free pages, so the disk is
+// never used.
+public class CacheBench {
+    public static void main( String args[] ) throws IOException {
+	if ( args.length > 0 && args[0].equals( "-threads" ) ) {
+	    int max = ( args.length > 1 ) ? Integer.parseInt( args[1] )
+		: Runtime.getRuntime( ).availableProcessors( );
+	    for ( int threads = 1; threads <= max; threads *= 2 ) {
+		runHits( "Cache", new Cache( Disk.blockSize, 256 ), threads );
+		runHits( "ConcurrentCache",
+			 new ConcurrentCache( Disk.blockSize, 256,
+					      Cache.DEFAULT_POLICY, 16 ),
+			 threads );
+	    }
+	    return;
+	}
+	int pages = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : 100;
+	Vector names = new Vector( );
+	Vector traces = new Vector( );
+	if ( args.length > 1 ) {
+	    names.add( args[1] );
+	    traces.add( readTrace( args[1] ) );
+	} else {
+	    Random random = new Random( 4242 );
+	    names.add( "zipf" );
+	    traces.add( zipfTrace( random, pages * 10, 200000 ) );
+	    names.add( "scan" );
+	    traces.add( scanTrace( random, pages, 200000 ) );
+	    names.add( "loop" );
+	    traces.add( loopTrace( pages + pages / 2, 200000 ) );
+	}
+
+	String[] policies = Cache.getPolicyNames( );
+	for ( int t = 0; t < traces.size( ); t++ ) {
+	    int[] trace = ( int[] )traces.elementAt( t );
+	    System.out.println( names.elementAt( t ) + ": " + trace.length +
+				" accesses, " + pages + " pages" );
+	    for ( int p = 0; p < policies.length; p++ )
+		run( policies[p], pages, trace );
+	}
+    }
+
+    // Replaying trace with a fresh policy: once to warm up the JIT, then
+    // again for the numbers
+    private static void run( String policy, int pages, int[] trace ) {
+	replay( Cache.newPolicy( policy, pages ), pages, trace );
+	long start = System.nanoTime( );
+	int hits = replay( Cache.newPolicy( policy, pages ), pages, trace );
+	long elapsed = System.nanoTime( ) - start;
+	double ratio = 100.0 * hits / trace.length;
+	double nanos = ( double )elapsed / trace.length;
+	System.out.println( "  " + policy + "\t" +
+			    String.format( "%5.1f", ratio ) + "% hits, " +
+			    String.format( "%.0f", nanos ) + " ns/op" );
+    }
+
+    private static int replay( CachePolicy policy, int pages, int[] trace ) {
+	HashMap index = new HashMap( );          // block id to page
+	int[] blockOf = new int[pages];
+	int used = 0;
+	int hits = 0;
+	for ( int i = 0; i < trace.length; i++ ) {
+	    Integer block = Integer.valueOf( trace[i] );
+	    Integer page = ( Integer )index.get( block );
+	    if ( page != null ) {
+		policy.hit( page.intValue( ) );
+		hits++;
+		continue;
+	    }
+	    int victim = policy.miss( trace[i], ( used < pages ) ? used : -1 );
+	    if ( victim < used )
+		index.remove( Integer.valueOf( blockOf[victim] ) );
+	    else
+		used++;
+	    blockOf[victim] = trace[i];
+	    index.put( block, Integer.valueOf( victim ) );
+	}
+	return hits;
+    }
+
+    // Reading cached blocks from several threads at once for a second and
+    // printing the hits per second
+    private static void runHits( String name, final BlockCache cache,
+				 int threads ) {
+	final int blocks = 128;
+	byte[] data = new byte[ Disk.blockSize ];
+	for ( int b = 0; b < blocks; b++ )
+	    cache.write( b, data );
+
+	final long end = System.nanoTime( ) + 1000000000L;
+	final long[] counts = new long[threads];
+	Thread[] readers = new Thread[threads];
+	for ( int t = 0; t < threads; t++ ) {
+	    final int me = t;
+	    readers[t] = new Thread( ) {
+		    public void run( ) {
+			byte[] buffer = new byte[ Disk.blockSize ];
+			int b = me;
+			long n = 0;
+			while ( System.nanoTime( ) < end ) {
+			    for ( int i = 0; i < 1000; i++ ) {
+				cache.read( b, buffer );
+				b = ( b + 7 ) % blocks;
+			    }
+			    n += 1000;
+			}
+			counts[me] = n;
+		    }
+		};
+	    readers[t].start( );
+	}
+	long total = 0;
+	for ( int t = 0; t < threads; t++ ) {
+	    try {
+		readers[t].join( );
+	    } catch ( InterruptedException e ) {
+	    }
+	    total += counts[t];
+	}
+	System.out.println( name + "\t" + threads + " threads, " +
+			    String.format( "%.2f", total / 1e6 ) +
+			    " million hits/sec" );
+    }
+
+    // blocks drawn with Zipf-like popularity: block k is picked with a
+    // probability proportional to 1 / ( k + 1 )
+    private static int[] zipfTrace( Random random, int blocks, int length ) {
+	double[] cdf = new double[blocks];
+	double sum = 0;
+	for ( int k = 0; k < blocks; k++ ) {
+	    sum += 1.0 / ( k + 1 );
+	    cdf[k] = sum;
+	}
+	int[] trace = new int[length];
+	for ( int i = 0; i < length; i++ ) {
+	    int k = Arrays.binarySearch( cdf, random.nextDouble( ) * sum );
+	    trace[i] = ( k >= 0 ) ? k : Math.min( -k - 1, blocks - 1 );
+	}
+	return trace;
+    }
+
+    // a hot set of half the cache, used over and over, with now and then a
+    // scan of twice the cache through blocks that are never used again
+    private static int[] scanTrace( Random random, int pages, int length ) {
+	int hot = Math.max( 1, pages / 2 );
+	int[] trace = new int[length];
+	int next = hot;                           // the next scanned block
+	int i = 0;
+	while ( i < length ) {
+	    for ( int j = 0; j < pages * 2 && i < length; j++ )
+		trace[i++] = random.nextInt( hot );
+	    for ( int j = 0; j < pages * 2 && i < length; j++ )
+		trace[i++] = next++;
+	}
+	return trace;
+    }
+
+    private static int[] loopTrace( int blocks, int length ) {
+	int[] trace = new int[length];
+	for ( int i = 0; i < length; i++ )
+	    trace[i] = i % blocks;
+	return trace;
+    }
+
+    private static int[] readTrace( String fileName ) throws IOException {
+	BufferedReader in = new BufferedReader( new FileReader( fileName ) );
+	int[] trace = new int[1024];
+	int length = 0;
+	String line;
+	while ( ( line = in.readLine( ) ) != null ) {
+	    if ( line.startsWith( "#" ) )
+		continue;
+	    StringTokenizer token = new StringTokenizer( line );
+	    while ( token.hasMoreTokens( ) ) {
+		if ( length == trace.length )
+		    trace = Arrays.copyOf( trace, length * 2 );
+		trace[length++] = Integer.parseInt( token.nextToken( ) );
+	    }
+	}
+	in.close( );
+	return Arrays.copyOf( trace, length );
+    }
+}
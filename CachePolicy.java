@@ -0,0 +1,41 @@
+// --------------------------------CachePolicy.java-----------------------------
+/*
+ * PURPOSE OF FILE
+ * This interface is what the Cache asks when a block misses and a page has
+ * to be found for it. The Cache keeps the pages, their dirty bits and the
+ * index from blocks to pages; the policy keeps whatever order or history
+ * it needs to pick the victim. Kernel's BOOT case picks the implementation
+ * with -Dthreados.cache.policy:
+ *   esc       SecondChancePolicy  second chance (the default)
+ *   lru       LruPolicy           least recently used
+ *   2q        TwoQueuePolicy      2Q: new blocks wait in a FIFO first
+ *   arc       ArcPolicy           adaptive replacement cache
+ *   clockpro  ClockProPolicy      CLOCK-Pro: hot and cold pages on a clock
+ * Second chance and LRU let one scan over more blocks than the cache holds
+ * evict everything. The other three keep a history of recently evicted
+ * blocks and only protect blocks that are used again, so hot blocks survive
+ * scans. "java CacheBench [pages] [trace]" compares them.
+ *
+ * Pages are numbered 0 to pages - 1, as in the Cache's pageTable.
+ *
+ * THREAD SAFETY
+ * The Cache calls every method while holding its own lock.
+ */
+
+public interface CachePolicy {
+    // the name used to select this policy at boot
+    String getName( );
+
+    // the block cached in page was used again
+    void hit( int page );
+
+    // blockId missed. Returns the page it goes in: freePage, or a victim
+    // whose block the Cache evicts. freePage is -1 when every page is in
+    // use; otherwise a policy may still pick a victim to keep the free page
+    // for later. From then on the policy counts blockId as cached in the
+    // page returned.
+    int miss( int blockId, int freePage );
+
+    // page no longer caches anything (the Cache was flushed)
+    void removed( int page );
+}
@@ -0,0 +1,129 @@
+// --------------------------------ChromeTrace.java-----------------------------
+/*
+ * PURPOSE OF FILE
+ * This file writes the scheduler's TraceBuffers as a Chrome trace (the JSON
+ * "trace event" format), which chrome://tracing and ui.perfetto.dev open.
+ * The trace has two processes:
+ *   cpus       one track per Cpu; a slice from each DISPATCH to the PAUSE
+ *              or PREEMPT that ends it, named after the TCB's tid, and an
+ *              instant for each DEMOTE and EXIT
+ *   processes  one track per tid; a slice for each blocking system call,
+ *              from BLOCK to UNBLOCK
+ * Timestamps are microseconds since tracing was turned on, in virtual time
+ * under the virtual clock.
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class ChromeTrace {
+    private static final int CPUS = 0;               //Trace process ids
+    private static final int PROCESSES = 1;
+    private static final String[] SYSCALLS = {
+        "boot", "exec", "join", "exit", "sleep", "rawread", "rawwrite",
+        "sync", "cin", "cout", "cread", "cwrite", "csync", "cflush", "open",
+        "close", "size", "seek", "format", "delete", "stats", "time",
+        "rawreadv", "rawwritev", "creadv", "cwritev", "cstats", "tickets"
+    };
+
+    // -------------------------------------------------------------------------
+    // write( String fileName, TraceBuffer[] cpus, TraceBuffer kernel,
+    //        long startTime )
+    /*
+     * SUMMARY
+     * This function is responsible for writing the trace file. cpus[i] holds
+     * the events of Cpu i and kernel those of the system calls. startTime is
+     * the nanoTime that becomes timestamp 0.
+     */
+    public static void write( String fileName, TraceBuffer[] cpus,
+                              TraceBuffer kernel, long startTime )
+        throws IOException {
+        List out = new ArrayList( );
+        meta( out, "process_name", CPUS, 0, "cpus" );
+        meta( out, "process_name", PROCESSES, 0, "processes" );
+        for ( int i = 0; i < cpus.length; i++ ) {
+            meta( out, "thread_name", CPUS, i, cpus[i].getName( ) );
+            writeCpu( out, i, cpus[i].snapshot( ), startTime );
+        }
+        writeKernel( out, kernel.snapshot( ), startTime );
+
+        PrintWriter file = new PrintWriter( new BufferedWriter(
+                                            new FileWriter( fileName ) ) );
+        file.println( "{\"traceEvents\":[" );
+        for ( int i = 0; i < out.size( ); i++ ) {
+            file.println( out.get( i ) + ( i + 1 < out.size( ) ? "," : "" ) );
+        }
+        file.println( "]}" );
+        file.close( );
+        if ( file.checkError( ) ) throw new IOException( "write failed" );
+    }
+
+    private static void writeCpu( List out, int cpu, List records,
+                                  long startTime ) {
+        for ( int i = 0; i < records.size( ); i++ ) {
+            long[] r = ( long[] )records.get( i );
+            String ts = micros( r[0] - startTime );
+            switch ( ( int )r[1] ) {
+            case TraceBuffer.DISPATCH:
+                event( out, "B", "tid " + r[2], CPUS, cpu, ts );
+                break;
+            case TraceBuffer.PAUSE:
+            case TraceBuffer.PREEMPT:
+                event( out, "E", "tid " + r[2], CPUS, cpu, ts );
+                break;
+            case TraceBuffer.DEMOTE:
+                instant( out, "demote tid " + r[2], cpu, ts,
+                         "\"demotions\":" + r[3] );
+                break;
+            case TraceBuffer.EXIT:
+                instant( out, "exit tid " + r[2], cpu, ts, "" );
+                break;
+            }
+        }
+    }
+
+    private static void writeKernel( List out, List records,
+                                     long startTime ) {
+        Set named = new HashSet( );
+        for ( int i = 0; i < records.size( ); i++ ) {
+            long[] r = ( long[] )records.get( i );
+            int tid = ( int )r[2];
+            if ( named.add( Integer.valueOf( tid ) ) ) {
+                meta( out, "thread_name", PROCESSES, tid, "tid " + tid );
+            }
+            String name = ( r[3] >= 0 && r[3] < SYSCALLS.length ) ?
+                SYSCALLS[( int )r[3]] : "syscall " + r[3];
+            String ts = micros( r[0] - startTime );
+            if ( r[1] == TraceBuffer.BLOCK ) {
+                event( out, "B", name, PROCESSES, tid, ts );
+            } else if ( r[1] == TraceBuffer.UNBLOCK ) {
+                event( out, "E", name, PROCESSES, tid, ts );
+            }
+        }
+    }
+
+    private static void event( List out, String phase, String name,
+                               int pid, int tid, String ts ) {
+        out.add( "{\"ph\":\"" + phase + "\",\"name\":\"" + name +
+                     "\",\"pid\":" + pid + ",\"tid\":" + tid +
+                     ",\"ts\":" + ts + "}" );
+    }
+
+    private static void instant( List out, String name, int cpu, String ts,
+                                 String args ) {
+        out.add( "{\"ph\":\"i\",\"s\":\"t\",\"name\":\"" + name +
+                 "\",\"pid\":" + CPUS + ",\"tid\":" + cpu + ",\"ts\":" + ts +
+                 ",\"args\":{" + args + "}}" );
+    }
+
+    private static void meta( List out, String what, int pid, int tid,
+                              String name ) {
+        out.add( "{\"ph\":\"M\",\"name\":\"" + what + "\",\"pid\":" + pid +
+                     ",\"tid\":" + tid + ",\"args\":{\"name\":\"" + name +
+                     "\"}}" );
+    }
+
+    private static String micros( long nanos ) {
+        return ( nanos / 1000 ) + "." + ( nanos % 1000 / 100 );
+    }
+}
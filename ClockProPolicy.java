@@ -0,0 +1,274 @@
+// --------------------------------ClockProPolicy.java--------------------------
+/*
+ * PURPOSE OF FILE
+ * This is CLOCK-Pro (Jiang, Chen and Zhang), as a CachePolicy. It is the
+ * CLOCK version of LIRS: it tells hot blocks, which are reused at short
+ * distances, from cold ones by their reuse distance, with the cost of CLOCK
+ * instead of a sorted list.
+ *
+ * Every cached block, and up to one cache full of recently evicted cold
+ * blocks, sits on one circular list with a reference bit. A new block
+ * comes in cold, in a test period. If it is used again during its test
+ * period, even after its page was taken, it becomes hot. Three hands go
+ * round the clock:
+ *   HAND_cold  finds the victim among the cold pages, turning referenced
+ *              ones in their test period hot
+ *   HAND_hot   turns unreferenced hot pages cold while there are too many
+ *   HAND_test  ends the test periods that expired, forgetting those blocks
+ * The number of cold pages adapts: a block reused in its test period asks
+ * for more cold pages, a test period that ends unused for fewer. A scan
+ * stays cold and never displaces the hot pages.
+ */
+
+import java.util.*;
+
+public class ClockProPolicy implements CachePolicy {
+    private Map nodes = new HashMap( );              //Block id to its Node
+    private Node[] nodeOf;                           //Node of each page
+    private Node handHot = null;                     //New nodes go before it
+    private Node handCold = null;
+    private Node handTest = null;
+    private int capacity;                            //Pages
+    private int coldTarget;                          //Cold pages wanted
+    private int hotCount = 0;
+    private int coldCount = 0;                       //Cold pages cached
+    private int testCount = 0;                       //Cold blocks not cached
+
+    // -------------------------------------------------------------------------
+    // Node
+    /*
+     * SUMMARY
+     * A block on the clock. page is -1 once a cold block in its test period
+     * has lost its page.
+     */
+    private static class Node {
+        final int blockId;
+        int page;
+        boolean hot = false;
+        boolean reference = false;
+        boolean test = false;
+        Node prev;
+        Node next;
+
+        Node( int blockId, int page ) {
+            this.blockId = blockId;
+            this.page = page;
+        }
+    }
+
+    public ClockProPolicy( int pages ) {
+        nodeOf = new Node[pages];
+        capacity = pages;
+        coldTarget = pages;
+    }
+
+    public String getName( ) {
+        return "clockpro";
+    }
+
+    public void hit( int page ) {
+        nodeOf[page].reference = true;
+    }
+
+    // -------------------------------------------------------------------------
+    // miss( int blockId, int freePage )
+    /*
+     * SUMMARY
+     * A block still in its test period comes back hot and asks for one more
+     * cold page. Any other block comes in cold, in a test period. With all
+     * the pages in use, HAND_cold frees one first.
+     */
+    public int miss( int blockId, int freePage ) {
+        Node old = ( Node )nodes.get( Integer.valueOf( blockId ) );
+        boolean reused = ( old != null );
+        if ( reused ) {
+            coldTarget = Math.min( capacity, coldTarget + 1 );
+            unlink( old );
+            testCount--;
+        }
+        int page = ( freePage >= 0 ) ? freePage : evict( );
+
+        Node node = new Node( blockId, page );
+        if ( reused ) {
+            node.hot = true;
+            hotCount++;
+        } else {
+            node.test = true;
+            coldCount++;
+        }
+        link( node );
+        nodeOf[page] = node;
+        while ( hotCount > capacity - coldTarget ) {
+            runHandHot( );
+        }
+        return page;
+    }
+
+    public void removed( int page ) {
+        Node node = nodeOf[page];
+        nodeOf[page] = null;
+        if ( node.hot ) {
+            hotCount--;
+        } else {
+            coldCount--;
+        }
+        unlink( node );
+    }
+
+    // -------------------------------------------------------------------------
+    // evict( )
+    /*
+     * SUMMARY
+     * This function moves HAND_cold until it takes a page away from a cold
+     * block, and returns that page. If every page is hot, HAND_hot first
+     * turns one cold.
+     */
+    private int evict( ) {
+        while ( true ) {
+            while ( coldCount == 0 ) {
+                runHandHot( );
+            }
+            int page = runHandCold( );
+            if ( page >= 0 ) {
+                return page;
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // runHandCold( )
+    /*
+     * SUMMARY
+     * This function looks at the next cold cached block. If it was used in
+     * its test period it turns hot; if it was used after, it gets a new
+     * test period. Otherwise its page is taken, and the block is kept as
+     * not cached until its test period ends. It returns the page taken, or
+     * -1.
+     */
+    private int runHandCold( ) {
+        while ( handCold.hot || handCold.page < 0 ) {
+            handCold = handCold.next;
+        }
+        Node node = handCold;
+        handCold = node.next;
+        if ( node.reference ) {
+            node.reference = false;
+            if ( node.test ) {
+                node.hot = true;
+                node.test = false;
+                coldCount--;
+                hotCount++;
+                while ( hotCount > capacity - coldTarget ) {
+                    runHandHot( );
+                }
+            } else {
+                node.test = true;
+            }
+            return -1;
+        }
+        int page = node.page;
+        nodeOf[page] = null;
+        coldCount--;
+        if ( node.test ) {
+            node.page = -1;
+            testCount++;
+            while ( testCount > capacity ) {
+                runHandTest( );
+            }
+        } else {
+            unlink( node );
+        }
+        return page;
+    }
+
+    // -------------------------------------------------------------------------
+    // runHandHot( )
+    /*
+     * SUMMARY
+     * This function looks at the next block. A hot one that was used is
+     * passed over with its bit cleared, and one that was not turns cold.
+     * HAND_hot ends the test period of any cold block it passes, as it is
+     * the hand that measures the largest reuse distance of the hot blocks.
+     */
+    private void runHandHot( ) {
+        Node node = handHot;
+        handHot = node.next;
+        if ( node.hot ) {
+            if ( node.reference ) {
+                node.reference = false;
+            } else {
+                node.hot = false;
+                hotCount--;
+                coldCount++;
+            }
+        } else {
+            endTest( node );
+        }
+    }
+
+    private void runHandTest( ) {
+        Node node = handTest;
+        handTest = node.next;
+        if ( !node.hot ) {
+            endTest( node );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // endTest( Node node )
+    /*
+     * SUMMARY
+     * A cold block whose test period ends unused asks for one cold page
+     * less; if it is not cached any more, it is forgotten.
+     */
+    private void endTest( Node node ) {
+        if ( !node.test ) {
+            return;
+        }
+        node.test = false;
+        coldTarget = Math.max( 1, coldTarget - 1 );
+        if ( node.page < 0 ) {
+            testCount--;
+            unlink( node );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // link( Node node ), unlink( Node node )
+    /*
+     * SUMMARY
+     * link( ) puts a node at the head of the list, just behind HAND_hot, so
+     * it is the last one every hand reaches. unlink( ) takes a node out,
+     * moving any hand on it to the next one.
+     */
+    private void link( Node node ) {
+        nodes.put( Integer.valueOf( node.blockId ), node );
+        if ( handHot == null ) {
+            node.prev = node;
+            node.next = node;
+            handHot = node;
+            handCold = node;
+            handTest = node;
+            return;
+        }
+        node.next = handHot;
+        node.prev = handHot.prev;
+        handHot.prev.next = node;
+        handHot.prev = node;
+    }
+
+    private void unlink( Node node ) {
+        nodes.remove( Integer.valueOf( node.blockId ) );
+        if ( node.next == node ) {
+            handHot = null;
+            handCold = null;
+            handTest = null;
+            return;
+        }
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        if ( handHot == node ) handHot = node.next;
+        if ( handCold == node ) handCold = node.next;
+        if ( handTest == node ) handTest = node.next;
+    }
+}
@@ -0,0 +1,935 @@
+// --------------------------------ConcurrentCache.java-------------------------
+/*
+ * PURPOSE OF FILE
+ * This is the disk cache for many threads at once. Cache.java holds one lock
+ * for every call, so even two hits on different blocks wait for each other.
+ * Here the pages are split into shards. Each shard has its own lock, block
+ * index and CachePolicy, and a read hit takes no lock at all.
+ *
+ * Each page is a Frame guarded by a StampedLock. A read hit finds the Frame
+ * in its shard's ConcurrentHashMap index and reads it optimistically. It
+ * notes the stamp, checks that the Frame still holds the block and takes
+ * its data array, then validates the stamp. The data array of a Frame is
+ * never changed once published: every write installs a new one. So a
+ * validated array can be copied at leisure. If validation fails because
+ * the Frame was being written or reassigned, the read takes the slow path.
+ *
+ * The policies are not thread-safe, so a hit cannot tell its policy right
+ * away. It sets the Frame's hit flag, and the shard replays the flags to
+ * its policy under the shard lock before it picks the next victim. The flag
+ * is only written when it is clear, so hot blocks do not bounce a cache
+ * line between readers.
+ *
+ * Misses, write-back, csync( ) and flush( ) take the shard lock, as every
+ * call took the single lock in Cache. They take it with Kernel.acquire( ),
+ * so a thread waiting for a shard gives its Cpu to somebody else. A call
+ * that touches several shards locks them in ascending order. Write hits
+ * lock only their Frame. Shards cover SHARD_SPAN adjacent blocks each, in
+ * turn, so a short run of blocks stays within one shard and creadv( )
+ * still reads it in one request.
+ *
+ * A cread( ) miss tells the ReadAhead, as in Cache, but a window it starts
+ * only covers blocks whose shard lock the thread holds: the span of the
+ * miss, and the next span too if that shard is free. A thread that waits
+ * for a block read ahead does not hold the shard lock meanwhile.
+ *
+ * The counters for SysLib.cstats( ) are LongAdders, so hits on different
+ * Cpus do not share a cache line. With a budget, each thread hands its
+ * samples to the MissRatioCurve BATCH at a time, so a hit takes the curve's
+ * lock once in BATCH. The curve sizes the whole cache, and the shards
+ * share the pages as they shared the accesses sampled lately. A resize
+ * holds every shard lock and moves the blocks it keeps into new Frames; the
+ * old ones are emptied, so a hit on them fails validation and takes the
+ * slow path.
+ *
+ * THREAD SAFETY
+ * A Frame's blockId, data and dirty change only under its write lock, and
+ * its blockId only under its shard's lock as well. The index, the frames
+ * array and the policy change only under the shard lock.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+public class ConcurrentCache implements BlockCache {
+    public static final int SHARD_SPAN = 16;         //Adjacent blocks a shard
+    private static final int INVALID = -1;
+    private static final int BATCH = 64;             //Samples a thread hands in
+
+    private final int blockSize;
+    private volatile int pageCount;                  //Over all shards
+    private final Shard[] shards;
+    private final ReadAhead readAhead;
+
+    private final LongAdder hits = new LongAdder( );
+    private final LongAdder misses = new LongAdder( );
+    private final LongAdder evictions = new LongAdder( );
+    private final LongAdder writeBacks = new LongAdder( );
+    private volatile long resizes = 0;               //Under every shard lock
+    private volatile MissRatioCurve curve = null;    //Only with a budget
+    private volatile int budget = 0;                 //Most pages, 0 = fixed
+    private final ThreadLocal batches = new ThreadLocal( ); //int[ 1 + BATCH ]
+
+    // -------------------------------------------------------------------------
+    // Frame
+    /*
+     * SUMMARY
+     * One page. page is its number in its shard's policy.
+     */
+    private static class Frame {
+        final StampedLock lock = new StampedLock( );
+        final int page;
+        volatile int blockId = INVALID;
+        volatile byte[] data;
+        volatile boolean dirty = false;              //Set under the write lock
+        long dirtied;                                //When it became dirty
+        volatile boolean hit = false;                //Not yet told the policy
+        long lastUse;                                //Under the shard lock
+
+        Frame( int page, int blockSize ) {
+            this.page = page;
+            data = new byte[blockSize];
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Shard
+    /*
+     * SUMMARY
+     * A share of the pages with their own lock, index and policy.
+     */
+    private static class Shard {
+        final ReentrantLock lock = new ReentrantLock( );
+        final ConcurrentHashMap index = new ConcurrentHashMap( ); //Id to Frame
+        volatile Frame[] frames;
+        CachePolicy policy;
+        int used = 0;                                //Frames holding a block
+        long ticks = 0;                              //Orders the lastUses
+        final LongAdder sampled = new LongAdder( );  //Since the last resize
+
+        Shard( int pages, int blockSize, CachePolicy policy ) {
+            frames = new Frame[pages];
+            for ( int i = 0; i < pages; i++ ) {
+                frames[i] = new Frame( i, blockSize );
+            }
+            this.policy = policy;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // ConcurrentCache( int blockSize, int cacheBlocks, String policyName,
+    //                  int shardCount )
+    /*
+     * SUMMARY
+     * This is the constructor. The cacheBlocks pages are shared out evenly
+     * among shardCount shards, each with at least one page, and every shard
+     * gets its own policy of the named kind.
+     */
+    public ConcurrentCache( int blockSize, int cacheBlocks, String policyName,
+                            int shardCount ) {
+        this( blockSize, cacheBlocks, policyName, shardCount,
+              ReadAhead.DEFAULT_WINDOW );
+    }
+
+    public ConcurrentCache( int blockSize, int cacheBlocks, String policyName,
+                            int shardCount, int readAhead ) {
+        this.blockSize = blockSize;
+        this.readAhead = new ReadAhead( blockSize, readAhead );
+        if ( Cache.newPolicy( policyName, 1 ) == null ) {
+            SysLib.cerr( "threadOS: unknown cache policy " + policyName +
+                         ", using " + Cache.DEFAULT_POLICY + "\n" );
+            policyName = Cache.DEFAULT_POLICY;
+        }
+        shards = new Shard[ Math.max( 1, shardCount ) ];
+        int pages = Math.max( 1, cacheBlocks / shards.length );
+        for ( int i = 0; i < shards.length; i++ ) {
+            shards[i] = new Shard( pages, blockSize,
+                                   Cache.newPolicy( policyName, pages ) );
+        }
+        pageCount = pages * shards.length;
+    }
+
+    public int getShards( ) {
+        return shards.length;
+    }
+
+    // -------------------------------------------------------------------------
+    // read( int blockId, byte buffer[] )
+    /*
+     * SUMMARY
+     * This function copies blockId into buffer. A hit takes no lock. A miss
+     * locks the shard, looks again in case another thread loaded the block
+     * meanwhile, and then reads it from the disk into a page.
+     */
+    public boolean read( int blockId, byte buffer[] ) {
+        if ( blockId < 0 ) {
+            SysLib.cerr( "threadOS: a wrong blockId for cread\n" );
+            return false;
+        }
+        sample( blockId );
+        if ( readHit( blockId, buffer, 0 ) ) {
+            return true;
+        }
+        ReadAhead.Fetch fetch = readMiss( blockId, buffer, null );
+        while ( fetch != null && fetch != Cache.READ_FAILED ) {
+            readAhead.await( fetch );
+            fetch = readMiss( blockId, buffer, fetch );
+        }
+        return fetch == null;
+    }
+
+    // -------------------------------------------------------------------------
+    // readMiss( int blockId, byte buffer[], ReadAhead.Fetch waited )
+    /*
+     * SUMMARY
+     * This function is Cache.readLocked( ) under the shard lock. It reads
+     * blockId into buffer and returns null, or returns the Fetch to wait
+     * for first if blockId is being read ahead and that is not the Fetch
+     * already waited for. It returns Cache.READ_FAILED, and caches
+     * nothing, if the disk cannot read the block.
+     */
+    private ReadAhead.Fetch readMiss( int blockId, byte buffer[],
+                                      ReadAhead.Fetch waited ) {
+        Shard shard = shardOf( blockId );
+        Kernel.acquire( shard.lock );
+        try {
+            if ( readHit( blockId, buffer, 0 ) ) {
+                return null;
+            }
+            ReadAhead.Fetch fetch = readAhead.find( blockId );
+            if ( waited == null ) {
+                missed( shard, blockId );
+            }
+            if ( fetch != null && fetch != waited && !fetch.isDone( ) ) {
+                return fetch;
+            }
+            if ( ( fetch == null ||
+                   !readAhead.take( fetch, blockId, buffer ) ) &&
+                 SysLib.rawread( blockId, buffer ) != Kernel.OK ) {
+                return Cache.READ_FAILED;
+            }
+            Frame frame = claim( shard, blockId, null );
+            misses.increment( );
+            install( shard, frame, blockId, buffer, 0, false );
+            return null;
+        } finally {
+            shard.lock.unlock( );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // missed( Shard shard, int blockId )
+    /*
+     * SUMMARY
+     * This function tells the ReadAhead about a miss in shard, whose lock
+     * the caller holds. A window it starts ends with the span of blockId,
+     * or with the next span if that shard's lock is free right away; the
+     * lock is only tried, so shards locked out of order cannot deadlock.
+     * Then every block of the window is in a locked shard, and none of them
+     * can be cached or written back until the copies of those already
+     * cached are dropped.
+     */
+    private void missed( Shard shard, int blockId ) {
+        if ( shards.length == 1 ) {
+            cancelCached( readAhead.missed( blockId ) );
+            return;
+        }
+        int limit = ( blockId / SHARD_SPAN + 1 ) * SHARD_SPAN;
+        Shard next = shardOf( limit );
+        boolean both = next.lock.tryLock( );
+        try {
+            if ( both ) {
+                limit += SHARD_SPAN;
+            }
+            cancelCached( readAhead.missed( blockId, limit ) );
+        } finally {
+            if ( both ) {
+                next.lock.unlock( );
+            }
+        }
+    }
+
+    // dropping the copies read ahead of blocks that were cached, and so
+    // may be newer than the disk, when the read-ahead started
+    private void cancelCached( ReadAhead.Fetch started ) {
+        if ( started == null ) {
+            return;
+        }
+        for ( int i = 0; i < started.getCount( ); i++ ) {
+            Integer blockId = Integer.valueOf( started.getFirst( ) + i );
+            if ( shardOf( blockId.intValue( ) ).index.containsKey( blockId ) ) {
+                readAhead.cancel( blockId.intValue( ) );
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // write( int blockId, byte buffer[] )
+    /*
+     * SUMMARY
+     * This function copies buffer into the cached blockId and marks it
+     * dirty. A hit locks only its Frame; a miss takes a page like read( )
+     * but does not read the disk.
+     */
+    public boolean write( int blockId, byte buffer[] ) {
+        if ( blockId < 0 ) {
+            SysLib.cerr( "threadOS: a wrong blockId for cwrite\n" );
+            return false;
+        }
+        sample( blockId );
+        if ( writeHit( blockId, buffer, 0, true ) ) {
+            hits.increment( );
+            return true;
+        }
+        Shard shard = shardOf( blockId );
+        Kernel.acquire( shard.lock );
+        try {
+            if ( writeHit( blockId, buffer, 0, true ) ) {
+                hits.increment( );
+                return true;
+            }
+            Frame frame = claim( shard, blockId, null );
+            misses.increment( );
+            install( shard, frame, blockId, buffer, 0, true );
+            readAhead.cancel( blockId );
+            return true;
+        } finally {
+            shard.lock.unlock( );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // readv( int blocks[], byte buffer[] )
+    /*
+     * SUMMARY
+     * This function is Cache.readv( ) for many threads. The hits are copied
+     * without locks. The shards of the misses are then locked, and the
+     * blocks still missing are read from the disk in one vectored request.
+     * Their dirty victims are written back together.
+     */
+    public boolean readv( int blocks[], byte buffer[] ) {
+        if ( !checkVector( blocks, buffer, "creadv" ) ) {
+            return false;
+        }
+        for ( int i = 0; i < blocks.length; i++ ) {
+            sample( blocks[i] );
+        }
+        boolean[] locked = new boolean[ shards.length ];
+        int missCount = 0;
+        for ( int i = 0; i < blocks.length; i++ ) {
+            if ( !readHit( blocks[i], buffer, i * blockSize ) ) {
+                locked[ shardIndex( blocks[i] ) ] = true;
+                missCount++;
+            }
+        }
+        if ( missCount == 0 ) {
+            return true;
+        }
+
+        lockShards( locked );
+        try {
+            int[] missing = new int[ blocks.length ]; //Indices into blocks
+            missCount = 0;
+            for ( int i = 0; i < blocks.length; i++ ) {
+                if ( locked[ shardIndex( blocks[i] ) ] &&
+                     !readHit( blocks[i], buffer, i * blockSize ) ) {
+                    missing[missCount++] = i;
+                }
+            }
+            if ( missCount == 0 ) {
+                return true;
+            }
+            int[] missBlocks = new int[missCount];
+            byte[] missData = new byte[ missCount * blockSize ];
+            for ( int j = 0; j < missCount; j++ ) {
+                missBlocks[j] = blocks[ missing[j] ];
+            }
+            if ( SysLib.rawreadv( missBlocks, missData ) != Kernel.OK ) {
+                return false;
+            }
+            misses.add( missCount );
+            for ( int j = 0; j < missCount; j++ ) {
+                System.arraycopy( missData, j * blockSize,
+                                  buffer, missing[j] * blockSize, blockSize );
+            }
+
+            TreeMap victims = new TreeMap( );
+            int firstCached = Math.max( 0, missCount - pageCount );
+            for ( int j = firstCached; j < missCount; j++ ) {
+                Shard shard = shardOf( missBlocks[j] );
+                if ( shard.index.containsKey(
+                         Integer.valueOf( missBlocks[j] ) ) ) {
+                    continue;                        //Listed twice
+                }
+                Frame frame = claim( shard, missBlocks[j], victims );
+                install( shard, frame, missBlocks[j], missData, j * blockSize,
+                         false );
+            }
+            Cache.writeRuns( victims, blockSize );
+            writeBacks.add( victims.size( ) );
+            return true;
+        } finally {
+            unlockShards( locked );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // writev( int blocks[], byte buffer[] )
+    /*
+     * SUMMARY
+     * This function is Cache.writev( ): the blocks go through to the disk in
+     * one request, and the pages caching any of them are updated and become
+     * clean. Their shards stay locked meanwhile. Otherwise a dirty older
+     * copy could be evicted and written back over the new data.
+     */
+    public boolean writev( int blocks[], byte buffer[] ) {
+        if ( !checkVector( blocks, buffer, "cwritev" ) ) {
+            return false;
+        }
+        boolean[] locked = new boolean[ shards.length ];
+        for ( int i = 0; i < blocks.length; i++ ) {
+            locked[ shardIndex( blocks[i] ) ] = true;
+        }
+        lockShards( locked );
+        try {
+            if ( SysLib.rawwritev( blocks, buffer ) != Kernel.OK ) {
+                return false;
+            }
+            for ( int i = 0; i < blocks.length; i++ ) {
+                if ( !writeHit( blocks[i], buffer, i * blockSize, false ) ) {
+                    readAhead.cancel( blocks[i] );
+                }
+            }
+            return true;
+        } finally {
+            unlockShards( locked );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // sync( ), flush( )
+    /*
+     * SUMMARY
+     * sync( ) writes back every dirty page, adjacent blocks in one request,
+     * and then syncs the disk. flush( ) does the same and empties every
+     * shard. Both hold all the shard locks, so no page is evicted or loaded
+     * while they run. Hits go on without locks; a write hit that comes after
+     * sync( ) copied its page leaves it dirty for the next time.
+     */
+    public void sync( ) {
+        boolean[] all = new boolean[ shards.length ];
+        Arrays.fill( all, true );
+        lockShards( all );
+        try {
+            TreeMap copies = takeDirty( false );
+            Cache.writeRuns( copies, blockSize );
+            writeBacks.add( copies.size( ) );
+            SysLib.sync( );
+        } finally {
+            unlockShards( all );
+        }
+    }
+
+    public void flush( ) {
+        boolean[] all = new boolean[ shards.length ];
+        Arrays.fill( all, true );
+        lockShards( all );
+        try {
+            TreeMap copies = takeDirty( true );
+            Cache.writeRuns( copies, blockSize );
+            writeBacks.add( copies.size( ) );
+            SysLib.sync( );
+        } finally {
+            unlockShards( all );
+        }
+    }
+
+    public int getPages( ) {
+        return pageCount;
+    }
+
+    // the dirty pages, counted without locks, so only a hint
+    public int getDirty( ) {
+        int dirty = 0;
+        for ( int s = 0; s < shards.length; s++ ) {
+            Frame[] frames = shards[s].frames;
+            for ( int i = 0; i < frames.length; i++ ) {
+                if ( frames[i].dirty ) {
+                    dirty++;
+                }
+            }
+        }
+        return dirty;
+    }
+
+    // -------------------------------------------------------------------------
+    // writeBackOld( long dirtiedBefore, int keep )
+    /*
+     * SUMMARY
+     * This function is Cache.writeBackOld( ) one shard at a time, each
+     * keeping its share of keep dirty, so the Flusher holds one shard lock
+     * at once. A shard stays locked while its blocks are written, as in
+     * sync( ). A write hit meanwhile makes its page dirty again, to be
+     * written back after.
+     */
+    public int writeBackOld( long dirtiedBefore, int keep ) {
+        int written = 0;
+        int keepEach = keep / shards.length;
+        for ( int s = 0; s < shards.length; s++ ) {
+            Shard shard = shards[s];
+            Kernel.acquire( shard.lock );
+            try {
+                TreeMap copies = takeOld( shard, dirtiedBefore, keepEach );
+                Cache.writeRuns( copies, blockSize );
+                written += copies.size( );
+                writeBacks.add( copies.size( ) );
+            } finally {
+                shard.lock.unlock( );
+            }
+        }
+        return written;
+    }
+
+    // marking clean and returning, as a map from block id to data, the
+    // pages of shard that writeBackOld( ) writes; under the shard lock
+    private TreeMap takeOld( Shard shard, long dirtiedBefore, int keep ) {
+        Vector dirty = new Vector( );
+        for ( int i = 0; i < shard.frames.length; i++ ) {
+            if ( shard.frames[i].dirty ) {
+                dirty.add( shard.frames[i] );
+            }
+        }
+        final long[] dirtied = new long[ shard.frames.length ];
+        for ( int n = 0; n < dirty.size( ); n++ ) {
+            Frame frame = ( Frame )dirty.elementAt( n );
+            long stamp = frame.lock.readLock( );
+            dirtied[frame.page] = frame.dirtied;
+            frame.lock.unlockRead( stamp );
+        }
+        Collections.sort( dirty, new Comparator( ) {
+            public int compare( Object a, Object b ) {
+                long x = dirtied[ ( ( Frame )a ).page ];
+                long y = dirtied[ ( ( Frame )b ).page ];
+                return ( x < y ) ? -1 : ( x > y ) ? 1 : 0;
+            }
+        } );
+
+        TreeMap copies = new TreeMap( );
+        for ( int n = 0; n < dirty.size( ); n++ ) {
+            Frame frame = ( Frame )dirty.elementAt( n );
+            if ( dirtied[frame.page] >= dirtiedBefore &&
+                 dirty.size( ) - n <= keep ) {
+                break;                               //Young, and few enough
+            }
+            long stamp = frame.lock.writeLock( );
+            if ( frame.dirty && frame.blockId != INVALID ) {
+                copies.put( Integer.valueOf( frame.blockId ), frame.data );
+                frame.dirty = false;
+            }
+            frame.lock.unlockWrite( stamp );
+        }
+        return copies;
+    }
+
+    // -------------------------------------------------------------------------
+    // setBudget( int pages ), getStats( long stats[] )
+    /*
+     * SUMMARY
+     * setBudget( ) lets the cache grow and shrink between a page a shard and
+     * pages pages from now on. getStats( ) adds up the counters without
+     * locks, so they may be a hit or two apart.
+     */
+    public void setBudget( int pages ) {
+        budget = Math.max( 0, pages );
+        curve = ( budget > 0 ) ? new MissRatioCurve( budget ) : null;
+        if ( budget > 0 && pageCount > budget ) {
+            resize( budget, true );
+        }
+    }
+
+    public void getStats( long stats[] ) {
+        long[] all = new long[STATS];
+        all[STAT_PAGES] = pageCount;
+        all[STAT_HITS] = hits.sum( );
+        all[STAT_MISSES] = misses.sum( );
+        all[STAT_EVICTIONS] = evictions.sum( );
+        all[STAT_WRITE_BACKS] = writeBacks.sum( );
+        all[STAT_RESIZES] = resizes;
+        MissRatioCurve curve = this.curve;
+        double ratio = ( curve != null ) ? curve.missRatio( pageCount ) : -1;
+        all[STAT_MISS_RATIO] = ( ratio < 0 ) ? -1 : Math.round( ratio * 1000 );
+        all[STAT_BUDGET] = budget;
+        System.arraycopy( all, 0, stats, 0, Math.min( STATS, stats.length ) );
+    }
+
+    // -------------------------------------------------------------------------
+    // sample( int blockId )
+    /*
+     * SUMMARY
+     * This function adds an access to blockId, if it is sampled, to the
+     * calling thread's batch, and hands a full batch to the miss-ratio
+     * curve. Now and then it resizes the cache to the size the curve
+     * suggests. It is called before any lock is taken.
+     */
+    private void sample( int blockId ) {
+        MissRatioCurve curve = this.curve;
+        if ( curve == null || !curve.isSampled( blockId ) ) {
+            return;
+        }
+        shardOf( blockId ).sampled.increment( );
+        int[] batch = ( int[] )batches.get( );
+        if ( batch == null ) {
+            batch = new int[ 1 + BATCH ];
+            batches.set( batch );
+        }
+        batch[ ++batch[0] ] = blockId;
+        if ( batch[0] < BATCH ) {
+            return;
+        }
+        batch[0] = 0;
+        if ( !curve.access( batch, 1, BATCH ) ) {
+            return;
+        }
+        int size = curve.bestSize( shards.length );
+        if ( size > 0 ) {
+            resize( size, false );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // resize( int size, boolean always )
+    /*
+     * SUMMARY
+     * This function gives every shard its share of size pages, holding all
+     * the shard locks: as much as its share of the accesses sampled since
+     * the last call, and at least one page. Unless always, it does nothing
+     * if that moves less than an eighth of the pages. The dirty blocks that
+     * lose their page are written back together.
+     */
+    private void resize( int size, boolean always ) {
+        boolean[] all = new boolean[ shards.length ];
+        Arrays.fill( all, true );
+        lockShards( all );
+        try {
+            long[] sampled = new long[ shards.length ];
+            long total = 0;
+            for ( int s = 0; s < shards.length; s++ ) {
+                sampled[s] = shards[s].sampled.sumThenReset( );
+                total += sampled[s];
+            }
+            int[] shares = new int[ shards.length ];
+            int moved = 0;
+            for ( int s = 0; s < shards.length; s++ ) {
+                shares[s] = ( total > 0 ) ? ( int )( size * sampled[s] / total )
+                    : size / shards.length;
+                shares[s] = Math.max( 1, shares[s] );
+                moved += Math.abs( shares[s] - shards[s].frames.length );
+            }
+            if ( !always && moved * 8 < pageCount ) {
+                return;
+            }
+
+            TreeMap victims = new TreeMap( );
+            int pages = 0;
+            for ( int s = 0; s < shards.length; s++ ) {
+                if ( shares[s] != shards[s].frames.length ) {
+                    resize( shards[s], shares[s], victims );
+                }
+                pages += shards[s].frames.length;
+            }
+            Cache.writeRuns( victims, blockSize );
+            writeBacks.add( victims.size( ) );
+            pageCount = pages;
+            resizes++;
+        } finally {
+            unlockShards( all );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // resize( Shard shard, int pages, TreeMap victims )
+    /*
+     * SUMMARY
+     * This function rebuilds shard with pages new Frames and a fresh policy.
+     * The blocks used last are told to the policy, the least recent first,
+     * as misses, and copied into the Frames it picks. Each old Frame is
+     * emptied under its write lock as its block is taken, so no write hit
+     * is lost. Dirty blocks that lose their page are added to victims.
+     */
+    private void resize( Shard shard, int pages, TreeMap victims ) {
+        replayHits( shard );
+        Vector cached = new Vector( );
+        for ( int i = 0; i < shard.frames.length; i++ ) {
+            if ( shard.frames[i].blockId != INVALID ) {
+                cached.add( shard.frames[i] );
+            }
+        }
+        Collections.sort( cached, new Comparator( ) {
+            public int compare( Object a, Object b ) {
+                long x = ( ( Frame )a ).lastUse;
+                long y = ( ( Frame )b ).lastUse;
+                return ( x < y ) ? -1 : ( x > y ) ? 1 : 0;
+            }
+        } );
+
+        Frame[] frames = new Frame[pages];
+        for ( int i = 0; i < pages; i++ ) {
+            frames[i] = new Frame( i, blockSize );
+        }
+        shard.frames = frames;
+        shard.policy = Cache.newPolicy( shard.policy.getName( ), pages );
+        shard.used = 0;
+
+        int dropped = Math.max( 0, cached.size( ) - pages );
+        for ( int n = 0; n < cached.size( ); n++ ) {
+            Frame old = ( Frame )cached.elementAt( n );
+            long stamp = old.lock.writeLock( );
+            int blockId = old.blockId;
+            byte[] data = old.data;
+            boolean dirty = old.dirty;
+            long dirtied = old.dirtied;
+            old.blockId = INVALID;
+            old.dirty = false;
+            old.lock.unlockWrite( stamp );
+            shard.index.remove( Integer.valueOf( blockId ) );
+
+            if ( n < dropped ) {
+                if ( dirty ) {
+                    victims.put( Integer.valueOf( blockId ), data );
+                }
+                evictions.increment( );
+                continue;
+            }
+            Frame frame = claim( shard, blockId, victims );
+            install( shard, frame, blockId, data, 0, dirty );
+            frame.dirtied = dirtied;
+            frame.lastUse = old.lastUse;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // takeDirty( boolean invalidate )
+    /*
+     * SUMMARY
+     * This function marks every dirty page clean and returns a map from
+     * their block ids to their data. With invalidate it also empties every
+     * page. A page is copied and emptied under one write lock, so a write
+     * hit either lands before and is written back, or finds the page empty
+     * and waits for the shard. Called with all the shard locks held.
+     */
+    private TreeMap takeDirty( boolean invalidate ) {
+        TreeMap copies = new TreeMap( );
+        for ( int s = 0; s < shards.length; s++ ) {
+            Shard shard = shards[s];
+            for ( int i = 0; i < shard.frames.length; i++ ) {
+                Frame frame = shard.frames[i];
+                long stamp = frame.lock.writeLock( );
+                int blockId = frame.blockId;
+                if ( blockId != INVALID && frame.dirty ) {
+                    copies.put( Integer.valueOf( blockId ), frame.data );
+                    frame.dirty = false;
+                }
+                if ( invalidate ) {
+                    frame.blockId = INVALID;
+                }
+                frame.lock.unlockWrite( stamp );
+                if ( invalidate && blockId != INVALID ) {
+                    frame.hit = false;
+                    shard.policy.removed( frame.page );
+                }
+            }
+            if ( invalidate ) {
+                shard.index.clear( );
+                shard.used = 0;
+            }
+        }
+        return copies;
+    }
+
+    // -------------------------------------------------------------------------
+    // readHit( int blockId, byte buffer[], int offset )
+    /*
+     * SUMMARY
+     * This function is the lock-free hit path. It copies blockId into
+     * buffer at offset and returns true if an optimistic read of its Frame
+     * validates, or returns false.
+     */
+    private boolean readHit( int blockId, byte buffer[], int offset ) {
+        Frame frame = ( Frame )shardOf( blockId ).index.get(
+            Integer.valueOf( blockId ) );
+        if ( frame == null ) {
+            return false;
+        }
+        long stamp = frame.lock.tryOptimisticRead( );
+        byte[] data = frame.data;
+        if ( frame.blockId != blockId || !frame.lock.validate( stamp ) ) {
+            return false;
+        }
+        System.arraycopy( data, 0, buffer, offset, blockSize );
+        if ( !frame.hit ) {
+            frame.hit = true;
+        }
+        hits.increment( );
+        return true;
+    }
+
+    // -------------------------------------------------------------------------
+    // writeHit( int blockId, byte buffer[], int offset, boolean dirty )
+    /*
+     * SUMMARY
+     * This function puts a copy of buffer at offset into the page caching
+     * blockId, under the Frame's write lock only, and then drops a copy
+     * read ahead. It returns false if the block is not cached.
+     */
+    private boolean writeHit( int blockId, byte buffer[], int offset,
+                              boolean dirty ) {
+        Frame frame = ( Frame )shardOf( blockId ).index.get(
+            Integer.valueOf( blockId ) );
+        if ( frame == null ) {
+            return false;
+        }
+        byte[] copy = new byte[blockSize];
+        System.arraycopy( buffer, offset, copy, 0, blockSize );
+        long stamp = frame.lock.writeLock( );
+        try {
+            if ( frame.blockId != blockId ) {
+                return false;
+            }
+            frame.data = copy;
+            if ( dirty && !frame.dirty ) {
+                frame.dirtied = VirtualClock.nanoTime( );
+            }
+            frame.dirty = dirty;
+        } finally {
+            frame.lock.unlockWrite( stamp );
+        }
+        readAhead.cancel( blockId );
+        if ( !frame.hit ) {
+            frame.hit = true;
+        }
+        return true;
+    }
+
+    // -------------------------------------------------------------------------
+    // claim( Shard shard, int blockId, TreeMap victims )
+    /*
+     * SUMMARY
+     * This function finds a page in shard for blockId, holding the shard
+     * lock. It replays the hits to the policy and takes the page it picks.
+     * The page's old block is unindexed and the page emptied. A dirty old
+     * copy is written back at once, or added to victims if that is not
+     * null. Nobody can read the old block from the disk before that,
+     * because it belongs to this shard and the shard is locked.
+     */
+    private Frame claim( Shard shard, int blockId, TreeMap victims ) {
+        replayHits( shard );
+        int page = shard.policy.miss( blockId, freePage( shard ) );
+        Frame frame = shard.frames[page];
+
+        long stamp = frame.lock.writeLock( );
+        int oldBlock = frame.blockId;
+        byte[] oldData = frame.data;
+        boolean wasDirty = frame.dirty;
+        frame.blockId = INVALID;
+        frame.dirty = false;
+        frame.lock.unlockWrite( stamp );
+
+        if ( oldBlock == INVALID ) {
+            shard.used++;
+            return frame;
+        }
+        shard.index.remove( Integer.valueOf( oldBlock ) );
+        evictions.increment( );
+        if ( wasDirty ) {
+            if ( victims != null ) {
+                victims.put( Integer.valueOf( oldBlock ), oldData );
+            } else {
+                SysLib.rawwrite( oldBlock, oldData );
+                writeBacks.increment( );
+            }
+        }
+        return frame;
+    }
+
+    // telling shard's policy about the hits flagged since the last time
+    private void replayHits( Shard shard ) {
+        for ( int i = 0; i < shard.frames.length; i++ ) {
+            Frame frame = shard.frames[i];
+            if ( frame.hit ) {
+                frame.hit = false;
+                if ( frame.blockId != INVALID ) {
+                    shard.policy.hit( frame.page );
+                    frame.lastUse = ++shard.ticks;
+                }
+            }
+        }
+    }
+
+    private void install( Shard shard, Frame frame, int blockId,
+                          byte buffer[], int offset, boolean dirty ) {
+        byte[] copy = new byte[blockSize];
+        System.arraycopy( buffer, offset, copy, 0, blockSize );
+        long stamp = frame.lock.writeLock( );
+        frame.data = copy;
+        frame.dirty = dirty;
+        frame.dirtied = VirtualClock.nanoTime( );
+        frame.blockId = blockId;
+        frame.lock.unlockWrite( stamp );
+        frame.lastUse = ++shard.ticks;
+        shard.index.put( Integer.valueOf( blockId ), frame );
+    }
+
+    private int freePage( Shard shard ) {
+        if ( shard.used == shard.frames.length ) {
+            return -1;
+        }
+        for ( int i = 0; i < shard.frames.length; i++ ) {
+            if ( shard.frames[i].blockId == INVALID ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean checkVector( int blocks[], byte buffer[], String call ) {
+        if ( blocks == null || blocks.length == 0 || buffer == null ||
+             buffer.length < blocks.length * blockSize ) {
+            SysLib.cerr( "threadOS: a wrong buffer for " + call + "\n" );
+            return false;
+        }
+        for ( int i = 0; i < blocks.length; i++ ) {
+            if ( blocks[i] < 0 ) {
+                SysLib.cerr( "threadOS: a wrong blockId for " + call + "\n" );
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int shardIndex( int blockId ) {
+        return ( blockId / SHARD_SPAN ) % shards.length;
+    }
+
+    private Shard shardOf( int blockId ) {
+        return shards[ shardIndex( blockId ) ];
+    }
+
+    // locking the chosen shards in ascending order, and unlocking them
+    private void lockShards( boolean[] which ) {
+        for ( int s = 0; s < shards.length; s++ ) {
+            if ( which[s] ) {
+                Kernel.acquire( shards[s].lock );
+            }
+        }
+    }
+
+    private void unlockShards( boolean[] which ) {
+        for ( int s = shards.length - 1; s >= 0; s-- ) {
+            if ( which[s] ) {
+                shards[s].lock.unlock( );
+            }
+        }
+    }
+}
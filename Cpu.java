@@ -0,0 +1,562 @@
+// --------------------------------Cpu.java-------------------------------------
+/*
+ * PURPOSE OF FILE
+ * This file holds one simulated CPU of the scheduler. Each Cpu owns a
+ * SchedulingPolicy that holds its ready TCBs and decides which one runs next
+ * and for how long (see SchedulingPolicy.java). The Cpu itself only does the
+ * mechanics: it grants and revokes run permits, times each quantum, pauses a
+ * thread when the policy wants a better one to run first, and parks when it
+ * has nothing to do. The Scheduler creates one Cpu per simulated core and
+ * balances new TCBs across them.
+ *
+ * Quantum deadlines are kept by the scheduler's TimerWheel, so quanta well
+ * below a millisecond work. Every slice is timed with System.nanoTime( ) and
+ * its error against the requested length is recorded. Under the virtual
+ * clock (see VirtualClock.java) quanta are kept on that clock instead, the
+ * Cpu counts as active except while it sleeps or idles, and it wakes up
+ * the threads it dispatches as active.
+ *
+ * TRACING
+ * If the scheduler turned tracing on, every dispatch, pause, preemption,
+ * demotion and exit is recorded in this Cpu's TraceBuffer.
+ *
+ * WORK STEALING
+ * When its policy is empty, a Cpu tries to steal a waiting TCB from the
+ * busiest other Cpu before it parks. The TCBs a Cpu is running or has paused
+ * in processNewTcb( ) are kept in busy, and the victim's policy never gives
+ * those away.
+ */
+
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+public class Cpu implements Runnable {
+    private Scheduler scheduler;
+    private int id;
+    private SchedulingPolicy policy;                 //Holds the ready TCBs
+    private Vector busy = new Vector( );             //Running or paused TCBs
+    private TraceBuffer trace = null;                //Null when not tracing
+    private volatile TCB running = null;             //Innermost dispatched TCB
+    private Thread thread = null;                    //Thread running this Cpu
+    private final Object idleLock = new Object( );   //Parks an idle Cpu
+    private boolean idle = false;                    //Parked, virtual clock
+    private volatile long idleTime = 0;              //Nanoseconds spent idle
+    private volatile long idleSince = 0;             //Start of current idle
+    private volatile long sliceCount = 0;            //Slices timed
+    private volatile long sliceError = 0;            //Sum of |error| in ns
+    private volatile long maxSliceError = 0;         //Worst |error| in ns
+
+    // -------------------------------------------------------------------------
+    // Cpu(Scheduler scheduler, int id, SchedulingPolicy policy)
+    /*
+     * SUMMARY
+     * This is the constructor for the Cpu class. The policy holds the TCBs
+     * that this Cpu is going to execute.
+     */
+    public Cpu( Scheduler scheduler, int id, SchedulingPolicy policy ) {
+        this.scheduler = scheduler;
+        this.id = id;
+        this.policy = policy;
+    }
+
+    // -------------------------------------------------------------------------
+    // setPolicy( SchedulingPolicy policy ), getPolicy( )
+    /*
+     * SUMMARY
+     * These functions replace and return the scheduling policy. A policy must
+     * only be replaced before the Cpu starts running.
+     */
+    public void setPolicy( SchedulingPolicy policy ) {
+        this.policy = policy;
+    }
+
+    public SchedulingPolicy getPolicy( ) {
+        return policy;
+    }
+
+    // -------------------------------------------------------------------------
+    // setTrace( TraceBuffer trace ), getTrace( )
+    /*
+     * SUMMARY
+     * These functions set and return the buffer this Cpu records its events
+     * in. A null buffer turns tracing off.
+     */
+    public void setTrace( TraceBuffer trace ) {
+        this.trace = trace;
+    }
+
+    public TraceBuffer getTrace( ) {
+        return trace;
+    }
+
+    // -------------------------------------------------------------------------
+    // getId( ), getThread( ), getIdleTime( )
+    /*
+     * SUMMARY
+     * Simple accessors for the Cpu number, the thread currently running the
+     * Cpu's dispatch loop, and the nanoseconds it has spent parked.
+     */
+    public int getId( ) {
+        return id;
+    }
+
+    public Thread getThread( ) {
+        return thread;
+    }
+
+    public long getIdleTime( ) {
+        long since = idleSince;
+        return idleTime + ( ( since != 0 ) ? System.nanoTime( ) - since : 0 );
+    }
+
+    // -------------------------------------------------------------------------
+    // getSliceCount( ), getSliceError( ), getMaxSliceError( )
+    /*
+     * SUMMARY
+     * Accessors for the quantum measurements: how many slices were timed, the
+     * sum of their absolute errors and the worst error, both in nanoseconds.
+     */
+    public long getSliceCount( ) {
+        return sliceCount;
+    }
+
+    public long getSliceError( ) {
+        return sliceError;
+    }
+
+    public long getMaxSliceError( ) {
+        return maxSliceError;
+    }
+
+    // -------------------------------------------------------------------------
+    // addTcb( TCB tcb )
+    /*
+     * SUMMARY
+     * This function is responsible for handing a new TCB to the policy and
+     * waking the Cpu up in case it is parked.
+     */
+    public void addTcb( TCB tcb ) {
+        tcb.setCpu( this );
+        policy.add( tcb );
+        wakeUp( );
+    }
+
+    // -------------------------------------------------------------------------
+    // blockTcb( TCB tcb ), endQuantum( TCB tcb )
+    /*
+     * SUMMARY
+     * blockTcb( ) is called by a TCB's own thread when it is about to wait
+     * for something, such as the end of a sleep. The TCB leaves the policy,
+     * so no CPU time is spent on it until it is added again, and its
+     * quantum ends. endQuantum( ) only does the latter: the thread loses its
+     * run permit and, if it is the one running, the Cpu stops waiting for
+     * its quantum and dispatches the next TCB right away.
+     */
+    public void blockTcb( TCB tcb ) {
+        synchronized( policy ) {
+            policy.remove( tcb );
+        }
+        endQuantum( tcb );
+    }
+
+    public void endQuantum( TCB tcb ) {
+        tcb.revokePermit( );
+        if ( running == tcb && thread != null ) {
+            VirtualClock clock = VirtualClock.get( );
+            if ( clock != null ) {
+                clock.wakeEarly( thread );
+            } else {
+                LockSupport.unpark( thread );
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // getLoad( )
+    /*
+     * SUMMARY
+     * This function returns the number of TCBs held by this Cpu's policy. The
+     * scheduler uses it to balance new TCBs and to pick a victim to steal from.
+     */
+    public int getLoad( ) {
+        return policy.size( );
+    }
+
+    // -------------------------------------------------------------------------
+    // stealFrom( Cpu victim )
+    /*
+     * SUMMARY
+     * This function is responsible for moving one waiting TCB from the
+     * victim's policy into ours. The victim's policy decides which one, and
+     * never gives up one in the victim's busy list. The TCB is taken under
+     * the victim's policy lock and added after releasing it, so two Cpus
+     * stealing from each other cannot deadlock. In between it is in our busy
+     * list, so an exit at that moment is handled as in retireTcb( ). It
+     * returns true if a TCB was moved.
+     */
+    public boolean stealFrom( Cpu victim ) {
+        TCB stolen;
+        synchronized( victim.policy ) {
+            stolen = victim.policy.steal( victim.busy );
+            if ( stolen == null ) return false;
+            busy.add( stolen );                         //Ours while in transit
+            stolen.setCpu( this );
+        }
+        synchronized( policy ) {
+            busy.remove( stolen );
+            if ( stolen.isRetired( ) ) {                //Exited in transit
+                scheduler.recycleTcb( stolen );
+                return false;
+            }
+            policy.add( stolen );
+        }
+        return true;
+    }
+
+    // -------------------------------------------------------------------------
+    // retireTcb( TCB tcb )
+    /*
+     * SUMMARY
+     * This function is called by the scheduler when it reaps an exited TCB.
+     * The TCB leaves the policy right away instead of waiting until the Cpu
+     * picks it again. It returns true if the TCB is not busy, so the caller
+     * can recycle it now. Otherwise the TCB is marked retired and the Cpu
+     * recycles it when it lets go of it in releaseTcb( ). Both sides decide
+     * under the policy lock, so exactly one of them recycles the TCB. If the
+     * TCB was stolen meanwhile, the thief retires it.
+     */
+    public boolean retireTcb( TCB tcb ) {
+        synchronized( policy ) {
+            if ( tcb.getCpu( ) == this ) {
+                policy.remove( tcb );
+                trace( TraceBuffer.EXIT, tcb, 0 );
+                tcb.setRetired( );
+                return busy.contains( tcb ) == false;
+            }
+        }
+        return tcb.getCpu( ).retireTcb( tcb );
+    }
+
+    // -------------------------------------------------------------------------
+    // releaseTcb( TCB tcb )
+    /*
+     * SUMMARY
+     * This function takes a TCB out of busy once the Cpu is done with it and
+     * recycles it if it was retired meanwhile.
+     */
+    private void releaseTcb( TCB tcb ) {
+        boolean retired;
+        synchronized( policy ) {
+            busy.remove( tcb );
+            retired = tcb.isRetired( );
+        }
+        if ( retired ) scheduler.recycleTcb( tcb );
+    }
+
+    // -------------------------------------------------------------------------
+    // wakeUp( )
+    /*
+     * SUMMARY
+     * This function is responsible for waking up this Cpu when it is parked in
+     * waitForWork( ).
+     */
+    public void wakeUp( ) {
+        synchronized( idleLock ) {
+            if ( idle ) {
+                idle = false;
+                VirtualClock.get( ).activate( );        //Active on its behalf
+            }
+            idleLock.notify( );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // waitForWork( )
+    /*
+     * SUMMARY
+     * Instead of spinning on an empty policy, an idle Cpu first tries to
+     * steal work from another Cpu and otherwise parks on idleLock until
+     * wakeUp( ) is called. The policy is checked while holding idleLock, so a
+     * TCB added between the check and the wait cannot be missed. The time
+     * spent here is accumulated into idleTime.
+     *
+     * Under the virtual clock the Cpu stops being active while it is parked,
+     * and once woken it lets everybody else finish what they are doing at
+     * the current time before it dispatches, so that it always sees the same
+     * TCBs.
+     */
+    private void waitForWork( ) {
+        VirtualClock clock = VirtualClock.get( );
+        long idleStart = System.nanoTime( );
+        idleSince = idleStart;
+        synchronized( idleLock ) {
+            while ( policy.size( ) == 0 && !scheduler.stealWork( this ) ) {
+                if ( clock != null ) {
+                    idle = true;
+                    clock.deactivate( );
+                }
+                try {
+                    idleLock.wait( );
+                } catch ( InterruptedException e ) { }
+                if ( idle ) {                           //Woken by no one
+                    idle = false;
+                    clock.activate( );
+                }
+            }
+        }
+        idleSince = 0;
+        idleTime += System.nanoTime( ) - idleStart;
+        if ( clock != null ) clock.sleepNanos( 0, VirtualClock.CPU_RANK + id );
+    }
+
+    // -------------------------------------------------------------------------
+    // sleepCpu( TCB currentTCB, int microseconds )
+    /*
+     * SUMMARY
+     * This function is responsible for sleeping the Cpu's dispatch loop on the
+     * scheduler's timer (or the virtual clock) while the dispatched thread 
+     * uses its time slice. The sleep ends early if the thread gives up its
+     * run permit by blocking or exiting. It returns how many microseconds the
+     * thread had, and for a full slice measures how long it really was and
+     * records the error.
+     *
+     * Under the virtual clock the Cpu first lets the thread run until it
+     * waits for something, since that takes no virtual time at all, and only
+     * starts the slice if the thread still holds its permit.
+     */
+    private int sleepCpu( TCB currentTCB, int microseconds ) {
+        long wanted = microseconds * 1000L;
+        long start = VirtualClock.nanoTime( );
+        VirtualClock clock = VirtualClock.get( );
+        if ( clock != null ) {
+            clock.sleepNanos( 0, VirtualClock.CPU_RANK + id );
+            if ( currentTCB.hasPermit( ) ) {
+                clock.sleepNanos( wanted, VirtualClock.CPU_RANK + id );
+            }
+        } else {
+            TimerWheel.Timeout timeout = 
+                scheduler.getTimer( ).unparkLater( thread, wanted );
+            while ( !timeout.isExpired( ) && currentTCB.hasPermit( ) ) {
+                LockSupport.park( this );
+            }
+            timeout.cancel( );
+        }
+        long elapsed = VirtualClock.nanoTime( ) - start;
+        if ( currentTCB.hasPermit( ) == false ) {
+            return ( int )Math.min( elapsed / 1000, microseconds );
+        }
+        long error = Math.abs( elapsed - wanted );
+        sliceError += error;
+        sliceCount++;
+        if ( error > maxSliceError ) maxSliceError = error;
+        return microseconds;
+    }
+
+    // -------------------------------------------------------------------------
+    // run()
+    /*
+     * SUMMARY
+     * This is the dispatch loop of the Cpu. It runs indefinetly, processing
+     * whatever TCB the policy picks. When the policy is empty, it parks in
+     * waitForWork( ).
+     */
+    public void run( ) {
+        thread = Thread.currentThread( );
+        while ( true ) {
+            try {
+                if(policy.size() == 0) {
+                    waitForWork();                       //Steal or park
+                    continue;                            //Back to top
+                }
+                TCB next = pickNext();                   //Ask the policy
+                if(next != null) processTcb(next);       //Process the TCB
+            } catch ( NullPointerException e3 ) { };
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // pickNext( )
+    /*
+     * SUMMARY
+     * This function asks the policy for the next TCB and adds it to busy in
+     * the same step, under the policy's lock, so no other Cpu can steal it in
+     * between. It returns null if there is nothing to run that is not busy
+     * already.
+     */
+    private TCB pickNext( ) {
+        synchronized( policy ) {
+            TCB next = policy.pickNext( );
+            if ( next == null || busy.contains( next ) ) return null;
+            busy.add( next );
+            return next;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // processTcb(TCB currentTCB)
+    /*
+     * SUMMARY
+     * This function replaces the old processLevel( ). It lets the TCB run for
+     * the quantum the policy gives it, in steps of the policy's check
+     * interval. Between two steps, if the policy says a better TCB is
+     * waiting, the TCB is paused while processNewTcb( ) runs that one. When
+     * the quantum is used up, the policy is told so it can requeue the TCB.
+     * If the thread gives up its permit first (it blocked or exited), the
+     * quantum ends and the policy is told how much of it was used; a blocked
+     * TCB is not in the policy any more.
+     *
+     * SIDE NOTE
+     * If a TCB has finished its CPU burst, it is reaped and the function
+     * returns right away so that the rest of the processing code does not
+     * get executed.
+     */
+    private void processTcb(TCB currentTCB){
+        TCB outer = running;
+        try {
+            if(threadIsDead(currentTCB)) return;
+            running = currentTCB;
+
+            Thread current = currentTCB.getThread( );   //grab thread object
+            int quantum = policy.getQuantum(currentTCB);
+            int check = policy.getCheckInterval(currentTCB);
+            currentTCB.markDispatched(VirtualClock.nanoTime());
+            trace(TraceBuffer.DISPATCH, currentTCB, 0);
+            getThreadGoing(currentTCB);                 //start/resume thread
+
+            int used = 0;
+            while ( used < quantum ) {
+                int step = quantum - used;
+                if ( check > 0 && check < step ) step = check;
+                used += sleepCpu(currentTCB, step);     //let the thread run
+                if ( currentTCB.hasPermit( ) == false ) break;  //it gave up
+                if ( used < quantum && policy.shouldPreempt(currentTCB) ) {
+                    processNewTcb(currentTCB);
+                }
+            }
+
+            if ( currentTCB.hasPermit( ) ) {
+                finishProcessingTcb(current, currentTCB, used);
+            } else {
+                currentTCB.markPreempted(VirtualClock.nanoTime());
+                trace(TraceBuffer.PREEMPT, currentTCB, 0);
+                policy.stopped(currentTCB, used);       //charge what it used
+            }
+        } finally {
+            running = outer;
+            releaseTcb(currentTCB);                     //recycle if it exited
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // processNewTcb(TCB currentTCB)
+    /*
+     * SUMMARY
+     * For clarity's sake, this function provides processTcb( ) with the
+     * ability to process the TCB that the policy prefers over the current one.
+     * The current TCB loses its run permit while that TCB is served and gets
+     * it back after.
+     */
+    private void processNewTcb(TCB currentTCB){
+        Thread current = currentTCB.getThread( );
+        if (current != null && isRunnable(currentTCB)){
+            currentTCB.revokePermit();                  //preempt the thread
+            currentTCB.markPreempted(VirtualClock.nanoTime());
+            trace(TraceBuffer.PAUSE, currentTCB, 0);
+            TCB next = pickNext();
+            if (next != null) processTcb(next);         //process new TCB
+            currentTCB.markDispatched(VirtualClock.nanoTime());
+            trace(TraceBuffer.DISPATCH, currentTCB, 0);
+            currentTCB.grantPermit();                   //resume the old TCB
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // finishProcessingTcb(Thread current, TCB currentTCB, int used)
+    /*
+     * SUMMARY
+     * This function is called by processTcb( ). It is responsible for
+     * finishing up the processing of each tcb: the time it was dispatched is
+     * charged to it, the thread loses its run permit and the policy is told
+     * how long it ran, so it can move the TCB to wherever it goes next.
+     */
+    private void finishProcessingTcb(Thread current, TCB currentTCB, int used){
+        currentTCB.markPreempted(VirtualClock.nanoTime());  //charge CPU time
+        trace(TraceBuffer.PREEMPT, currentTCB, 0);
+        if ( current != null && isRunnable( currentTCB ) ) {
+            currentTCB.revokePermit();                  //preempt the thread
+            long demotions = currentTCB.getDemotions();
+            policy.preempted(currentTCB, used);         //requeue the TCB
+            if (currentTCB.getDemotions() > demotions) {
+                trace(TraceBuffer.DEMOTE, currentTCB, demotions + 1);
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // isRunnable(TCB currentTCB)
+    /*
+     * SUMMARY
+     * A TCB whose thread is alive and that has not been marked terminated.
+     * A thread that is on its way out is marked before it ends, so that the
+     * Cpu does not depend on when the JVM finishes tearing the thread down.
+     */
+    private boolean isRunnable(TCB currentTCB){
+        return currentTCB.getTerminated( ) == false &&
+               currentTCB.getThread( ).isAlive( );
+    }
+
+    // -------------------------------------------------------------------------
+    // threadIsDead(TCB currentTCB)
+    /*
+     * SUMMARY
+     * This is a neat function that lets the callign function know if the
+     * current thread has finished it's CPU burst. Exiting threads are reaped
+     * by Scheduler.deleteThread( ) as they exit, so this only catches a
+     * thread that died some other way, or a TCB picked while it is being
+     * reaped. Such a TCB leaves the policy at once, so the Cpu does not keep
+     * picking it, and is reaped here, which is harmless if it already was.
+     */
+    private boolean threadIsDead(TCB currentTCB){
+        Thread thread = currentTCB.getThread( );
+        if ( currentTCB.getTerminated( ) == true ||     //if TCB is dead, run
+             thread == null ||
+             thread.getState( ) == Thread.State.TERMINATED ) {
+            policy.remove( currentTCB );                //remove TCB from policy
+            scheduler.reapTcb( thread, currentTCB );    //free its Tid
+            return true;                               //return method call
+        }
+        return false;
+    }
+
+    // -------------------------------------------------------------------------
+    // trace( int type, TCB tcb, long arg )
+    /*
+     * SUMMARY
+     * This function records an event about the TCB if tracing is on.
+     */
+    private void trace( int type, TCB tcb, long arg ) {
+        TraceBuffer buffer = trace;
+        if ( buffer != null ) buffer.record( type, tcb.getTid( ), arg );
+    }
+
+    // -------------------------------------------------------------------------
+    // getThreadGoing(TCB currentTCB)
+    /*
+     * SUMMARY
+     * No matter what state the thread is in, this function will either spin
+     * the thread up for the first time or simply resume its execution. Either
+     * way the TCB is granted its run permit first, so a preempted thread
+     * parked in awaitPermit( ) is unparked and continues its system call.
+     */
+    private void getThreadGoing(TCB currentTCB){
+        Thread current = currentTCB.getThread( );
+        if ( current != null ) {                        //No null threads!
+            currentTCB.grantPermit( );                  //let it run
+            if ( current.getState( ) == Thread.State.NEW ) {
+                VirtualClock clock = VirtualClock.get( );
+                if ( clock != null ) clock.activate( );  //Active from the start
+                current.start( );                       //'spin' it up
+            }
+        }
+    }
+}
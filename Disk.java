@@ -1,4 +1,7 @@
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.BitSet;
 
 public class Disk extends Thread {
     public static final int blockSize = 512;
@@ -6,160 +9,326 @@ public class Disk extends Thread {
     private final int transferTime = 20;
     private final int delayPerTrack = 1;
     private int diskSize;
+    private String fileName;     // DISK, or DISK.<unit> in a DiskArray
+    private int unit;            // its number in the DiskArray
 
-    private byte data[];
+    private ByteBuffer data;     // the DISK file, mapped copy-on-write
+    private FileChannel file;    // null if DISK could not be opened
+    private BitSet dirty;        // blocks written since the last SYNC
 
-    private int command;
-    private final int IDLE = 0;
-    private final int READ = 1;
-    private final int WRITE = 2;
-    private final int SYNC = 3;
-    private boolean readyBuffer;
+    public static final int READ = 1;
+    public static final int WRITE = 2;
+    public static final int SYNC = 3;
+    private boolean waiting;     // idle and not counted by the virtual clock
 
-    private byte[] buffer;
-    private int currentBlockId;
-    private int targetBlockId;
+    private DiskScheduler queue; // requests not served yet
+    private int currentBlockId;  // where the arm is
+    private int travel;          // tracks to the request being served
+
+    private long served = 0;     // requests served
+    private long seekTracks = 0; // tracks the arm has crossed
+
+    // A command waiting for the disk. The caller keeps it to find out when
+    // it is done; the disk interrupt for it carries the caller's tid. A READ
+    // or WRITE moves a run of count adjacent blocks from blockId, block
+    // blockId + i to or from buffer at offsets[i].
+    public static class Request {
+	final int command;
+	final int blockId;
+	final int count;
+	final byte[] buffer;
+	final int[] offsets;
+	final int tid;
+	long seq;                // arrival order, set by the DiskScheduler
+	private boolean done = false;
+
+	Request( int command, int blockId, byte buffer[], int tid ) {
+	    this( command, blockId, 1, buffer, new int[] { 0 }, tid );
+	}
+
+	Request( int command, int blockId, int count, byte buffer[],
+		 int offsets[], int tid ) {
+	    this.command = command;
+	    this.blockId = blockId;
+	    this.count = count;
+	    this.buffer = buffer;
+	    this.offsets = offsets;
+	    this.tid = tid;
+	}
+
+	public synchronized boolean isDone( ) {
+	    return done;
+	}
+
+	// for callers without a tid, which get no interrupt
+	public synchronized void await( ) {
+	    while ( done == false ) {
+		try {
+		    wait( );
+		} catch ( InterruptedException e ) {
+		}
+	    }
+	}
+
+	synchronized void finish( ) {
+	    done = true;
+	    notifyAll( );
+	}
+    }
 
     public Disk( int totalBlocks ) {
+	this( totalBlocks, DiskScheduler.DEFAULT_POLICY );
+    }
+
+    public Disk( int totalBlocks, String policy ) {
+	this( totalBlocks, policy, "DISK", 0 );
+    }
+
+    // unit orders this disk's seeks among those of the other disks due at
+    // the same time under the virtual clock
+    public Disk( int totalBlocks, String policy, String fileName, int unit ) {
 	diskSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
-	data = new byte[ diskSize * blockSize ];
-	command = IDLE;
-	readyBuffer = false;
-	buffer = null;
+	this.fileName = fileName;
+	this.unit = unit;
+	queue = DiskScheduler.create( policy, trackSize, diskSize );
+	if ( queue == null ) {
+	    SysLib.cerr( "threadOS: unknown disk policy " + policy + 
+			 ", using " + DiskScheduler.DEFAULT_POLICY + "\n" );
+	    queue = DiskScheduler.create( DiskScheduler.DEFAULT_POLICY,
+					  trackSize, diskSize );
+	}
 	currentBlockId = 0;
-	targetBlockId = 0;
+	waiting = false;
+	if ( VirtualClock.get( ) != null )
+	    VirtualClock.get( ).activate( ); // until the first waitCommand( )
+	dirty = new BitSet( diskSize );
+	mapDisk( );
+    }
+
+    // Mapping the DISK file instead of reading it, so booting does not
+    // depend on the disk size: blocks are paged in as they are used. The
+    // mapping is private, so writes stay in memory until a SYNC copies the
+    // dirty blocks to the file, as they did with the old in-memory copy.
+    // A missing or short file is extended with zeros.
+    private void mapDisk( ) {
+	long size = ( long )diskSize * blockSize;
 	try {
-	    FileInputStream ifstream = new FileInputStream( "DISK" );
-	    int readableSize = ( ifstream.available( ) < data.length ) ?
-		ifstream.available( ) : data.length; 
-	    ifstream.read( data, 0, readableSize );
-	    ifstream.close( );
-	} catch ( FileNotFoundException e ) {
-	    SysLib.cerr( "threadOS: DISK created\n" );
+	    boolean created = !( new File( fileName ).exists( ) );
+	    file = new RandomAccessFile( fileName, "rw" ).getChannel( );
+	    if ( file.size( ) < size )
+		file.write( ByteBuffer.allocate( 1 ), size - 1 );
+	    data = file.map( FileChannel.MapMode.PRIVATE, 0, size );
+	    if ( created )
+		SysLib.cerr( "threadOS: " + fileName + " created\n" );
 	} catch ( IOException e ) {
 	    SysLib.cerr( e.toString( ) + "\n" );
+	    file = null;
+	    data = ByteBuffer.allocate( ( int )size );
 	}
     }
 
-    public synchronized boolean read( int blockId, byte buffer[] ) {
-
-	if ( blockId < 0 || blockId > diskSize ) {
-	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
-	    return false;
+    // Writing the dirty blocks back to the DISK file, one run of adjacent
+    // blocks at a time, so the cost depends on how much changed
+    private void syncDirty( ) {
+	if ( file == null ) {
+	    SysLib.cerr( "threadOS: " + fileName + " cannot be synchronized\n" );
+	    return;
 	}
+	try {
+	    int from = dirty.nextSetBit( 0 );
+	    while ( from >= 0 ) {
+		int to = dirty.nextClearBit( from );
+		ByteBuffer run = data.duplicate( );
+		run.limit( to * blockSize ).position( from * blockSize );
+		long offset = ( long )from * blockSize;
+		while ( run.hasRemaining( ) )
+		    offset += file.write( run, offset );
+		dirty.clear( from, to );
+		from = dirty.nextSetBit( to );
+	    }
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+    }
 
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = READ;
-	    notify( );
-	    return true;
-	} else
-	    return false;
+    // Queueing a READ, WRITE or SYNC command; any number of callers can have
+    // one queued. Returns the request, or null for a wrong blockId.
+    public synchronized Request submit( int command, int blockId, 
+					byte buffer[], int tid ) {
+	if ( command != SYNC && ( blockId < 0 || blockId >= diskSize ) ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for " +
+			 ( command == READ ? "read\n" : "write\n" ) );
+	    return null;
+	}
+	Request request = new Request( command, blockId, buffer, tid );
+	queue.add( request );
+	wake( );
+	return request;
     }
 
-    public synchronized boolean write( int blockId, byte buffer[] ) {
+    // Queueing a vectored READ or WRITE of blocks.length blocks, the i-th
+    // one to or from buffer at i * blockSize. Each run of adjacent blocks in
+    // the list becomes one request, which the disk serves with one seek and
+    // one transfer, so a sequential run costs about as much as one block.
+    // Returns the requests, or null (with nothing queued) for a wrong
+    // blockId or a short buffer.
+    public synchronized Request[] submit( int command, int blocks[],
+					  byte buffer[], int tid ) {
+	int offsets[] = new int[ blocks.length ];
+	for ( int i = 0; i < offsets.length; i++ )
+	    offsets[i] = i * blockSize;
+	return submit( command, blocks, offsets, buffer, tid );
+    }
 
-	if ( blockId < 0 || blockId > diskSize ) {
-	    SysLib.cerr( "threadOS: a wrong blockId for write\n" );
-	    return false;
+    // The same with the i-th block at offsets[i] in buffer, as a DiskArray
+    // hands each disk its share of a striped list
+    public synchronized Request[] submit( int command, int blocks[],
+					  int offsets[], byte buffer[],
+					  int tid ) {
+	String name = ( command == READ ) ? "readv\n" : "writev\n";
+	if ( command == SYNC || blocks.length == 0 || buffer == null ) {
+	    SysLib.cerr( "threadOS: a wrong buffer for " + name );
+	    return null;
+	}
+	int runs = 0;
+	for ( int i = 0; i < blocks.length; i++ ) {
+	    if ( blocks[i] < 0 || blocks[i] >= diskSize ) {
+		SysLib.cerr( "threadOS: a wrong blockId for " + name );
+		return null;
+	    }
+	    if ( offsets[i] < 0 || offsets[i] > buffer.length - blockSize ) {
+		SysLib.cerr( "threadOS: a wrong buffer for " + name );
+		return null;
+	    }
+	    if ( i == 0 || blocks[i] != blocks[i - 1] + 1 )
+		runs++;
 	}
+	Request[] requests = new Request[runs];
+	int first = 0;
+	for ( int r = 0; r < runs; r++ ) {
+	    int last = first;
+	    while ( last + 1 < blocks.length &&
+		    blocks[last + 1] == blocks[last] + 1 )
+		last++;
+	    int count = last - first + 1;
+	    int runOffsets[] = new int[count];
+	    System.arraycopy( offsets, first, runOffsets, 0, count );
+	    requests[r] = new Request( command, blocks[first], count,
+				       buffer, runOffsets, tid );
+	    queue.add( requests[r] );
+	    first = last + 1;
+	}
+	wake( );
+	return requests;
+    }
 
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = WRITE;
-	    notify( );
-	    return true;
-	} else
-	    return false;
+    public int getSize( ) {
+	return diskSize;
     }
 
-    public synchronized boolean sync( ) {
-	
-	if ( command == IDLE && readyBuffer == false ) {
-	    command = SYNC;
-	    notify( );
-	    // System.out.println( "DISK sync notified the disk" );
-	    return true;
-	} else
-	    return false;
+    public String getPolicy( ) {
+	return queue.getName( );
     }
 
-    public synchronized boolean testAndResetReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
-	    readyBuffer = false;
-	    return true;
-	} else
-	    return false;
+    // the number of requests served and the tracks the arm crossed for them
+    public synchronized long getServed( ) {
+	return served;
     }
 
-    public synchronized boolean testReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
-	    return true;
-	} else
-	    return false;
+    public synchronized long getSeekTracks( ) {
+	return seekTracks;
     }
 
-    private synchronized void waitCommand( ) {
-	while ( command == IDLE ) {
+    // a new command makes a waiting disk active again under the virtual clock
+    private void wake( ) {
+	if ( waiting ) {
+	    waiting = false;
+	    VirtualClock.get( ).activate( );
+	}
+	notify( );
+    }
+
+    // waiting for a request and taking the one the DiskScheduler picks
+    private synchronized Request waitCommand( ) {
+	while ( queue.size( ) == 0 ) {
+	    if ( VirtualClock.get( ) != null ) {
+		waiting = true;
+		VirtualClock.get( ).deactivate( );
+	    }
 	    try {
 		wait( );
 	    } catch ( InterruptedException e ) {
 		SysLib.cerr( e.toString( ) + "\n" );
 	    }
-	    readyBuffer = false;
+	    if ( waiting ) { // woken by no one
+		waiting = false;
+		VirtualClock.get( ).activate( );
+	    }
 	}
+	Request request = queue.next( currentBlockId );
+	travel = queue.getTravel( );
+	served++;
+	seekTracks += travel;
+	return request;
     }
 
-    private void seek( ) {
-	int seekTime = transferTime + delayPerTrack 
-	    * Math.abs( targetBlockId/trackSize - currentBlockId/trackSize );
-	try {
-	    Thread.sleep( seekTime );
-	} catch( InterruptedException e ) {
-	    SysLib.cerr( e.toString( ) + "\n" );
+    // Moving the arm to the request and transferring it. The arm crosses
+    // the tracks a run spans as it goes, but a run pays the transfer time
+    // only once.
+    private void seek( Request request ) {
+	int seekTime = transferTime + delayPerTrack * travel;
+	if ( request.command != SYNC )
+	    seekTime += delayPerTrack * ( ( request.blockId + request.count - 1 )
+					  / trackSize - request.blockId / trackSize );
+	if ( VirtualClock.get( ) != null ) {
+	    VirtualClock.get( ).sleepNanos( seekTime * 1000000L,
+					    VirtualClock.DISK_RANK + unit );
+	} else {
+	    try {
+		Thread.sleep( seekTime );
+	    } catch( InterruptedException e ) {
+		SysLib.cerr( e.toString( ) + "\n" );
+	    }
 	}
-	currentBlockId = targetBlockId;
+	if ( request.command != SYNC )
+	    currentBlockId = request.blockId + request.count - 1;
+    }
+
+    private void finishCommand( Request request ) {
+	request.finish( );
+	raiseInterrupt( request );
     }
 
-    private synchronized void finishCommand( ) {
-	command = IDLE;
-	readyBuffer = true;
-	SysLib.disk( ); // a disk interrupt
+    // raising the disk interrupt for a finished request; a disk used
+    // outside ThreadOS can override this
+    protected void raiseInterrupt( Request request ) {
+	SysLib.disk( request.tid );
     }
 
     public void run ( ) {
 	
 	while ( true ) {
-	    waitCommand( );
-	    seek( );
-	    // System.out.println( "Disk: command = " + command );
-	    switch( command ) {
+	    Request request = waitCommand( );
+	    seek( request );
+	    // System.out.println( "Disk: command = " + request.command );
+	    switch( request.command ) {
 	    case READ:
-		System.arraycopy( data, targetBlockId * blockSize, 
-				  buffer, 0, 
-				  blockSize );
+		data.position( request.blockId * blockSize );
+		for ( int i = 0; i < request.count; i++ )
+		    data.get( request.buffer, request.offsets[i], blockSize );
 		break;
 	    case WRITE:
-		System.arraycopy( buffer, 0, 
-				  data, targetBlockId * blockSize, 
-				  blockSize );
+		data.position( request.blockId * blockSize );
+		for ( int i = 0; i < request.count; i++ )
+		    data.put( request.buffer, request.offsets[i], blockSize );
+		dirty.set( request.blockId, request.blockId + request.count );
 		break;
 	    case SYNC:
-		try {
-		    FileOutputStream ofstream = new FileOutputStream( "DISK" );
-		    ofstream.write( data );
-		    ofstream.close( );
-		} catch ( FileNotFoundException e ) {
-		    SysLib.cerr( e.toString( ) );
-		} catch ( IOException e ) {
-		    SysLib.cerr( e.toString( ) );
-		}
+		syncDirty( );
 		// SysLib.cerr( "threadOS: DISK synchronized\n" );
 		break;
 	    }
-	    finishCommand( );
+	    finishCommand( request );
 	}
     }
 }
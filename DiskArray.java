@@ -0,0 +1,179 @@
+// --------------------------------DiskArray.java-------------------------------
+/*
+ * PURPOSE OF FILE
+ * This file is the block device under Kernel's raw and cached I/O. It stripes
+ * the block address space over one or more Disks (RAID 0), each with its own
+ * backing file, service thread and DiskScheduler, so requests to different
+ * disks are served in parallel. Kernel's BOOT case configures it:
+ *   -Dthreados.disks=N         number of disks (default 1)
+ *   -Dthreados.disk.stripe=S   blocks per stripe unit (default 10, one track)
+ *   -Dthreados.disk.blocks=B   total blocks over all the disks
+ * With one disk the array is the plain DISK file, as before. With N disks
+ * the files are DISK.0 to DISK.N-1; they only make sense together and with
+ * the same stripe size.
+ *
+ * Stripe unit u (blocks u * S to u * S + S - 1) lives on disk u % N at local
+ * blocks ( u / N ) * S onward. So the units a disk holds are adjacent on it,
+ * and a sequential run of blocks becomes one run per disk, served by all
+ * the disks at the same time.
+ *
+ * Every call returns the Disk.Requests it queued, one per run per disk.
+ * Their disk interrupts carry the caller's tid like those of a single Disk.
+ *
+ * THREAD SAFETY
+ * The array itself never changes after it is built; each Disk locks itself.
+ */
+
+public class DiskArray {
+    public static final int DEFAULT_DISKS = 1;
+    public static final int DEFAULT_STRIPE = 10;     //One track
+
+    private final Disk[] disks;
+    private final int stripe;                        //Blocks per stripe unit
+    private final int size;                          //Blocks over all disks
+
+    // -------------------------------------------------------------------------
+    // DiskArray( int totalBlocks, int count, int stripe, String policy )
+    /*
+     * SUMMARY
+     * This is the constructor. It makes count disks running the given
+     * DiskScheduler policy, each large enough for its share of totalBlocks.
+     */
+    public DiskArray( int totalBlocks, int count, int stripe, String policy ) {
+        this.size = ( totalBlocks > 0 ) ? totalBlocks : 1;
+        this.stripe = ( stripe > 0 ) ? stripe : DEFAULT_STRIPE;
+        disks = new Disk[ ( count > 0 ) ? count : DEFAULT_DISKS ];
+        if ( disks.length == 1 ) {
+            disks[0] = new Disk( size, policy );
+            return;
+        }
+        int units = ( size + this.stripe - 1 ) / this.stripe;
+        int unitsPerDisk = ( units + disks.length - 1 ) / disks.length;
+        for ( int i = 0; i < disks.length; i++ ) {
+            disks[i] = new Disk( unitsPerDisk * this.stripe, policy,
+                                 "DISK." + i, i );
+        }
+    }
+
+    public void start( ) {
+        for ( int i = 0; i < disks.length; i++ ) {
+            disks[i].start( );
+        }
+    }
+
+    public int getDisks( ) {
+        return disks.length;
+    }
+
+    public int getStripe( ) {
+        return stripe;
+    }
+
+    public int getSize( ) {
+        return size;
+    }
+
+    public String getPolicy( ) {
+        return disks[0].getPolicy( );
+    }
+
+    // -------------------------------------------------------------------------
+    // submit( int command, int blockId, byte buffer[], int tid )
+    /*
+     * SUMMARY
+     * This function queues a READ or WRITE of one block on the disk that
+     * holds it, or a SYNC on every disk. It returns the requests, or null
+     * for a wrong blockId.
+     */
+    public Disk.Request[] submit( int command, int blockId, byte buffer[],
+                                  int tid ) {
+        if ( command == Disk.SYNC ) {
+            Disk.Request[] requests = new Disk.Request[ disks.length ];
+            for ( int i = 0; i < disks.length; i++ ) {
+                requests[i] = disks[i].submit( Disk.SYNC, 0, null, tid );
+            }
+            return requests;
+        }
+        if ( blockId < 0 || blockId >= size ) {
+            SysLib.cerr( "threadOS: a wrong blockId for " +
+                         ( command == Disk.READ ? "read\n" : "write\n" ) );
+            return null;
+        }
+        Disk.Request request =
+            disks[ diskOf( blockId ) ].submit( command, localBlock( blockId ),
+                                               buffer, tid );
+        return ( request != null ) ? new Disk.Request[] { request } : null;
+    }
+
+    // -------------------------------------------------------------------------
+    // submit( int command, int blocks[], byte buffer[], int tid )
+    /*
+     * SUMMARY
+     * This function queues a vectored READ or WRITE: the i-th block of the
+     * list to or from buffer at i * blockSize. Each disk gets its share of
+     * the list in one call, which it turns into one request per run. It
+     * returns the requests of all the disks, or null, with nothing queued,
+     * for a wrong blockId or a short buffer.
+     */
+    public Disk.Request[] submit( int command, int blocks[], byte buffer[],
+                                  int tid ) {
+        if ( disks.length == 1 ) {
+            return disks[0].submit( command, blocks, buffer, tid );
+        }
+        String name = ( command == Disk.READ ) ? "readv\n" : "writev\n";
+        if ( command == Disk.SYNC || blocks.length == 0 || buffer == null
+             || buffer.length < blocks.length * Disk.blockSize ) {
+            SysLib.cerr( "threadOS: a wrong buffer for " + name );
+            return null;
+        }
+        int[] shares = new int[ disks.length ];
+        for ( int i = 0; i < blocks.length; i++ ) {
+            if ( blocks[i] < 0 || blocks[i] >= size ) {
+                SysLib.cerr( "threadOS: a wrong blockId for " + name );
+                return null;
+            }
+            shares[ diskOf( blocks[i] ) ]++;
+        }
+
+        Disk.Request[][] perDisk = new Disk.Request[ disks.length ][];
+        int total = 0;
+        for ( int d = 0; d < disks.length; d++ ) {
+            if ( shares[d] == 0 ) continue;
+            int[] local = new int[ shares[d] ];
+            int[] offsets = new int[ shares[d] ];
+            int n = 0;
+            for ( int i = 0; i < blocks.length; i++ ) {
+                if ( diskOf( blocks[i] ) == d ) {
+                    local[n] = localBlock( blocks[i] );
+                    offsets[n++] = i * Disk.blockSize;
+                }
+            }
+            perDisk[d] = disks[d].submit( command, local, offsets, buffer,
+                                          tid );
+            total += perDisk[d].length;
+        }
+        Disk.Request[] requests = new Disk.Request[total];
+        int n = 0;
+        for ( int d = 0; d < disks.length; d++ ) {
+            if ( perDisk[d] == null ) continue;
+            System.arraycopy( perDisk[d], 0, requests, n, perDisk[d].length );
+            n += perDisk[d].length;
+        }
+        return requests;
+    }
+
+    // -------------------------------------------------------------------------
+    // diskOf( int blockId ), localBlock( int blockId )
+    /*
+     * SUMMARY
+     * The disk holding blockId and where it is on that disk.
+     */
+    private int diskOf( int blockId ) {
+        return ( blockId / stripe ) % disks.length;
+    }
+
+    private int localBlock( int blockId ) {
+        int unit = blockId / stripe;
+        return ( unit / disks.length ) * stripe + blockId % stripe;
+    }
+}
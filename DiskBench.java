@@ -0,0 +1,72 @@
+import java.util.*;
+
+// DiskBench compares the disk's request scheduling policies (see
+// DiskScheduler.java) on one random workload. It runs outside ThreadOS:
+// "java DiskBench [requests] [clients]".
+//
+// Each policy gets a fresh Disk and the same clients. A client reads its
+// share of random blocks one at a time, waiting for each before it sends
+// the next, like a user thread in SysLib.rawread( ). With several clients
+// the disk always has a few requests to choose from. For each policy the
+// average seek distance in tracks and the throughput are printed. The
+// blocks are only read, so the DISK file is left as it is.
+public class DiskBench {
+    public static void main( String args[] ) {
+	int requests = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : 100;
+	int clients = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 10;
+	int diskSize = 1000;
+
+	Random random = new Random( 4242 );
+	int[][] blocks = new int[clients][];
+	for ( int c = 0; c < clients; c++ ) {
+	    blocks[c] = new int[ requests / clients ];
+	    for ( int i = 0; i < blocks[c].length; i++ )
+		blocks[c][i] = random.nextInt( diskSize );
+	}
+
+	String[] policies = DiskScheduler.getNames( );
+	for ( int p = 0; p < policies.length; p++ )
+	    run( policies[p], diskSize, blocks );
+	System.exit( 0 );
+    }
+
+    private static void run( String policy, int diskSize,
+			     final int[][] blocks ) {
+	final Disk disk = new Disk( diskSize, policy ) {
+		protected void raiseInterrupt( Disk.Request request ) {
+		}
+	    };
+	disk.setDaemon( true );
+	disk.start( );
+
+	Thread[] clients = new Thread[ blocks.length ];
+	long start = System.nanoTime( );
+	for ( int c = 0; c < clients.length; c++ ) {
+	    final int[] mine = blocks[c];
+	    clients[c] = new Thread( ) {
+		    public void run( ) {
+			byte[] buffer = new byte[ Disk.blockSize ];
+			for ( int i = 0; i < mine.length; i++ )
+			    disk.submit( Disk.READ, mine[i], buffer, -1 )
+				.await( );
+		    }
+		};
+	    clients[c].start( );
+	}
+	for ( int c = 0; c < clients.length; c++ ) {
+	    try {
+		clients[c].join( );
+	    } catch ( InterruptedException e ) {
+	    }
+	}
+	double seconds = ( System.nanoTime( ) - start ) / 1e9;
+
+	long served = disk.getServed( );
+	System.out.println( policy + "\t" + served + " requests, " +
+			    String.format( "%.1f",
+				( double )disk.getSeekTracks( ) / served ) +
+			    " tracks/request, " +
+			    String.format( "%.1f", served / seconds ) +
+			    " requests/sec" );
+    }
+}
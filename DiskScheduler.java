@@ -0,0 +1,218 @@
+// --------------------------------DiskScheduler.java---------------------------
+/*
+ * PURPOSE OF FILE
+ * This file holds the requests waiting for the Disk and decides which one the
+ * disk arm serves next. Since the disk charges a delay for every track the
+ * arm crosses, the order matters as much as the number of requests. Kernel's
+ * BOOT case picks the policy with -Dthreados.disk.policy:
+ *   fcfs     first come, first served
+ *   sstf     shortest seek time first: the request closest to the arm
+ *   scan     elevator: sweep up to the last track, then down to the first
+ *   clook    circular look: sweep up to the highest request, then jump back
+ *            to the lowest one and sweep up again (the default)
+ * SSTF serves the fewest tracks but can starve requests far from the arm.
+ * SCAN and C-LOOK bound the wait by one or two sweeps; C-LOOK gives every
+ * block the same wait.
+ *
+ * The elevators keep their requests in a TreeSet ordered by block (then by
+ * arrival), so the next request is found in O(log n) however many are
+ * waiting. A SYNC has no block and does not move the arm, but it is a
+ * barrier: it is served after every request queued before it and before
+ * every request queued after it. The elevators keep the SYNC and whatever
+ * comes after it in arrival order, and only sort those requests once the
+ * SYNC has been served.
+ *
+ * THREAD SAFETY
+ * The Disk calls every method while holding its own lock.
+ */
+
+import java.util.*;
+
+public class DiskScheduler {
+    public static final String DEFAULT_POLICY = "clook";
+    private static final String[] NAMES = { "fcfs", "sstf", "scan", "clook" };
+    private static final int FCFS = 0;
+    private static final int SSTF = 1;
+    private static final int SCAN = 2;
+    private static final int CLOOK = 3;
+
+    private final int policy;
+    private final int trackSize;                     //Blocks per track
+    private final int lastTrack;
+    private final ArrayDeque fifo = new ArrayDeque( ); //fcfs, or a SYNC on
+    private final TreeSet sorted;                    //By block, then arrival
+    private boolean up = true;                       //SCAN direction
+    private long arrivals = 0;
+    private int travel = 0;                          //Tracks for the last pick
+
+    // -------------------------------------------------------------------------
+    // DiskScheduler( int policy, int trackSize, int diskSize )
+    /*
+     * SUMMARY
+     * This is the constructor. Use create( ) to get one by name.
+     */
+    private DiskScheduler( int policy, int trackSize, int diskSize ) {
+        this.policy = policy;
+        this.trackSize = trackSize;
+        this.lastTrack = ( diskSize - 1 ) / trackSize;
+        sorted = new TreeSet( new Comparator( ) {
+            public int compare( Object a, Object b ) {
+                Disk.Request x = ( Disk.Request )a;
+                Disk.Request y = ( Disk.Request )b;
+                if ( x.blockId != y.blockId ) {
+                    return ( x.blockId < y.blockId ) ? -1 : 1;
+                }
+                return ( x.seq < y.seq ) ? -1 : ( x.seq == y.seq ? 0 : 1 );
+            }
+        } );
+    }
+
+    // -------------------------------------------------------------------------
+    // create( String name, int trackSize, int diskSize )
+    /*
+     * SUMMARY
+     * This function returns a scheduler running the named policy on a disk of
+     * diskSize blocks, or null if there is no such policy.
+     */
+    public static DiskScheduler create( String name, int trackSize,
+                                        int diskSize ) {
+        for ( int i = 0; i < NAMES.length; i++ ) {
+            if ( NAMES[i].equals( name ) ) {
+                return new DiskScheduler( i, trackSize, diskSize );
+            }
+        }
+        return null;
+    }
+
+    public static String[] getNames( ) {
+        return NAMES.clone( );
+    }
+
+    public String getName( ) {
+        return NAMES[policy];
+    }
+
+    // -------------------------------------------------------------------------
+    // add( Disk.Request request ), size( )
+    /*
+     * SUMMARY
+     * add( ) queues a new request. size( ) returns the number waiting.
+     */
+    public void add( Disk.Request request ) {
+        request.seq = arrivals++;
+        if ( policy == FCFS || request.command == Disk.SYNC ||
+             !fifo.isEmpty( ) ) {
+            fifo.add( request );
+        } else {
+            sorted.add( request );
+        }
+    }
+
+    public int size( ) {
+        return fifo.size( ) + sorted.size( );
+    }
+
+    // -------------------------------------------------------------------------
+    // next( int head )
+    /*
+     * SUMMARY
+     * This function removes and returns the request to serve with the arm at
+     * block head, or null if none is waiting. getTravel( ) then tells how
+     * many tracks the arm crosses to get there. The elevators serve a SYNC
+     * once the requests sorted before it are done, and then sort the ones
+     * that waited behind it, up to the next SYNC.
+     */
+    public Disk.Request next( int head ) {
+        Disk.Request request;
+        if ( policy == FCFS || sorted.isEmpty( ) ) {
+            request = ( Disk.Request )fifo.poll( );
+            if ( request == null ) return null;
+            travel = ( request.command == Disk.SYNC ) ? 0
+                : distance( head, request.blockId );
+            while ( policy != FCFS && !fifo.isEmpty( ) &&
+                    ( ( Disk.Request )fifo.peek( ) ).command != Disk.SYNC ) {
+                sorted.add( fifo.poll( ) );
+            }
+            return request;
+        }
+        switch ( policy ) {
+        case SSTF:
+            request = closest( head );
+            travel = distance( head, request.blockId );
+            break;
+        case SCAN:
+            request = sweep( head );
+            break;
+        default:                                      //CLOOK
+            request = above( head );
+            if ( request == null ) request = ( Disk.Request )sorted.first( );
+            travel = distance( head, request.blockId );
+            break;
+        }
+        sorted.remove( request );
+        return request;
+    }
+
+    public int getTravel( ) {
+        return travel;
+    }
+
+    // -------------------------------------------------------------------------
+    // sweep( int head )
+    /*
+     * SUMMARY
+     * SCAN: the next request in the current direction. When there is none,
+     * the arm runs on to the edge of the disk and turns around, which counts
+     * in its travel.
+     */
+    private Disk.Request sweep( int head ) {
+        Disk.Request request = up ? above( head ) : below( head );
+        if ( request != null ) {
+            travel = distance( head, request.blockId );
+            return request;
+        }
+        int edge = up ? lastTrack : 0;
+        up = !up;
+        request = up ? above( head ) : below( head );
+        travel = Math.abs( edge - track( head ) )
+            + Math.abs( edge - track( request.blockId ) );
+        return request;
+    }
+
+    // -------------------------------------------------------------------------
+    // closest( int head ), above( int head ), below( int head )
+    /*
+     * SUMMARY
+     * Lookups in the sorted requests: the one closest to head, the first at
+     * or above it and the last at or below it.
+     */
+    private Disk.Request closest( int head ) {
+        Disk.Request high = above( head );
+        Disk.Request low = below( head );
+        if ( high == null ) return low;
+        if ( low == null ) return high;
+        return ( high.blockId - head <= head - low.blockId ) ? high : low;
+    }
+
+    private Disk.Request above( int head ) {
+        return ( Disk.Request )sorted.ceiling( probe( head, Long.MIN_VALUE ) );
+    }
+
+    private Disk.Request below( int head ) {
+        return ( Disk.Request )sorted.floor( probe( head, Long.MAX_VALUE ) );
+    }
+
+    private Disk.Request probe( int blockId, long seq ) {
+        Disk.Request request = new Disk.Request( Disk.READ, blockId, null, -1 );
+        request.seq = seq;
+        return request;
+    }
+
+    private int track( int blockId ) {
+        return blockId / trackSize;
+    }
+
+    private int distance( int from, int to ) {
+        return Math.abs( track( to ) - track( from ) );
+    }
+}
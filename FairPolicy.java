@@ -0,0 +1,165 @@
+// --------------------------------FairPolicy.java------------------------------
+/*
+ * PURPOSE OF FILE
+ * This is a fair scheduler in the style of Linux's CFS, as a SchedulingPolicy.
+ * Every TCB has a virtual runtime: the CPU time it has been given so far. The
+ * ready TCBs are kept in a balanced tree (a TreeSet, which is a red-black
+ * tree) ordered by virtual runtime, and the one that has had the least runs
+ * next. Its quantum is the target latency divided among the ready TCBs, but
+ * never less than the minimum granularity.
+ *
+ * A new or stolen TCB starts at the smallest virtual runtime in the tree, so
+ * it runs soon but cannot claim all the CPU time it "missed" before it
+ * arrived. A TCB that blocked keeps its virtual runtime on the TCB, charged
+ * with the part of the quantum it used, and comes back no lower than that
+ * smallest one.
+ */
+
+import java.util.*;
+
+public class FairPolicy implements SchedulingPolicy {
+    private TreeSet tree;                            //Entries by vruntime
+    private Map entries = new HashMap( );            //TCB to its Entry
+    private long minVruntime = 0;                    //Never goes backwards
+    private long nextSeq = 0;                        //Breaks vruntime ties
+    private int targetLatency;                       //us for all to run once
+    private int minGranularity;                      //us of smallest quantum
+
+    // -------------------------------------------------------------------------
+    // Entry
+    /*
+     * SUMMARY
+     * A TCB's place in the tree. An Entry is taken out of the tree before its
+     * virtual runtime changes and put back after.
+     */
+    private static class Entry {
+        final TCB tcb;
+        final long seq;
+        long vruntime;
+
+        Entry( TCB tcb, long seq, long vruntime ) {
+            this.tcb = tcb;
+            this.seq = seq;
+            this.vruntime = vruntime;
+        }
+    }
+
+    private static final Comparator BY_VRUNTIME = new Comparator( ) {
+        public int compare( Object a, Object b ) {
+            Entry x = ( Entry )a, y = ( Entry )b;
+            if ( x.vruntime != y.vruntime ) {
+                return ( x.vruntime < y.vruntime ) ? -1 : 1;
+            }
+            return ( x.seq < y.seq ) ? -1 : ( x.seq == y.seq ? 0 : 1 );
+        }
+    };
+
+    // -------------------------------------------------------------------------
+    // FairPolicy( int timeSlice )
+    /*
+     * SUMMARY
+     * This is the constructor. The target latency is one timeSlice (in ms)
+     * and the minimum granularity an eighth of it.
+     */
+    public FairPolicy( int timeSlice ) {
+        tree = new TreeSet( BY_VRUNTIME );
+        targetLatency = timeSlice * 1000;
+        minGranularity = Math.max( targetLatency / 8, 1 );
+    }
+
+    public String getName( ) {
+        return "cfs";
+    }
+
+    public synchronized void add( TCB tcb ) {
+        long vruntime = Math.max( tcb.getVruntime( ), minVruntime );
+        Entry entry = new Entry( tcb, nextSeq++, vruntime );
+        entries.put( tcb, entry );
+        tree.add( entry );
+    }
+
+    public synchronized boolean remove( TCB tcb ) {
+        Entry entry = ( Entry )entries.remove( tcb );
+        if ( entry == null ) return false;
+        tree.remove( entry );
+        tcb.setVruntime( entry.vruntime );
+        updateMinVruntime( );
+        return true;
+    }
+
+    public synchronized TCB pickNext( ) {
+        return tree.isEmpty( ) ? null : ( ( Entry )tree.first( ) ).tcb;
+    }
+
+    public synchronized int getQuantum( TCB tcb ) {
+        int ready = Math.max( tree.size( ), 1 );
+        return Math.max( targetLatency / ready, minGranularity );
+    }
+
+    public int getCheckInterval( TCB tcb ) {
+        return 0;
+    }
+
+    public boolean shouldPreempt( TCB tcb ) {
+        return false;
+    }
+
+    // -------------------------------------------------------------------------
+    // preempted( TCB tcb, long ranMicros )
+    /*
+     * SUMMARY
+     * This function charges the time the TCB ran to its virtual runtime and
+     * re-inserts it in the tree.
+     */
+    public synchronized void preempted( TCB tcb, long ranMicros ) {
+        Entry entry = ( Entry )entries.get( tcb );
+        if ( entry == null ) return;
+        tree.remove( entry );
+        entry.vruntime += ranMicros;
+        tree.add( entry );
+        updateMinVruntime( );
+    }
+
+    // -------------------------------------------------------------------------
+    // stopped( TCB tcb, long ranMicros )
+    /*
+     * SUMMARY
+     * This function charges the time a TCB ran before it blocked, in the
+     * tree if it is back already, or on the TCB until it comes back.
+     */
+    public synchronized void stopped( TCB tcb, long ranMicros ) {
+        if ( entries.containsKey( tcb ) ) {
+            preempted( tcb, ranMicros );
+        } else {
+            tcb.setVruntime( tcb.getVruntime( ) + ranMicros );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // steal( Collection busy )
+    /*
+     * SUMMARY
+     * This function gives up the TCB with the largest virtual runtime, the one
+     * that would wait longest here, unless it is busy.
+     */
+    public synchronized TCB steal( Collection busy ) {
+        if ( tree.isEmpty( ) ) return null;
+        Entry entry = ( Entry )tree.last( );
+        if ( busy.contains( entry.tcb ) ) return null;
+        tree.remove( entry );
+        entries.remove( entry.tcb );
+        entry.tcb.setVruntime( 0 );                  //Means nothing elsewhere
+        return entry.tcb;
+    }
+
+    public synchronized int size( ) {
+        return tree.size( );
+    }
+
+    private void updateMinVruntime( ) {
+        if ( !tree.isEmpty( ) ) {
+            minVruntime = Math.max( minVruntime,
+                                    ( ( Entry )tree.first( ) ).vruntime );
+        }
+    }
+}
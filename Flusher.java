@@ -0,0 +1,73 @@
+// --------------------------------Flusher.java---------------------------------
+/*
+ * PURPOSE OF FILE
+ * This is the kernel thread that writes dirty cache blocks back to the disk
+ * in the background. Without it a dirty block reaches the disk only when it
+ * is evicted, by the thread whose miss evicts it, or when a user calls
+ * csync( ) or flush( ) and then waits while every dirty block is written.
+ *
+ * Every CHECK_INTERVAL milliseconds the Flusher looks at the cache. Blocks
+ * dirty for longer than the age limit are written back. If more pages than
+ * the dirty ratio allows are dirty, the oldest are written back as well,
+ * until half the ratio is left. The cache sorts what it writes by block and
+ * writes each run of adjacent blocks in one request. So misses mostly find
+ * clean victims, and csync( ) only writes the tail dirtied since the last
+ * look. Kernel's BOOT case starts it with -Dthreados.cache.dirty.age (0
+ * for no Flusher) and -Dthreados.cache.dirty.ratio.
+ *
+ * The Flusher is not a ThreadOS thread, so it waits for its writes without
+ * a disk interrupt. For that reason it does not run under the virtual
+ * clock.
+ */
+
+public class Flusher extends Thread {
+    public static final int DEFAULT_AGE = 1000;      //ms a block stays dirty
+    public static final int DEFAULT_RATIO = 25;      //% of pages dirty at most
+    private static final int CHECK_INTERVAL = 50;    //ms
+
+    private final BlockCache cache;
+    private final long ageNanos;
+    private final int ratio;
+    private volatile long written = 0;               //Blocks written back
+
+    public Flusher( BlockCache cache, int ageMillis, int ratio ) {
+        this.cache = cache;
+        this.ageNanos = ageMillis * 1000000L;
+        this.ratio = Math.max( 0, Math.min( ratio, 100 ) );
+        setDaemon( true );
+    }
+
+    public long getWritten( ) {
+        return written;
+    }
+
+    public void run( ) {
+        while ( true ) {
+            try {
+                Thread.sleep( CHECK_INTERVAL );
+            } catch ( InterruptedException e ) {
+                return;
+            }
+            check( );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // check( )
+    /*
+     * SUMMARY
+     * This function is one look at the cache: it asks for the old dirty
+     * blocks, and for the oldest others down to half the ratio if there are
+     * more dirty pages than the ratio allows.
+     */
+    private void check( ) {
+        int dirty = cache.getDirty( );
+        if ( dirty == 0 ) {
+            return;
+        }
+        int limit = cache.getPages( ) * ratio / 100;
+        int keep = ( dirty > limit ) ? limit / 2 : dirty;
+        long before = VirtualClock.nanoTime( ) - ageNanos;
+        written += cache.writeBackOld( before, keep );
+    }
+}
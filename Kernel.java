@@ -1,5 +1,6 @@
 import java.util.*;
 import java.lang.reflect.*;
+import java.util.concurrent.locks.*;
 import java.io.*;
 
 public class Kernel
@@ -36,6 +37,23 @@ public class Kernel
     public final static int FORMAT  = 18; // SysLib.format( int files )
     public final static int DELETE  = 19; // SysLib.delete( String fileName )
 
+    // System calls added for profiling
+    public final static int STATS   = 20; // SysLib.stats( List procs )
+    public final static int TIME    = 21; // SysLib.time( )
+
+    // System calls added for vectored I/O; args is an
+    // Object[]{ int[] blocks, byte[] buffer }, block i at buffer[i * 512]
+    public final static int RAWREADV  = 22; // SysLib.rawreadv(int[], byte[])
+    public final static int RAWWRITEV = 23; // SysLib.rawwritev(int[], byte[])
+    public final static int CREADV    = 24; // SysLib.creadv(int[], byte[])
+    public final static int CWRITEV   = 25; // SysLib.cwritev(int[], byte[])
+
+    // System call added for the disk cache's counters
+    public final static int CSTATS  = 26; // SysLib.cstats( long stats[] )
+
+    // System call added for the lottery and stride policies
+    public final static int TICKETS = 27; // SysLib.tickets( int count )
+
     // Predefined file descriptors
     public final static int STDIN  = 0;
     public final static int STDOUT = 1;
@@ -47,15 +65,20 @@ public class Kernel
 
     // System thread references
     private static Scheduler scheduler;
-    private static Disk disk;
-    private static Cache cache;
+    private static DiskArray disk;       // one or more Disks, striped
+    private static BlockCache cache;
+
+    // Virtual thread support, looked up at boot so that ThreadOS still
+    // compiles and runs on JVMs without Thread.ofVirtual( )
+    private static Method ofVirtual = null;  // Thread.ofVirtual( )
+    private static Method unstarted = null;  // Thread.Builder.unstarted( )
+
+    // Boot time on the kernel's clock, for SysLib.time( )
+    private static long bootTime = 0;
 
     // Synchronized Queues
     private static SyncQueue waitQueue;  // for threads to wait for their child
-    private static SyncQueue ioQueue;    // I/O queue
-
-    private final static int COND_DISK_REQ = 1; // wait condition 
-    private final static int COND_DISK_FIN = 2; // wait condition
+    private static SyncQueue ioQueue;    // I/O queue, condition = tid
 
     // Standard input
     private static BufferedReader input
@@ -63,65 +86,137 @@ public class Kernel
 
     // The heart of Kernel
     public static int interrupt( int irq, int cmd, int param, Object args ) {
+	if ( scheduler != null )
+	    scheduler.awaitPermit( ); // user threads stop here when preempted
+	if ( scheduler != null && irq == INTERRUPT_SOFTWARE &&
+	     blocks( cmd ) ) {
+	    scheduler.trace( TraceBuffer.BLOCK, cmd );
+	    try {
+		return service( irq, cmd, param, args );
+	    } finally {
+		scheduler.trace( TraceBuffer.UNBLOCK, cmd );
+	    }
+	}
+	return service( irq, cmd, param, args );
+    }
+
+    // The system calls that can block the caller, traced as BLOCK/UNBLOCK
+    private static boolean blocks( int cmd ) {
+	return cmd == WAIT || cmd == SLEEP || cmd == RAWREAD ||
+	    cmd == RAWWRITE || cmd == SYNC || cmd == READ ||
+	    cmd == RAWREADV || cmd == RAWWRITEV;
+    }
+
+    private static int service( int irq, int cmd, int param, Object args ) {
 	TCB myTcb;
 	switch( irq ) {
 	case INTERRUPT_SOFTWARE: // System calls
 	    switch( cmd ) { 
 	    case BOOT:
+		// run on a discrete-event clock instead of real time if asked to
+		if ( "virtual".equals( System.getProperty( "threados.clock" ) ) )
+		    VirtualClock.enable( );
+		bootTime = VirtualClock.nanoTime( );
+
 		// instantiate and start a scheduler
-		scheduler = new Scheduler( ); 
+		scheduler = new Scheduler( Scheduler.DEFAULT_TIME_SLICE,
+					   Integer.getInteger( "threados.maxthreads",
+							       Scheduler.DEFAULT_MAX_THREADS ),
+					   Integer.getInteger( "threados.cpus",
+							       Scheduler.DEFAULT_CPUS ) );
+		scheduler.setLevels( microsListProperty( "threados.mlfq.quanta" ),
+				     microsListProperty( "threados.mlfq.checks" ),
+				     Integer.getInteger( "threados.mlfq.boost", 0 ) );
+		// the lottery draws the same tickets on every run if asked to,
+		// and always under the virtual clock
+		Long seed = Long.getLong( "threados.seed" );
+		if ( seed == null && VirtualClock.get( ) != null )
+		    seed = Long.valueOf( 0 );
+		if ( seed != null )
+		    scheduler.setSeed( seed.longValue( ) );
+		String policy = System.getProperty( "threados.policy",
+						    Scheduler.DEFAULT_POLICY );
+		if ( !scheduler.setPolicy( policy ) )
+		    System.err.println( "threadOS: unknown policy " + policy +
+					", using " + Scheduler.DEFAULT_POLICY );
+		scheduler.setTimerTick( Integer.getInteger( "threados.timer.tick",
+						TimerWheel.DEFAULT_TICK ) );
+		if ( Boolean.getBoolean( "threados.idlestats" ) )
+		    scheduler.reportIdleTime( );
+		if ( System.getProperty( "threados.trace" ) != null )
+		    scheduler.enableTrace( System.getProperty( "threados.trace" ) );
 		scheduler.start( );
 		
-		// instantiate and start a disk
-		disk = new Disk( 1000 );
+		// instantiate and start the disks
+		disk = new DiskArray( Integer.getInteger( "threados.disk.blocks",
+							  1000 ),
+				      Integer.getInteger( "threados.disks",
+							  DiskArray.DEFAULT_DISKS ),
+				      Integer.getInteger( "threados.disk.stripe",
+							  DiskArray.DEFAULT_STRIPE ),
+				      System.getProperty( "threados.disk.policy",
+						  DiskScheduler.DEFAULT_POLICY ) );
 		disk.start( );
 
-		// instantiate a cache memory
-		cache = new Cache( disk.blockSize, 10 );
+		// instantiate a cache memory, sharded if asked to
+		int cacheBlocks = Integer.getInteger( "threados.cache.blocks", 10 );
+		String cachePolicy = System.getProperty( "threados.cache.policy",
+							 Cache.DEFAULT_POLICY );
+		int cacheShards = Integer.getInteger( "threados.cache.shards", 0 );
+		int readAhead = Integer.getInteger( "threados.cache.readahead",
+						    ReadAhead.DEFAULT_WINDOW );
+		if ( cacheShards > 0 )
+		    cache = new ConcurrentCache( Disk.blockSize, cacheBlocks,
+						 cachePolicy, cacheShards,
+						 readAhead );
+		else
+		    cache = new Cache( Disk.blockSize, cacheBlocks, cachePolicy,
+				       readAhead );
+
+		// let the cache size itself within a budget of kilobytes
+		int budget = Integer.getInteger( "threados.cache.budget", 0 );
+		if ( budget > 0 )
+		    cache.setBudget( budget * 1024 / Disk.blockSize );
+
+		// write dirty blocks back in the background, but not under the
+		// virtual clock (see Flusher.java)
+		int dirtyAge = Integer.getInteger( "threados.cache.dirty.age",
+						   Flusher.DEFAULT_AGE );
+		if ( dirtyAge > 0 && VirtualClock.get( ) == null )
+		    new Flusher( cache, dirtyAge,
+				 Integer.getInteger( "threados.cache.dirty.ratio",
+						     Flusher.DEFAULT_RATIO ) ).start( );
+
+		// run user programs as virtual threads if asked to
+		if ( Boolean.getBoolean( "threados.virtual" ) )
+		    initVirtualThreads( );
 
 		// instantiate synchronized queues
-		ioQueue = new SyncQueue( );
+		ioQueue = new SyncQueue( scheduler.getMaxThreads( ) );
 		waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
 		return OK;
 	    case EXEC:
 		return sysExec( ( String[] )args );
 	    case WAIT:
-		// get the current thread id
 		// let the current thread sleep in waitQueue under the 
 		// condition = this thread id
-		return OK; // return a child thread id who woke me up
+		if ( ( myTcb = scheduler.getMyTcb( ) ) == null )
+		    return ERROR;
+		return sleepOn( waitQueue, myTcb.getTid( ) ); // the child's tid
 	    case EXIT:
-		// get the current thread's parent id
-		// search waitQueue for and wakes up the thread under the
-		// condition = the current thread's parent id
-		// tell the Scheduler to delete the current thread (since it is exiting)
-		return OK;
+		return sysExit( );
 	    case SLEEP:   // sleep a given period of milliseconds
 		scheduler.sleepThread( param ); // param = milliseconds
 		return OK;
 	    case RAWREAD: // read a block of data from disk
-		while ( disk.read( param, ( byte[] )args ) == false )
-		    ; // busy wait
-		while ( disk.testAndResetReady( ) == false )
-		    ; // busy wait
-		return OK;
 	    case RAWWRITE: // write a block of data to disk
-		while ( disk.write( param, ( byte[] )args ) == false )
-		    ; // busy wait
-		while ( disk.testAndResetReady( ) == false )
-		    ; // busy wait
-		return OK;
 	    case SYNC:     // synchronize disk data to a real file
-		while ( disk.sync( ) == false )
-		    ; // busy wait
-		while ( disk.testAndResetReady( ) == false )
-		    ; // busy wait
-		return OK;
+		return diskCommand( cmd, param, ( byte[] )args );
 	    case READ:
 		switch ( param ) {
 		case STDIN:
 		    try {
-			String s = input.readLine(); // read a keyboard input
+			String s = readLine( ); // read a keyboard input
 			if ( s == null ) {
 			    return ERROR;
 			}
@@ -179,15 +274,34 @@ public class Kernel
 		return OK;
 	    case DELETE:  // to be implemented in project
 		return OK;
+	    case STATS:   // one long[] per live process, see TCB.getStats( )
+		if ( !( args instanceof List ) )
+		    return ERROR;
+		return scheduler.getStats( ( List )args );
+	    case TIME:    // milliseconds since boot, virtual under the virtual clock
+		return ( int )( ( VirtualClock.nanoTime( ) - bootTime ) / 1000000 );
+	    case RAWREADV:  // read a list of blocks from disk in one request
+	    case RAWWRITEV: // write a list of blocks to disk in one request
+	    case CREADV:    // read a list of blocks through the cache
+	    case CWRITEV:   // write a list of blocks through the cache
+		return vectorCommand( cmd, args );
+	    case CSTATS:  // see BlockCache.STAT_PAGES and what follows it
+		if ( !( args instanceof long[] ) )
+		    return ERROR;
+		cache.getStats( ( long[] )args );
+		return OK;
+	    case TICKETS: // the caller's share under lottery and stride
+		if ( param < 1 || ( myTcb = scheduler.getMyTcb( ) ) == null )
+		    return ERROR;
+		myTcb.setTickets( param );
+		return OK;
 	    }
 	    return ERROR;
 	case INTERRUPT_DISK: // Disk interrupts
-	    // wake up the thread waiting for a service completion
-	    //ioQueue.dequeueAndWakeup( COND_DISK_FIN );
-
-	    // wake up the thread waiting for a request acceptance
-	    //ioQueue.dequeueAndWakeup( COND_DISK_REQ );
-
+	    // wake up the thread waiting for a service completion; the disk
+	    // queues requests, so nobody waits for a request acceptance
+	    if ( param >= 0 )
+		ioQueue.dequeueAndWakeup( param ); // param = its thread id
 	    return OK;
 	case INTERRUPT_IO:   // other I/O interrupts (not implemented)
 	    return OK;
@@ -195,6 +309,238 @@ public class Kernel
 	return OK;
     }
 
+    // Sleeping in a SyncQueue under condition; the thread is blocked in the
+    // scheduler meanwhile, so it gets no CPU time
+    private static int sleepOn( SyncQueue queue, int condition ) {
+	TCB myTcb = scheduler.blockThread( );
+	try {
+	    return queue.enqueueAndSleep( condition );
+	} finally {
+	    scheduler.unblockThread( myTcb );
+	}
+    }
+
+    // Taking a lock in kernel code, such as a ConcurrentCache shard: a thread
+    // that has to wait for it is blocked in the scheduler meanwhile, like in
+    // sleepOn( ), so it does not sit on its Cpu while the holder reads disk
+    public static void acquire( Lock lock ) {
+	if ( lock.tryLock( ) )
+	    return;
+	TCB myTcb = ( scheduler != null ) ? scheduler.blockThread( ) : null;
+	try {
+	    lock.lock( );
+	} finally {
+	    if ( scheduler != null )
+		scheduler.unblockThread( myTcb );
+	}
+    }
+
+    // Exiting the current thread: wake up its parent sleeping in waitQueue
+    // under the condition = the parent id, handing it this thread id, and
+    // tell the Scheduler to delete this thread. A thread that already
+    // exited is left alone. A wakeup nobody waits for stays in waitQueue,
+    // so it is only left for a parent that has not exited: the next thread
+    // to get the parent's TID must not join a stranger. The parent's lock
+    // keeps the check and the wakeup together against the parent's exit.
+    private static int sysExit( ) {
+	TCB myTcb = scheduler.getMyTcb( );
+	if ( myTcb == null || myTcb.getTerminated( ) )
+	    return ERROR;
+	TCB parent = myTcb.getParent( );
+	if ( parent != null ) {
+	    synchronized( parent ) {
+		if ( parent.getIncarnation( ) == myTcb.getParentIncarnation( ) )
+		    waitQueue.dequeueAndWakeup( myTcb.getPid( ),
+						myTcb.getTid( ) );
+	    }
+	}
+	// children that exited unjoined left their TIDs under ours
+	synchronized( myTcb ) {
+	    myTcb.endIncarnation( );
+	    waitQueue.discardWakeups( myTcb.getTid( ) );
+	}
+	scheduler.deleteThread( );
+	return OK;
+    }
+
+    // Running a RAWREAD, RAWWRITE or SYNC command on the disk holding the
+    // block, or on every disk for a SYNC. A disk queues the request next to
+    // those of other threads and serves them in the order of its
+    // DiskScheduler. Meanwhile the caller sleeps in ioQueue
+    // under its own thread id, so the CPU goes to other threads, and the
+    // disk interrupt for its request wakes it up. A wakeup left over from an
+    // earlier request that was done before its caller slept is dropped
+    // first, so it cannot send the caller around the loop for nothing.
+    private static int diskCommand( int cmd, int blockId, byte buffer[] ) {
+	int tid = myTid( );
+	int command = ( cmd == RAWREAD ) ? Disk.READ :
+	    ( cmd == RAWWRITE ) ? Disk.WRITE : Disk.SYNC;
+	if ( tid >= 0 )
+	    ioQueue.discardWakeups( tid );
+	Disk.Request[] requests = disk.submit( command, blockId, buffer, tid );
+	if ( requests == null )
+	    return ERROR;
+	return awaitDisk( requests, tid );
+    }
+
+    // Running a vectored system call. args holds the block list and the
+    // buffer with one block for each, in the same order. The raw calls
+    // queue one disk request per run of adjacent blocks on each disk, all
+    // at once, and the caller sleeps until the last is done, woken by their
+    // interrupts.
+    private static int vectorCommand( int cmd, Object args ) {
+	if ( !( args instanceof Object[] ) || ( ( Object[] )args ).length != 2 ||
+	     !( ( ( Object[] )args )[0] instanceof int[] ) ||
+	     !( ( ( Object[] )args )[1] instanceof byte[] ) )
+	    return ERROR;
+	int blocks[] = ( int[] )( ( Object[] )args )[0];
+	byte buffer[] = ( byte[] )( ( Object[] )args )[1];
+	switch ( cmd ) {
+	case CREADV:
+	    return cache.readv( blocks, buffer ) ? OK : ERROR;
+	case CWRITEV:
+	    return cache.writev( blocks, buffer ) ? OK : ERROR;
+	}
+	int tid = myTid( );
+	if ( tid >= 0 )
+	    ioQueue.discardWakeups( tid );
+	Disk.Request[] requests = 
+	    disk.submit( ( cmd == RAWREADV ) ? Disk.READ : Disk.WRITE,
+			 blocks, buffer, tid );
+	if ( requests == null )
+	    return ERROR;
+	return awaitDisk( requests, tid );
+    }
+
+    // Starting a read of blocks into buffer for the caches' read-ahead and
+    // returning at once, or null if a block is not on the disk. The disk
+    // interrupts go to the caller, as for a RAWREADV.
+    public static Disk.Request[] startRead( int blocks[], byte buffer[] ) {
+	if ( disk == null )
+	    return null;
+	for ( int i = 0; i < blocks.length; i++ ) {
+	    if ( blocks[i] < 0 || blocks[i] >= disk.getSize( ) )
+		return null; // quietly, unlike a RAWREADV
+	}
+	return disk.submit( Disk.READ, blocks, buffer, myTid( ) );
+    }
+
+    // Sleeping until a read begun by startRead( ) is done. Only the thread
+    // that began it gets its interrupts, so anybody else returns false at
+    // once unless it is done already.
+    public static boolean awaitRead( Disk.Request requests[] ) {
+	int tid = myTid( );
+	for ( int i = 0; i < requests.length; i++ ) {
+	    if ( requests[i].tid != tid && requests[i].isDone( ) == false )
+		return false;
+	}
+	awaitDisk( requests, tid );
+	return true;
+    }
+
+    // The calling thread's id, or -1 if it is not a ThreadOS thread
+    private static int myTid( ) {
+	TCB myTcb = scheduler.getMyTcb( );
+	return ( myTcb != null ) ? myTcb.getTid( ) : -1;
+    }
+
+    // Sleeping in ioQueue until the disk is done with all the requests;
+    // each interrupt wakes the caller once, so it checks them all again
+    private static int awaitDisk( Disk.Request requests[], int tid ) {
+	for ( int i = 0; i < requests.length; i++ ) {
+	    if ( tid < 0 )
+		requests[i].await( ); // not a ThreadOS thread, so no interrupt
+	    while ( requests[i].isDone( ) == false )
+		sleepOn( ioQueue, tid );
+	}
+	return OK;
+    }
+
+    // Reading a keyboard input; a thread waiting for the keyboard is blocked
+    // so it gets no CPU time, and under the virtual clock it does not hold
+    // the clock back. Input that is already there (e.g. piped in) is read
+    // without blocking.
+    private static String readLine( ) throws IOException {
+	if ( input.ready( ) )
+	    return input.readLine( );
+	VirtualClock clock = VirtualClock.get( );
+	TCB myTcb = scheduler.blockThread( );
+	if ( clock != null )
+	    clock.deactivate( );
+	try {
+	    return input.readLine( );
+	} finally {
+	    if ( clock != null )
+		clock.activate( );
+	    scheduler.unblockThread( myTcb );
+	}
+    }
+
+    // Reading a comma separated list of milliseconds, such as "0.1,0.2",
+    // from a boot option and returning it in microseconds, or null
+    private static int[] microsListProperty( String name ) {
+	String value = System.getProperty( name );
+	if ( value == null )
+	    return null;
+	StringTokenizer token = new StringTokenizer( value, ", " );
+	int[] list = new int[ token.countTokens( ) ];
+	try {
+	    for ( int i = 0; token.hasMoreTokens( ); i++ )
+		list[i] = ( int )Math.round( Double.parseDouble( 
+						 token.nextToken( ) ) * 1000 );
+	} catch ( NumberFormatException e ) {
+	    System.err.println( "threadOS: ignoring " + name + "=" + value );
+	    return null;
+	}
+	return list;
+    }
+
+    // Looking up Thread.ofVirtual( ) for the virtual thread boot option
+    private static void initVirtualThreads( ) {
+	try {
+	    ofVirtual = Thread.class.getMethod( "ofVirtual" );
+	    unstarted = Class.forName( "java.lang.Thread$Builder" )
+		.getMethod( "unstarted", new Class[] { Runnable.class } );
+	} catch ( Exception e ) {
+	    ofVirtual = null;
+	    unstarted = null;
+	    System.err.println( "threadOS: virtual threads are not supported " +
+				"by this JVM, using platform threads" );
+	}
+    }
+
+    // Creating the thread that runs a user program. A virtual thread only
+    // occupies a carrier thread while it is running, so user programs parked
+    // in SysLib.sleep( ) or waiting for their run permit cost a small heap
+    // object instead of a platform thread and its stack.
+    // When the program returns without SysLib.exit( ), it exits here so its
+    // parent is still woken up, and under the virtual clock the thread stops
+    // being active.
+    private static Thread newUserThread( final Runnable userProgram ) {
+	Runnable program = new Runnable( ) {
+		public void run( ) {
+		    try {
+			userProgram.run( );
+		    } finally {
+			sysExit( );
+			if ( VirtualClock.get( ) != null )
+			    VirtualClock.get( ).deactivate( );
+		    }
+		}
+	    };
+	if ( ofVirtual != null ) {
+	    try {
+		Object builder = ofVirtual.invoke( null );
+		return ( Thread )unstarted.invoke( builder, program );
+	    } catch ( IllegalAccessException e ) {
+		System.out.println( e );
+	    } catch ( InvocationTargetException e ) {
+		System.out.println( e );
+	    }
+	}
+	return new Thread( program );
+    }
+
     // Spawning a new thread
     private static int sysExec( String args[] ) {
 	String thrName = args[0]; // args[0] has a thread name
@@ -222,7 +568,7 @@ public class Kernel
 		thrObj = thrConst.newInstance( constructorArgs );
 	    }
 	    // instantiate a new thread of this object
-	    Thread t = new Thread( (Runnable)thrObj );
+	    Thread t = newUserThread( (Runnable)thrObj );
 
 	    // add this thread into scheduler's circular list.
 	    TCB newTcb = scheduler.addThread( t );
@@ -1,4 +1,5 @@
 import java.io.*;
+import java.util.*;
 
 public class Loader extends Thread
 {
@@ -15,6 +16,31 @@ public class Loader extends Thread
 	SysLib.cout( "?:       print a help message\n" );
 	SysLib.cout( "q:       exit from threadOS\n" );
 	SysLib.cout( "l prog:  load prog\n" );
+	SysLib.cout( "t:       show the running processes\n" );
+    }
+
+    // a top-like view of the kernel's per-process accounting
+    private static void top( ) {
+	Vector procs = new Vector( );
+	if ( SysLib.stats( procs ) < 0 ) {
+	    SysLib.cerr( "stats failed\n" );
+	    return;
+	}
+	SysLib.cout( "  TID  PID   CPU(ms)  WAIT(ms)  RESP(ms)  DISP  " +
+		     "DEMOTIONS\n" );
+	for ( int i = 0; i < procs.size( ); i++ ) {
+	    long[] p = ( long[] )procs.elementAt( i );
+	    String demotions = "";
+	    for ( int j = TCB.STAT_DEMOTIONS; j < p.length; j++ )
+		demotions += ( j > TCB.STAT_DEMOTIONS ? "," : "" ) + p[j];
+	    SysLib.cout( String.format( "%5d %4d %9d %9d %9s %5d  %s\n",
+					p[TCB.STAT_TID], p[TCB.STAT_PID],
+					p[TCB.STAT_CPU] / 1000000,
+					p[TCB.STAT_WAIT] / 1000000,
+					p[TCB.STAT_RESPONSE] < 0 ? "-" :
+					"" + p[TCB.STAT_RESPONSE] / 1000000,
+					p[TCB.STAT_DISPATCH], demotions ) );
+	}
     }
 
     public void run( ) {
@@ -49,6 +75,9 @@ public class Loader extends Thread
 		break;
 	    case 'r':
 		break;
+	    case 't':
+		top( );
+		break;
 	    }
 	}
     }
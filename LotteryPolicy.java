@@ -0,0 +1,103 @@
+// --------------------------------LotteryPolicy.java---------------------------
+/*
+ * PURPOSE OF FILE
+ * This is lottery scheduling as a SchedulingPolicy. Every TCB holds a number
+ * of tickets (TCB.DEFAULT_TICKETS unless its thread calls SysLib.tickets( )).
+ * Each time the Cpu needs a thread, a ticket is drawn at random and its
+ * holder runs for one timeSlice. Over time, each TCB gets a share of the CPU
+ * in proportion to its tickets.
+ */
+
+import java.util.*;
+
+public class LotteryPolicy implements SchedulingPolicy {
+    private Vector queue;
+    private Random random;
+    private int quantum;                             //us to run
+
+    // -------------------------------------------------------------------------
+    // LotteryPolicy( int timeSlice, long seed )
+    /*
+     * SUMMARY
+     * This is the constructor. timeSlice is in milliseconds, and seed starts
+     * the sequence of draws.
+     */
+    public LotteryPolicy( int timeSlice, long seed ) {
+        queue = new Vector( );
+        random = new Random( seed );
+        quantum = timeSlice * 1000;
+    }
+
+    public String getName( ) {
+        return "lottery";
+    }
+
+    public synchronized void add( TCB tcb ) {
+        queue.add( tcb );
+    }
+
+    public synchronized boolean remove( TCB tcb ) {
+        return queue.remove( tcb );
+    }
+
+    // -------------------------------------------------------------------------
+    // pickNext( )
+    /*
+     * SUMMARY
+     * This function draws the winning ticket and returns its holder. The
+     * tickets are counted at every draw, since a thread may change its own
+     * while it runs.
+     */
+    public synchronized TCB pickNext( ) {
+        if ( queue.size( ) == 0 ) return null;
+        long total = 0;
+        for ( int i = 0; i < queue.size( ); i++ ) {
+            total += ( ( TCB )queue.elementAt( i ) ).getTickets( );
+        }
+        long winner = ( long )( random.nextDouble( ) * total );
+        for ( int i = 0; i < queue.size( ); i++ ) {
+            TCB tcb = ( TCB )queue.elementAt( i );
+            winner -= tcb.getTickets( );
+            if ( winner < 0 ) return tcb;
+        }
+        return ( TCB )queue.lastElement( );
+    }
+
+    public int getQuantum( TCB tcb ) {
+        return quantum;
+    }
+
+    public int getCheckInterval( TCB tcb ) {
+        return 0;
+    }
+
+    public boolean shouldPreempt( TCB tcb ) {
+        return false;
+    }
+
+    public void preempted( TCB tcb, long ranMicros ) {
+        // nothing to do, the next draw decides
+    }
+
+    public void stopped( TCB tcb, long ranMicros ) {
+        // nothing to do, the next draw decides
+    }
+
+    // -------------------------------------------------------------------------
+    // steal( Collection busy )
+    /*
+     * SUMMARY
+     * This function gives up the most recently added TCB unless it is busy.
+     */
+    public synchronized TCB steal( Collection busy ) {
+        if ( queue.size( ) == 0 ) return null;
+        TCB tcb = ( TCB )queue.lastElement( );
+        if ( busy.contains( tcb ) ) return null;
+        remove( tcb );
+        return tcb;
+    }
+
+    public synchronized int size( ) {
+        return queue.size( );
+    }
+}
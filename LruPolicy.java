@@ -0,0 +1,42 @@
+// --------------------------------LruPolicy.java-------------------------------
+/*
+ * PURPOSE OF FILE
+ * This is least recently used replacement, as a CachePolicy. The pages are
+ * kept in a LinkedHashSet in the order their blocks were last used, so a
+ * hit moves a page to the end and the victim is the first one, both in
+ * O(1). It is the baseline the scan-resistant policies are compared with.
+ */
+
+import java.util.*;
+
+public class LruPolicy implements CachePolicy {
+    private LinkedHashSet recency = new LinkedHashSet( ); //Pages, LRU first
+
+    public LruPolicy( int pages ) {
+    }
+
+    public String getName( ) {
+        return "lru";
+    }
+
+    public void hit( int page ) {
+        Integer key = Integer.valueOf( page );
+        recency.remove( key );
+        recency.add( key );
+    }
+
+    public int miss( int blockId, int freePage ) {
+        int page = freePage;
+        if ( page < 0 ) {
+            Iterator oldest = recency.iterator( );
+            page = ( ( Integer )oldest.next( ) ).intValue( );
+            oldest.remove( );
+        }
+        recency.add( Integer.valueOf( page ) );
+        return page;
+    }
+
+    public void removed( int page ) {
+        recency.remove( Integer.valueOf( page ) );
+    }
+}
@@ -0,0 +1,254 @@
+// --------------------------------MissRatioCurve.java--------------------------
+/*
+ * PURPOSE OF FILE
+ * This class estimates, while the disk cache runs, what its miss ratio would
+ * be at every size from 1 page up to the memory budget. The caches use it to
+ * pick their size.
+ *
+ * An LRU cache of c pages hits a block exactly when fewer than c other
+ * blocks were used since the block's last use, its stack distance. So a
+ * histogram of stack distances gives the whole miss-ratio curve at once.
+ * The curve is LRU's; it stands in for the other policies as well.
+ * Stack distances are found with a Fenwick tree over access times that
+ * marks the last use of every block, so each one costs O(log n).
+ *
+ * Following every block would cost memory for every block ever used, so
+ * the blocks are sampled the SHARDS way (Waldspurger et al.): a block is
+ * followed if a hash of its id is below a threshold, so either all uses of
+ * a block count or none. With a sampling rate R, a distance among sampled
+ * blocks stands for a distance 1 / R times longer. Every block is followed
+ * at first, and at most MAX_SAMPLED of them: when one more comes, the
+ * threshold drops to leave out the block with the highest hash, and R
+ * drops with it. The histogram is halved every DECAY samples, so the curve
+ * follows the workload as it changes.
+ *
+ * THREAD SAFETY
+ * isSampled( ) takes no lock, so unsampled blocks cost a hash and nothing
+ * else. Everything else is synchronized; a cache whose hits take no lock
+ * hands in its samples a batch at a time.
+ */
+
+import java.util.*;
+
+public class MissRatioCurve {
+    public static final double TOLERANCE = 0.01;     //Miss ratio given away
+    private static final int MAX_SAMPLED = 1024;     //Blocks followed at most
+    private static final int MIN_SAMPLES = 256;      //Before bestSize( )
+    private static final int DECAY = 8192;           //Samples per halving
+    private static final int CHECK = 1024;           //Samples per size check
+    private static final long HASH_RANGE = 1L << 24;
+
+    private final int maxPages;
+    private volatile long threshold;                 //Sampled: hash below it
+    private final double[] histogram;                //By distance in pages
+    private double beyond = 0;                       //Cold, or past maxPages
+    private double total = 0;
+    private long samples = 0;
+
+    // The blocks followed: their last access time, and in hash order
+    private final HashMap lastUse = new HashMap( );  //Block id to time
+    private final TreeSet byHash = new TreeSet( );   //hash << 32 | block id
+    private int[] tree;                              //Fenwick, by time
+    private int clock = 0;                           //The next access time
+
+    // maxPages is the largest cache size asked about
+    public MissRatioCurve( int maxPages ) {
+        this.maxPages = Math.max( 1, maxPages );
+        histogram = new double[ this.maxPages ];
+        threshold = HASH_RANGE;
+        tree = new int[ 16 * MAX_SAMPLED + 1 ];
+    }
+
+    // whether blockId is sampled; only those go to access( )
+    public boolean isSampled( int blockId ) {
+        return hash( blockId ) < threshold;
+    }
+
+    // -------------------------------------------------------------------------
+    // access( int blockId )
+    /*
+     * SUMMARY
+     * This function records a use of a sampled block: its stack distance
+     * among the sampled blocks, scaled by the sampling rate, goes into the
+     * histogram, and the block's last use moves to now. It returns true
+     * every CHECK samples, when the cache should look at its size again.
+     */
+    public synchronized boolean access( int blockId ) {
+        return record( blockId );
+    }
+
+    // the same for count uses, the blocks in order from blocks[from]
+    public synchronized boolean access( int blocks[], int from, int count ) {
+        boolean check = false;
+        for ( int i = from; i < from + count; i++ ) {
+            check |= record( blocks[i] );
+        }
+        return check;
+    }
+
+    private boolean record( int blockId ) {
+        long h = hash( blockId );
+        if ( h >= threshold ) {
+            return false;                            //Left out meanwhile
+        }
+        Integer key = Integer.valueOf( blockId );
+        Integer last = ( Integer )lastUse.get( key );
+        if ( last == null && lastUse.size( ) == MAX_SAMPLED ) {
+            dropHighest( );
+            if ( h >= threshold ) {
+                return false;
+            }
+        }
+        if ( clock == tree.length - 1 ) {
+            renumber( );
+            last = ( Integer )lastUse.get( key );
+        }
+
+        double rate = ( double )threshold / HASH_RANGE;
+        if ( last == null ) {
+            beyond++;
+            byHash.add( Long.valueOf( ( h << 32 ) | blockId ) );
+        } else {
+            int t = last.intValue( );
+            int distance = count( clock - 1 ) - count( t );
+            add( t, -1 );
+            int pages = ( int )( distance / rate );
+            if ( pages < maxPages ) {
+                histogram[pages]++;
+            } else {
+                beyond++;
+            }
+        }
+        total++;
+        add( clock, 1 );
+        lastUse.put( key, Integer.valueOf( clock ) );
+        clock++;
+
+        if ( ++samples % DECAY == 0 ) {
+            for ( int i = 0; i < maxPages; i++ ) {
+                histogram[i] /= 2;
+            }
+            beyond /= 2;
+            total /= 2;
+        }
+        return samples % CHECK == 0;
+    }
+
+    // -------------------------------------------------------------------------
+    // missRatio( int pages )
+    /*
+     * SUMMARY
+     * This function returns the estimated miss ratio of an LRU cache of the
+     * given number of pages, or -1 with too few samples so far.
+     */
+    public synchronized double missRatio( int pages ) {
+        if ( samples < MIN_SAMPLES ) {
+            return -1;
+        }
+        double hits = 0;
+        for ( int i = 0; i < Math.min( pages, maxPages ); i++ ) {
+            hits += histogram[i];
+        }
+        return 1.0 - hits / total;
+    }
+
+    // -------------------------------------------------------------------------
+    // bestSize( int minPages )
+    /*
+     * SUMMARY
+     * This function returns the smallest size of at least minPages whose
+     * estimated miss ratio is within TOLERANCE of the one at maxPages: more
+     * pages would hardly save a miss. It returns -1 with too few samples.
+     */
+    public synchronized int bestSize( int minPages ) {
+        if ( samples < MIN_SAMPLES ) {
+            return -1;
+        }
+        double best = missRatio( maxPages );
+        double hits = 0;
+        for ( int pages = 1; pages <= maxPages; pages++ ) {
+            hits += histogram[pages - 1];
+            if ( pages >= minPages && 1.0 - hits / total <= best + TOLERANCE ) {
+                return pages;
+            }
+        }
+        return maxPages;
+    }
+
+    public synchronized long getSamples( ) {
+        return samples;
+    }
+
+    // -------------------------------------------------------------------------
+    // dropHighest( )
+    /*
+     * SUMMARY
+     * This function lowers the threshold to the highest hash followed, so
+     * that block, and every block hashed above, is left out from now on.
+     */
+    private void dropHighest( ) {
+        Long highest = ( Long )byHash.last( );
+        threshold = highest.longValue( ) >>> 32;
+        while ( !byHash.isEmpty( ) ) {
+            long entry = ( ( Long )byHash.last( ) ).longValue( );
+            if ( ( entry >>> 32 ) < threshold ) {
+                break;
+            }
+            byHash.pollLast( );
+            Integer key = Integer.valueOf( ( int )entry );
+            Integer t = ( Integer )lastUse.remove( key );
+            if ( t != null ) {
+                add( t.intValue( ), -1 );
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // renumber( )
+    /*
+     * SUMMARY
+     * This function gives the blocks followed the access times 0, 1, ... in
+     * the order of their last uses, once the clock reaches the end of the
+     * tree, and rebuilds the tree.
+     */
+    private void renumber( ) {
+        Map.Entry[] uses = ( Map.Entry[] )lastUse.entrySet( ).toArray(
+            new Map.Entry[ lastUse.size( ) ] );
+        Arrays.sort( uses, new Comparator( ) {
+            public int compare( Object a, Object b ) {
+                Integer x = ( Integer )( ( Map.Entry )a ).getValue( );
+                Integer y = ( Integer )( ( Map.Entry )b ).getValue( );
+                return x.compareTo( y );
+            }
+        } );
+        Arrays.fill( tree, 0 );
+        for ( clock = 0; clock < uses.length; clock++ ) {
+            uses[clock].setValue( Integer.valueOf( clock ) );
+            add( clock, 1 );
+        }
+    }
+
+    // the Fenwick tree: adding delta at time t, and counting times 0 to t
+    private void add( int t, int delta ) {
+        for ( int i = t + 1; i < tree.length; i += i & -i ) {
+            tree[i] += delta;
+        }
+    }
+
+    private int count( int t ) {
+        int sum = 0;
+        for ( int i = t + 1; i > 0; i -= i & -i ) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    // a well mixed hash of a block id, in 0 to HASH_RANGE - 1
+    private static long hash( int blockId ) {
+        int h = blockId * 0x9E3779B1;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return ( h & 0xFFFFFFFFL ) % HASH_RANGE;
+    }
+}
@@ -0,0 +1,211 @@
+// --------------------------------MlfqPolicy.java------------------------------
+/*
+ * PURPOSE OF FILE
+ * This is the multilevel feed back-queue described in Scheduler.java, as a
+ * SchedulingPolicy. It has a configurable number of levels, each with two
+ * numbers:
+ * 1. quanta[level] is how long (in microseconds) a thread from that level
+ *    runs before it is moved to the tail of the next level. Threads in the
+ *    last level go back to the tail of the last level.
+ * 2. checkIntervals[level] is how often (in microseconds) the Cpu stops to
+ *    look for new TCBs in the levels above. If there are any, it runs one of
+ *    them and then resumes the same thread for the rest of its quantum. 0
+ *    means never.
+ * The defaults reproduce the original three queues: quanta of timeSlice / 2,
+ * timeSlice and timeSlice * 2, checked every timeSlice / 2 below queue0.
+ *
+ * PRIORITY BOOST
+ * If boostPeriod is set, every boostPeriod ms all TCBs below the top level
+ * are moved back to the tail of the top level, so long CPU-bound threads in
+ * the last level cannot starve forever.
+ */
+
+import java.util.*;
+
+public class MlfqPolicy implements SchedulingPolicy {
+    private Vector[] queues;                         //queues[0] is the top
+    private int[] quanta;                            //us to run per level
+    private int[] checkIntervals;                    //us between checks
+    private Map levels = new HashMap( );             //TCB to its level
+    private int boostPeriod = 0;                     //ms between boosts
+    private long nextBoost = 0;                      //nanoTime of next boost
+
+    // -------------------------------------------------------------------------
+    // MlfqPolicy( int timeSlice, int[] levelQuanta, int[] levelChecks,
+    //             int boost )
+    /*
+     * SUMMARY
+     * This is the constructor. A null levelQuanta gives the default three
+     * levels. A null or short levelChecks is filled in with timeSlice / 2 for
+     * every level but the top one. timeSlice and boost are in milliseconds,
+     * levelQuanta and levelChecks in microseconds.
+     */
+    public MlfqPolicy( int timeSlice, int[] levelQuanta, int[] levelChecks,
+                       int boost ) {
+        if ( levelQuanta == null || levelQuanta.length == 0 ) {
+            levelQuanta = new int[] { timeSlice * 500, timeSlice * 1000,
+                                      timeSlice * 2000 };
+        }
+        quanta = levelQuanta;
+        checkIntervals = new int[quanta.length];
+        queues = new Vector[quanta.length];
+        for ( int i = 0; i < quanta.length; i++ ) {
+            if ( levelChecks != null && i < levelChecks.length ) {
+                checkIntervals[i] = levelChecks[i];
+            } else {
+                checkIntervals[i] = ( i == 0 ) ? 0 : timeSlice * 500;
+            }
+            queues[i] = new Vector( );
+        }
+        boostPeriod = boost;
+        if ( boostPeriod > 0 ) {
+            nextBoost = VirtualClock.nanoTime( ) + boostPeriod * 1000000L;
+        }
+    }
+
+    public String getName( ) {
+        return "mlfq";
+    }
+
+    // -------------------------------------------------------------------------
+    // add( TCB tcb ), remove( TCB tcb )
+    /*
+     * SUMMARY
+     * A new TCB always goes to the tail of the top level. remove( ) takes a
+     * TCB out of whatever level it is in.
+     */
+    public synchronized void add( TCB tcb ) {
+        queues[0].add( tcb );
+        levels.put( tcb, Integer.valueOf( 0 ) );
+    }
+
+    public synchronized boolean remove( TCB tcb ) {
+        Integer level = ( Integer )levels.remove( tcb );
+        if ( level == null ) return false;
+        queues[level.intValue( )].remove( tcb );
+        return true;
+    }
+
+    // -------------------------------------------------------------------------
+    // pickNext( )
+    /*
+     * SUMMARY
+     * This function returns the head of the highest non-empty level. If a
+     * boost is due, it is done first.
+     */
+    public synchronized TCB pickNext( ) {
+        if ( boostPeriod > 0 &&
+             VirtualClock.nanoTime( ) - nextBoost >= 0 ) {
+            boost( );
+        }
+        int level = highestNonEmptyLevel( );
+        return ( level >= 0 ) ? ( TCB )queues[level].firstElement( ) : null;
+    }
+
+    public synchronized int getQuantum( TCB tcb ) {
+        return quanta[levelOf( tcb )];
+    }
+
+    public synchronized int getCheckInterval( TCB tcb ) {
+        return checkIntervals[levelOf( tcb )];
+    }
+
+    // -------------------------------------------------------------------------
+    // shouldPreempt( TCB tcb )
+    /*
+     * SUMMARY
+     * A running TCB is paused when a level above its own has content.
+     */
+    public synchronized boolean shouldPreempt( TCB tcb ) {
+        int highest = highestNonEmptyLevel( );
+        return highest >= 0 && highest < levelOf( tcb );
+    }
+
+    // -------------------------------------------------------------------------
+    // preempted( TCB tcb, long ranMicros )
+    /*
+     * SUMMARY
+     * A TCB that used up its quantum moves to the tail of the next level, or
+     * to the tail of the last level if it already is there. A move down is
+     * counted in the TCB's demotions.
+     */
+    public synchronized void preempted( TCB tcb, long ranMicros ) {
+        Integer level = ( Integer )levels.get( tcb );
+        if ( level == null ) return;
+        int from = level.intValue( );
+        int next = Math.min( from + 1, queues.length - 1 );
+        queues[from].remove( tcb );
+        queues[next].add( tcb );
+        levels.put( tcb, Integer.valueOf( next ) );
+        if ( next != from ) tcb.recordDemotion( from );
+    }
+
+    public void stopped( TCB tcb, long ranMicros ) {
+        // a TCB that blocks keeps its level
+    }
+
+    // -------------------------------------------------------------------------
+    // steal( Collection busy )
+    /*
+     * SUMMARY
+     * This function gives up the TCB at the tail of the highest level that
+     * has one that is not busy. The thief puts it at the top of its own
+     * levels.
+     */
+    public synchronized TCB steal( Collection busy ) {
+        for ( int i = 0; i < queues.length; i++ ) {
+            if ( queues[i].size( ) > 0 ) {
+                TCB tcb = ( TCB )queues[i].lastElement( );
+                if ( !busy.contains( tcb ) ) {
+                    queues[i].remove( queues[i].size( ) - 1 );
+                    levels.remove( tcb );
+                    return tcb;
+                }
+            }
+        }
+        return null;
+    }
+
+    public synchronized int size( ) {
+        return levels.size( );
+    }
+
+    // -------------------------------------------------------------------------
+    // boost( )
+    /*
+     * SUMMARY
+     * This function implements the periodic priority boost. It empties every
+     * level below the top one and appends its TCBs, in order, to the tail of
+     * the top level.
+     */
+    private void boost( ) {
+        for ( int i = 1; i < queues.length; i++ ) {
+            for ( int j = 0; j < queues[i].size( ); j++ ) {
+                TCB tcb = ( TCB )queues[i].elementAt( j );
+                queues[0].add( tcb );
+                levels.put( tcb, Integer.valueOf( 0 ) );
+            }
+            queues[i].clear( );
+        }
+        nextBoost = VirtualClock.nanoTime( ) + boostPeriod * 1000000L;
+    }
+
+    // -------------------------------------------------------------------------
+    // level helper functions
+    /*
+     * SUMMARY
+     * The following functions replace the old queueN_hasContent( ) and
+     * queueN_isEmpty( ) helpers now that the number of levels is not fixed.
+     */
+    private int levelOf( TCB tcb ) {
+        Integer level = ( Integer )levels.get( tcb );
+        return ( level != null ) ? level.intValue( ) : 0;
+    }
+
+    private int highestNonEmptyLevel( ) {
+        for ( int i = 0; i < queues.length; i++ ) {
+            if ( queues[i].size( ) > 0 ) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+// One condition of a SyncQueue. wakeup( ) leaves a TID for a sleeper; a
+// TID left while nobody sleeps is kept until the next sleep( ) takes it, so
+// a child that exits before its parent joins is not lost.
+//
+// There is no monitor. balance counts TIDs left minus threads sleeping:
+// positive means TIDs are waiting to be taken, negative means threads are
+// waiting for a TID. Both sides change it with one atomic add and then meet
+// through lock-free queues, so a wakeup is O(1) and any number of exiting
+// children can wake the same parent without contending for a lock.
+public class QueueNode {
+    private final ConcurrentLinkedQueue tids = new ConcurrentLinkedQueue( );
+    private final ConcurrentLinkedQueue sleepers = new ConcurrentLinkedQueue( );
+    private final AtomicInteger balance = new AtomicInteger( 0 );
+
+    // A thread waiting in sleep( )
+    private static class Sleeper {
+	final Thread thread = Thread.currentThread( );
+	volatile boolean woken = false;
+    }
+
+    // Taking the oldest TID left by wakeup( ), waiting for one if needed.
+    // Under the virtual clock a waiting thread is not active; the thread
+    // that wakes it activates it on its behalf.
+    public int sleep( ) {
+	if ( balance.getAndDecrement( ) <= 0 ) {
+	    Sleeper me = new Sleeper( );
+	    sleepers.offer( me );
+	    VirtualClock clock = VirtualClock.get( );
+	    if ( clock != null )
+		clock.deactivate( );
+	    while ( !me.woken )
+		LockSupport.park( this );
+	}
+	return take( );
+    }
+
+    // Leaving a TID and waking the oldest sleeper, if there is one. The TID
+    // is offered before balance is raised, so whoever the raise lets through
+    // finds it.
+    public void wakeup( int tid ) {
+	tids.offer( Integer.valueOf( tid ) );
+	if ( balance.getAndIncrement( ) < 0 ) {
+	    Sleeper sleeper;
+	    while ( ( sleeper = ( Sleeper )sleepers.poll( ) ) == null )
+		Thread.onSpinWait( ); // it has counted itself but not queued yet
+	    VirtualClock clock = VirtualClock.get( );
+	    if ( clock != null )
+		clock.activate( );
+	    sleeper.woken = true;
+	    LockSupport.unpark( sleeper.thread );
+	}
+    }
+
+    // Dropping the TIDs left while nobody slept, for conditions where only
+    // a wakeup that is waited for matters; returns how many were dropped
+    public int discard( ) {
+	int left;
+	do {
+	    left = balance.get( );
+	    if ( left <= 0 )
+		return 0;
+	} while ( !balance.compareAndSet( left, 0 ) );
+	for ( int i = 0; i < left; i++ )
+	    take( );
+	return left;
+    }
+
+    private int take( ) {
+	Integer tid;
+	while ( ( tid = ( Integer )tids.poll( ) ) == null )
+	    Thread.onSpinWait( );
+	return tid.intValue( );
+    }
+}
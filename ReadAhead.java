@@ -0,0 +1,282 @@
+// --------------------------------ReadAhead.java-------------------------------
+/*
+ * PURPOSE OF FILE
+ * This class is the read-ahead of the disk caches. A cread( ) miss costs a
+ * whole disk request, so a program reading a file block by block pays a
+ * seek and a transfer for every 512 bytes. ReadAhead watches the blocks
+ * that miss, and once a stream of them is sequential it reads the blocks
+ * that come next in one vectored request, while the program goes on.
+ *
+ * Streams are told apart by their recent blocks, not by their callers: a
+ * miss on the block that a stream expects next continues it, and any other
+ * miss starts a new stream in place of the stream used least recently. A
+ * stream's second miss in a row starts its first window of MIN_WINDOW
+ * blocks. Reading the first block of the last window fetched starts the
+ * next one, twice as long up to the maximum, so one window is always on
+ * its way while the previous one is read. A stream that skips blocks it
+ * had fetched halves its window, and stops reading ahead below MIN_WINDOW
+ * until it proves sequential again. Random misses never make a stream, so
+ * they cost a look through STREAMS entries and nothing else.
+ *
+ * The fetched blocks stay here until they are read. A cache miss on one of
+ * them takes its copy instead of reading the disk, and caches it from then
+ * on. A write to a block drops its copy, since the copy would be stale, so
+ * the caches call cancel( ) on every write, and for the blocks they
+ * already cached when a window started.
+ *
+ * A cache that locks its blocks in groups, as ConcurrentCache does, passes
+ * a limit with each miss: a window stops short of it, so the caller holds
+ * the lock of every block it fetches.
+ *
+ * The disk interrupts for a window go to the thread whose miss started it,
+ * so only that thread can sleep until the window arrives. Another thread
+ * that misses on one of its blocks before then reads the disk itself.
+ *
+ * THREAD SAFETY
+ * Every method but await( ) is synchronized, and none of them waits.
+ */
+
+import java.util.*;
+
+public class ReadAhead {
+    public static final int DEFAULT_WINDOW = 16;     //Most blocks per window
+    private static final int MIN_WINDOW = 4;
+    private static final int STREAMS = 8;
+
+    private final int blockSize;
+    private final int maxWindow;                     //0 = no read-ahead
+    private final Stream[] streams = new Stream[STREAMS];
+    private final HashMap pending = new HashMap( );  //Block id to its Fetch
+    private long misses = 0;                         //Orders the streams
+
+    // -------------------------------------------------------------------------
+    // Fetch
+    /*
+     * SUMMARY
+     * One window on its way from the disk: count blocks from first, the
+     * i-th at i * blockSize in data.
+     */
+    public static class Fetch {
+        private final int first;
+        private final int count;
+        private final byte[] data;
+        private final Disk.Request[] requests;
+
+        Fetch( int first, int count, byte data[], Disk.Request requests[] ) {
+            this.first = first;
+            this.count = count;
+            this.data = data;
+            this.requests = requests;
+        }
+
+        public int getFirst( ) {
+            return first;
+        }
+
+        public int getCount( ) {
+            return count;
+        }
+
+        public boolean isDone( ) {
+            for ( int i = 0; i < requests.length; i++ ) {
+                if ( !requests[i].isDone( ) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Stream
+    /*
+     * SUMMARY
+     * A run of misses. Blocks next to end - 1 are fetched and not read yet;
+     * reading marker starts the next window.
+     */
+    private static class Stream {
+        int next = -1;                               //The block expected next
+        int end = -1;                                //First block not fetched
+        int window = 0;                              //0 = not sequential yet
+        int marker = -1;
+        long lastMiss = 0;
+    }
+
+    public ReadAhead( int blockSize, int maxWindow ) {
+        this.blockSize = blockSize;
+        this.maxWindow = Math.max( 0, maxWindow );
+        for ( int i = 0; i < STREAMS; i++ ) {
+            streams[i] = new Stream( );
+        }
+    }
+
+    public int getMaxWindow( ) {
+        return maxWindow;
+    }
+
+    // -------------------------------------------------------------------------
+    // missed( int blockId )
+    /*
+     * SUMMARY
+     * The cache calls this function on every read of a block it does not
+     * cache, whether a Fetch holds it or not. It moves the block's stream
+     * along and returns the Fetch it started for that stream, or null. A
+     * window started reaches limit - 1 at most.
+     */
+    public Fetch missed( int blockId ) {
+        return missed( blockId, Integer.MAX_VALUE );
+    }
+
+    public synchronized Fetch missed( int blockId, int limit ) {
+        if ( maxWindow == 0 ) {
+            return null;
+        }
+        misses++;
+        Stream stream = streamOf( blockId );
+        if ( stream == null ) {
+            stream = leastRecent( );
+            drop( stream.next, stream.end );
+            stream.next = blockId + 1;
+            stream.end = blockId + 1;
+            stream.window = 0;
+            stream.marker = -1;
+            stream.lastMiss = misses;
+            return null;
+        }
+        stream.lastMiss = misses;
+        boolean skipped = drop( stream.next, blockId ) > 0;
+        stream.next = blockId + 1;
+        if ( stream.end < stream.next ) {
+            stream.end = stream.next;
+        }
+        if ( skipped ) {
+            stream.window /= 2;
+            if ( stream.window < MIN_WINDOW ) {
+                stream.window = 0;
+            }
+            return null;
+        }
+        if ( stream.window == 0 ) {
+            stream.window = MIN_WINDOW;
+        } else if ( blockId == stream.marker ) {
+            stream.window = Math.min( stream.window * 2, maxWindow );
+        } else if ( stream.end > stream.next ) {
+            return null;                             //Still ahead
+        }
+        return start( stream, limit );
+    }
+
+    // the Fetch holding a copy of blockId, or null
+    public synchronized Fetch find( int blockId ) {
+        return ( Fetch )pending.get( Integer.valueOf( blockId ) );
+    }
+
+    // -------------------------------------------------------------------------
+    // await( Fetch fetch )
+    /*
+     * SUMMARY
+     * This function sleeps until fetch has arrived, if the caller is the
+     * thread that started it, and returns whether it has arrived.
+     */
+    public boolean await( Fetch fetch ) {
+        if ( !fetch.isDone( ) ) {
+            Kernel.awaitRead( fetch.requests );
+        }
+        return fetch.isDone( );
+    }
+
+    // -------------------------------------------------------------------------
+    // take( Fetch fetch, int blockId, byte buffer[] )
+    /*
+     * SUMMARY
+     * This function copies blockId from fetch into buffer and forgets it.
+     * It returns false if fetch has not arrived yet or no longer holds the
+     * block, because it was written meanwhile.
+     */
+    public synchronized boolean take( Fetch fetch, int blockId,
+                                      byte buffer[] ) {
+        Integer key = Integer.valueOf( blockId );
+        if ( pending.get( key ) != fetch || !fetch.isDone( ) ) {
+            return false;
+        }
+        pending.remove( key );
+        System.arraycopy( fetch.data, ( blockId - fetch.first ) * blockSize,
+                          buffer, 0, blockSize );
+        return true;
+    }
+
+    // blockId was written, so a copy fetched for it is stale
+    public synchronized void cancel( int blockId ) {
+        if ( !pending.isEmpty( ) ) {
+            pending.remove( Integer.valueOf( blockId ) );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // start( Stream stream, int limit )
+    /*
+     * SUMMARY
+     * This function reads stream's next window from the disk without
+     * waiting for it, and makes its first block the marker. A window past
+     * the end of the disk is not read and the stream stops reading ahead.
+     * A window is cut short at limit, and none is read if the stream is
+     * there already.
+     */
+    private Fetch start( Stream stream, int limit ) {
+        int first = stream.end;
+        int count = Math.min( stream.window, limit - first );
+        if ( count <= 0 ) {
+            return null;
+        }
+        int[] blocks = new int[count];
+        for ( int i = 0; i < count; i++ ) {
+            blocks[i] = first + i;
+        }
+        byte[] data = new byte[ count * blockSize ];
+        Disk.Request[] requests = Kernel.startRead( blocks, data );
+        if ( requests == null ) {
+            stream.window = 0;
+            return null;
+        }
+        Fetch fetch = new Fetch( first, count, data, requests );
+        for ( int i = 0; i < count; i++ ) {
+            pending.put( Integer.valueOf( first + i ), fetch );
+        }
+        stream.end = first + count;
+        stream.marker = first;
+        return fetch;
+    }
+
+    // the stream blockId continues: it is expected next or already fetched
+    private Stream streamOf( int blockId ) {
+        for ( int i = 0; i < STREAMS; i++ ) {
+            Stream stream = streams[i];
+            if ( stream.next >= 0 && blockId >= stream.next &&
+                 ( blockId == stream.next || blockId < stream.end ) ) {
+                return stream;
+            }
+        }
+        return null;
+    }
+
+    private Stream leastRecent( ) {
+        Stream oldest = streams[0];
+        for ( int i = 1; i < STREAMS; i++ ) {
+            if ( streams[i].lastMiss < oldest.lastMiss ) {
+                oldest = streams[i];
+            }
+        }
+        return oldest;
+    }
+
+    // forgetting the copies of blocks from to end - 1; returns how many
+    private int drop( int from, int end ) {
+        int dropped = 0;
+        for ( int blockId = from; blockId >= 0 && blockId < end; blockId++ ) {
+            if ( pending.remove( Integer.valueOf( blockId ) ) != null ) {
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+}
@@ -0,0 +1,89 @@
+// --------------------------------RoundRobinPolicy.java------------------------
+/*
+ * PURPOSE OF FILE
+ * This is the Round Robin scheduler that the README compares the MLFQ with,
+ * as a SchedulingPolicy. All TCBs share one queue. The head runs for one
+ * timeSlice and then goes back to the tail. A running thread is never
+ * paused for a newer one.
+ */
+
+import java.util.*;
+
+public class RoundRobinPolicy implements SchedulingPolicy {
+    private Vector queue;
+    private int quantum;                             //us to run
+
+    // -------------------------------------------------------------------------
+    // RoundRobinPolicy( int timeSlice )
+    /*
+     * SUMMARY
+     * This is the constructor. timeSlice is in milliseconds.
+     */
+    public RoundRobinPolicy( int timeSlice ) {
+        queue = new Vector( );
+        quantum = timeSlice * 1000;
+    }
+
+    public String getName( ) {
+        return "rr";
+    }
+
+    public synchronized void add( TCB tcb ) {
+        queue.add( tcb );
+    }
+
+    public synchronized boolean remove( TCB tcb ) {
+        return queue.remove( tcb );
+    }
+
+    public synchronized TCB pickNext( ) {
+        return ( queue.size( ) > 0 ) ? ( TCB )queue.firstElement( ) : null;
+    }
+
+    public int getQuantum( TCB tcb ) {
+        return quantum;
+    }
+
+    public int getCheckInterval( TCB tcb ) {
+        return 0;
+    }
+
+    public boolean shouldPreempt( TCB tcb ) {
+        return false;
+    }
+
+    // -------------------------------------------------------------------------
+    // preempted( TCB tcb, long ranMicros )
+    /*
+     * SUMMARY
+     * A TCB that used up its quantum goes back to the tail of the queue.
+     */
+    public synchronized void preempted( TCB tcb, long ranMicros ) {
+        if ( queue.remove( tcb ) ) {
+            queue.add( tcb );
+        }
+    }
+
+    public void stopped( TCB tcb, long ranMicros ) {
+        // nothing to do, it goes to the tail when it is added again
+    }
+
+    // -------------------------------------------------------------------------
+    // steal( Collection busy )
+    /*
+     * SUMMARY
+     * This function gives up the TCB at the tail of the queue unless it is
+     * busy.
+     */
+    public synchronized TCB steal( Collection busy ) {
+        if ( queue.size( ) == 0 ) return null;
+        TCB tcb = ( TCB )queue.lastElement( );
+        if ( busy.contains( tcb ) ) return null;
+        queue.remove( queue.size( ) - 1 );
+        return tcb;
+    }
+
+    public synchronized int size( ) {
+        return queue.size( );
+    }
+}
@@ -31,6 +31,19 @@
  * 8. If a thread in queue 2 does not complete its execution for queue2's time
  *    slice, the scheduler puts it back to the tail of queue2.
  *
+ * MULTIPLE CPUS
+ * Cpu.java dispatches threads, one instance per simulated core, so N Cpus
+ * run up to N user threads at once. This class keeps what is shared by all
+ * of them: the Tids, the thread to TCB index, and the choice of which Cpu a
+ * new TCB goes to. Idle Cpus steal waiting TCBs from busy ones.
+ *
+ * SCHEDULING POLICIES
+ * The algorithm above is now one of several. Each Cpu asks its own
+ * SchedulingPolicy object which thread to run next, and setPolicy( ) picks
+ * the kind: "mlfq" (MlfqPolicy.java, the default), "rr", "cfs", "lottery" or
+ * "stride". The number of MLFQ levels, their quanta and a periodic priority
+ * boost can be changed with setLevels( ).
+ *
  * BRIEF NOTE
  * Above each of the following functions, there's a breif description of the 
  * function's job as well as what other functions it might call it.
@@ -44,66 +57,69 @@
  */
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.lang.management.*;
 
 public class Scheduler extends Thread {
-    private Vector queue0;                           //top level priority
-    private Vector queue1;                           //mid-level priority
-    private Vector queue2;                           //low-level priority
+    private Cpu[] cpus;                              //Simulated cores
+    private int nextCpu = 0;                         //Tie breaker for addThread
+    private TimerWheel timer;                        //Quanta and sleeps
     private int timeSlice;
-    private static final int DEFAULT_TIME_SLICE = 1000;
-    private static final int DEFAULT_MAX_THREADS = 10000;
-    private boolean[] tids;                          //Keep track of in-use Tids
-    private int nextId = 0;
+    public static final int DEFAULT_TIME_SLICE = 1000;
+    public static final int DEFAULT_MAX_THREADS = 10000;
+    public static final int DEFAULT_CPUS = 1;
+    public static final String DEFAULT_POLICY = "mlfq";
+    private String policyName = DEFAULT_POLICY;      //Kind of policy per Cpu
+    private int[] levelQuanta = null;                //MLFQ levels, null means
+    private int[] levelChecks = null;                //  the default three
+    private int boostPeriod = 0;                     //MLFQ boost, 0 means off
+    private Random seeds = new Random( );            //Seeds lottery policies
+    private Map<Thread, TCB> tcbTable;               //Thread to TCB index
+    private TidAllocator tids;                       //Keep track of in-use Tids
+    private long startTime = System.nanoTime( );     //Nanoseconds at creation
+    private TraceBuffer kernelTrace = null;          //System calls, if tracing
+    public static final int TCB_POOL_SIZE = 256;
+    private final TCB[] freeTcbs = new TCB[TCB_POOL_SIZE]; //Exited, reusable
+    private int freeCount = 0;
 
     // -------------------------------------------------------------------------
     // getMyTcb( )
     /*
      * SUMMARY
-     * This function is responsible for retrieving the current thread's TCB from
-     * the right queue. It starts by analyzing queue0 and proceeds onto queue1 
-     * and queue2. Upon finding the TCB, it returns the object to the function 
-     * that called it. Otherwise, it returns null.
+     * This function is responsible for retrieving the current thread's TCB. 
+     * Every TCB is indexed by its thread in tcbTable when it is added, so the 
+     * lookup is a single hash probe that takes no queue lock, no matter how 
+     * many threads are queued. It returns null for threads that ThreadOS did 
+     * not spawn, such as the scheduler or the disk.
      */
     public TCB getMyTcb( ) {
-        Thread myThread = Thread.currentThread( );      //Get thread object
-        
-        synchronized( queue0 ) {                        //Look for TCB in queue0
-            for ( int i = 0; i < queue0.size( ); i++ ) {
-                TCB tcb = ( TCB )queue0.elementAt( i ); //Grab a TCB object
-                Thread thread = tcb.getThread( );       //Grab the TCB's thread
-                if ( thread == myThread ) return tcb;   //Check if its the one
-            }
-        }
-        synchronized( queue1 ) {                        //Look for TCB in queue1
-            for ( int i = 0; i < queue1.size( ); i++ ) {
-                TCB tcb = ( TCB )queue1.elementAt( i );
-                Thread thread = tcb.getThread( );
-                if ( thread == myThread ) return tcb;
-            }
-        }
-        synchronized( queue2 ) {                        //Look for TCB in queue2
-            for ( int i = 0; i < queue2.size( ); i++ ) {
-                TCB tcb = ( TCB )queue2.elementAt( i );
-                Thread thread = tcb.getThread( );
-                if ( thread == myThread ) return tcb;
-            }
-        }
-        return null;
+        return tcbTable.get( Thread.currentThread( ) );
+    }
+    
+    // -------------------------------------------------------------------------
+    // awaitPermit( )
+    /*
+     * SUMMARY
+     * This function is called by Kernel.interrupt( ) at the start of every 
+     * system call. If the calling thread has a TCB and the scheduler has 
+     * revoked its run permit, the thread parks here until it is dispatched 
+     * again. Threads without a TCB, such as the disk, pass straight through.
+     */
+    public void awaitPermit( ) {
+        TCB tcb = getMyTcb( );
+        if ( tcb != null ) tcb.awaitPermit( );
     }
     
     // -------------------------------------------------------------------------
     // initTid( int maxThreads )
     /*
      * SUMMARY
-     * This function is responsible for allocating an ID array. As it goes 
-     * through a for loop, each element is marked to indicate if that id has 
-     * been used.
+     * This function is responsible for creating the Tid allocator. In-use ids
+     * are kept as bits in a lock-free bitmap (see TidAllocator.java), so Cpus
+     * running exec in parallel never wait on each other for a Tid.
      */
     private void initTid( int maxThreads ) {
-        tids = new boolean[maxThreads];
-        for ( int i = 0; i < maxThreads; i++ ) {
-            tids[i] = false;
-        }
+        tids = new TidAllocator( maxThreads );
     }
     
     // -------------------------------------------------------------------------
@@ -111,18 +127,10 @@ public class Scheduler extends Thread {
     /*
      * SUMMARY
      * This function is responsible for searching an available thread ID and
-     * providing a new thread with this ID.
+     * providing a new thread with this ID. It returns -1 if all are in use.
      */
     private int getNewTid( ) {
-        for ( int i = 0; i < tids.length; i++ ) {
-            int tentative = ( nextId + i ) % tids.length;
-            if ( tids[tentative] == false ) {
-                tids[tentative] = true;
-                nextId = ( tentative + 1 ) % tids.length;
-                return tentative;
-            }
-        }
-        return -1;
+        return tids.allocate( );
     }
     
     // -------------------------------------------------------------------------
@@ -130,14 +138,10 @@ public class Scheduler extends Thread {
     /*
      * SUMMARY
      * This function is responbile for returnign the thread ID and set the
-     * corresponding tids element to be unused.
+     * corresponding tids bit to be unused.
      */
     private boolean returnTid( int tid ) {
-        if ( tid >= 0 && tid < tids.length && tids[tid] == true ) {
-            tids[tid] = false;
-            return true;
-        }
-        return false;
+        return tids.release( tid );
     }
     
     // -------------------------------------------------------------------------
@@ -148,7 +152,7 @@ public class Scheduler extends Thread {
      * to be spawned in the system
      */
     public int getMaxThreads( ) {
-        return tids.length;
+        return tids.capacity( );
     }
     
     // -------------------------------------------------------------------------
@@ -157,15 +161,11 @@ public class Scheduler extends Thread {
      * SUMMARY
      * This is the default constructor for the scheduler class. It establishes 
      * and initializes the default values for timeSlice and initTid. In 
-     * addition, it creates three priority queues for the TCB's to live in 
-     * during their execution.
+     * addition, it creates a single Cpu whose three priority queues the TCB's
+     * live in during their execution.
      */
     public Scheduler( ) {
-        timeSlice = DEFAULT_TIME_SLICE;
-        queue0 = new Vector( );
-        queue1 = new Vector( );
-        queue2 = new Vector( );
-        initTid( DEFAULT_MAX_THREADS );
+        this( DEFAULT_TIME_SLICE, DEFAULT_MAX_THREADS, DEFAULT_CPUS );
     }
 
     // -------------------------------------------------------------------------
@@ -177,11 +177,7 @@ public class Scheduler extends Thread {
      * processess throughout scheduler's use.
      */
     public Scheduler(int quantum) {
-        timeSlice = quantum;
-        queue0 = new Vector( );
-        queue1 = new Vector( );
-        queue2 = new Vector( );
-        initTid( DEFAULT_MAX_THREADS );
+        this( quantum, DEFAULT_MAX_THREADS, DEFAULT_CPUS );
     }
 
     // -------------------------------------------------------------------------
@@ -192,13 +188,127 @@ public class Scheduler extends Thread {
      * the maximum number of threads that can be spawned.
      */
     public Scheduler( int quantum, int maxThreads ) {
+        this( quantum, maxThreads, DEFAULT_CPUS );
+    }
+
+    // -------------------------------------------------------------------------
+    // Scheduler(int quantum, int maxThreads, int cpuCount)
+    /*
+     * SUMMARY
+     * The constructor that all of the above delegate to. On top of the time
+     * quantum and the maximum number of threads, it recieves the number of 
+     * simulated CPUs and creates one Cpu, with its own MLFQ policy, for each.
+     */
+    public Scheduler( int quantum, int maxThreads, int cpuCount ) {
         timeSlice = quantum;
-        queue0 = new Vector( );
-        queue1 = new Vector( );
-        queue2 = new Vector( );
+        cpus = new Cpu[( cpuCount > 0 ) ? cpuCount : 1];
+        for ( int i = 0; i < cpus.length; i++ ) {
+            cpus[i] = new Cpu( this, i, newPolicy( ) );
+        }
+        timer = new TimerWheel( TimerWheel.DEFAULT_TICK, 
+                                TimerWheel.DEFAULT_WHEEL_SIZE );
+        tcbTable = new ConcurrentHashMap<Thread, TCB>( );
         initTid( maxThreads );
     }
 
+    // -------------------------------------------------------------------------
+    // setPolicy( String name )
+    /*
+     * SUMMARY
+     * This function is responsible for giving every Cpu a new, empty policy
+     * of the named kind. It must be called before the scheduler is started.
+     * It returns false, and changes nothing, if the name is unknown.
+     */
+    public boolean setPolicy( String name ) {
+        String previous = policyName;
+        policyName = name;
+        if ( newPolicy( ) == null ) {
+            policyName = previous;
+            return false;
+        }
+        installPolicies( );
+        return true;
+    }
+
+    // -------------------------------------------------------------------------
+    // setLevels( int[] quanta, int[] checkIntervals, int boostPeriod )
+    /*
+     * SUMMARY
+     * This function is responsible for configuring the MLFQ levels of every
+     * Cpu: the quantum of each level and how often a level checks the levels
+     * above it for new TCBs (both in microseconds), and the period of the
+     * priority boost (in ms). It must be called before the scheduler is
+     * started. See MlfqPolicy.java for what each number means. The other
+     * policies ignore it.
+     */
+    public void setLevels( int[] quanta, int[] checkIntervals, 
+                           int boostPeriod ) {
+        levelQuanta = quanta;
+        levelChecks = checkIntervals;
+        this.boostPeriod = boostPeriod;
+        installPolicies( );
+    }
+
+    // -------------------------------------------------------------------------
+    // setSeed( long seed )
+    /*
+     * SUMMARY
+     * This function is responsible for seeding the random draws of the
+     * lottery policy, so that a run can be repeated. Each Cpu gets its own
+     * seed, drawn from this one. It must be called before the scheduler is
+     * started. The other policies do not draw.
+     */
+    public void setSeed( long seed ) {
+        seeds = new Random( seed );
+        installPolicies( );
+    }
+
+    // -------------------------------------------------------------------------
+    // newPolicy( ), installPolicies( )
+    /*
+     * SUMMARY
+     * newPolicy( ) creates one policy of the current kind, or returns null if
+     * the kind is unknown. installPolicies( ) gives every Cpu a fresh one.
+     */
+    private SchedulingPolicy newPolicy( ) {
+        if ( policyName.equals( "mlfq" ) ) {
+            return new MlfqPolicy( timeSlice, levelQuanta, levelChecks,
+                                   boostPeriod );
+        } else if ( policyName.equals( "rr" ) ) {
+            return new RoundRobinPolicy( timeSlice );
+        } else if ( policyName.equals( "cfs" ) ) {
+            return new FairPolicy( timeSlice );
+        } else if ( policyName.equals( "lottery" ) ) {
+            return new LotteryPolicy( timeSlice, seeds.nextLong( ) );
+        } else if ( policyName.equals( "stride" ) ) {
+            return new StridePolicy( timeSlice );
+        }
+        return null;
+    }
+
+    private void installPolicies( ) {
+        for ( int i = 0; i < cpus.length; i++ ) {
+            cpus[i].setPolicy( newPolicy( ) );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // setTimerTick( int microseconds ), getTimer( )
+    /*
+     * SUMMARY
+     * The first function replaces the timer with one of the given tick length.
+     * It must be called before the scheduler is started. The second returns 
+     * the timer that the Cpus use for quantum deadlines and that sleepThread( )
+     * uses for sleeping processes.
+     */
+    public void setTimerTick( int microseconds ) {
+        timer = new TimerWheel( microseconds, TimerWheel.DEFAULT_WHEEL_SIZE );
+    }
+
+    public TimerWheel getTimer( ) {
+        return timer;
+    }
+
     // -------------------------------------------------------------------------
     // schedulerSleep( )
     /*
@@ -219,9 +329,10 @@ public class Scheduler extends Thread {
     // addThread( Thread t )
     /*
      * SUMMARY
-     * This function is responsible for adding threads to queue0. It begins with
+     * This function is responsible for adding new threads. It begins with
      * getting the parent thread's TCB and Tid, creating a TCB object, and 
-     * lastly adds this tcb to queue0. It returns this TCB object.
+     * lastly hands this tcb to the policy of the least loaded Cpu. It returns
+     * this TCB object.
      */
     public TCB addThread( Thread t ) {
         TCB parentTcb = getMyTcb( );                    //Get TCB and find TID
@@ -230,11 +341,132 @@ public class Scheduler extends Thread {
         
         if ( tid == -1) return null;
         
-        TCB tcb = new TCB( t, tid, pid );               //Create a new TCB
-        queue0.add( tcb );                              //Add it to queue0
+        TCB tcb = newTcb( t, tid, pid );                //Create a new TCB
+        tcb.setParent( parentTcb );                     //For its exit
+        tcbTable.put( t, tcb );                         //Index it by thread
+        leastLoadedCpu( ).addTcb( tcb );                //Make it ready
+        return tcb;
+    }
+
+    // -------------------------------------------------------------------------
+    // leastLoadedCpu( )
+    /*
+     * SUMMARY
+     * This function is responsible for picking the Cpu with the fewest queued
+     * TCBs. The search starts at a rotating position so that ties are spread
+     * over all Cpus instead of always landing on the first one.
+     */
+    private Cpu leastLoadedCpu( ) {
+        int start = nextCpu;
+        nextCpu = ( start + 1 ) % cpus.length;
+        Cpu best = cpus[start % cpus.length];
+        for ( int i = 1; i < cpus.length; i++ ) {
+            Cpu cpu = cpus[( start + i ) % cpus.length];
+            if ( cpu.getLoad( ) < best.getLoad( ) ) best = cpu;
+        }
+        return best;
+    }
+
+    // -------------------------------------------------------------------------
+    // stealWork( Cpu thief )
+    /*
+     * SUMMARY
+     * This function is called by an idle Cpu before it parks. It looks for the
+     * Cpu with the most queued TCBs and lets the thief take one of them. It 
+     * returns true if the thief now has something to run.
+     */
+    public boolean stealWork( Cpu thief ) {
+        Cpu victim = null;
+        for ( int i = 0; i < cpus.length; i++ ) {
+            if ( cpus[i] == thief ) continue;
+            if ( victim == null || cpus[i].getLoad( ) > victim.getLoad( ) ) {
+                victim = cpus[i];
+            }
+        }
+        return victim != null && victim.getLoad( ) > 0 
+            && thief.stealFrom( victim );
+    }
+
+    // -------------------------------------------------------------------------
+    // reapTcb( Thread t, TCB tcb )
+    /*
+     * SUMMARY
+     * This function is called by a Cpu that found the TCB of thread t dead.
+     * Only the first caller to drop the TCB from the thread index goes on to
+     * free it, so a TCB that deleteThread( ) already reaped, and that may even
+     * belong to a new thread by now, is left alone.
+     */
+    public void reapTcb( Thread t, TCB tcb ) {
+        if ( t != null && tcbTable.remove( t, tcb ) ) freeTcb( tcb );
+    }
+
+    // -------------------------------------------------------------------------
+    // freeTcb( TCB tcb )
+    /*
+     * SUMMARY
+     * This function is responsible for freeing the Tid of a reaped TCB and
+     * taking it out of its Cpu's policy. The TCB is recycled as soon as no
+     * Cpu is using it.
+     */
+    private void freeTcb( TCB tcb ) {
+        returnTid( tcb.getTid( ) );
+        Cpu cpu = tcb.getCpu( );
+        if ( cpu == null || cpu.retireTcb( tcb ) ) recycleTcb( tcb );
+    }
+
+    // -------------------------------------------------------------------------
+    // newTcb( Thread t, int tid, int pid ), recycleTcb( TCB tcb )
+    /*
+     * SUMMARY
+     * These functions keep up to TCB_POOL_SIZE TCBs of exited threads, with
+     * their fd tables, for new threads to reuse, so a workload that spawns
+     * many short-lived processes does not allocate a TCB for each. A
+     * recycled TCB lets go of its thread right away.
+     */
+    private TCB newTcb( Thread t, int tid, int pid ) {
+        TCB tcb = null;
+        synchronized( freeTcbs ) {
+            if ( freeCount > 0 ) {
+                tcb = freeTcbs[--freeCount];
+                freeTcbs[freeCount] = null;
+            }
+        }
+        if ( tcb == null ) return new TCB( t, tid, pid );
+        tcb.reuse( t, tid, pid );
         return tcb;
     }
+
+    public void recycleTcb( TCB tcb ) {
+        tcb.release( );
+        synchronized( freeTcbs ) {
+            if ( freeCount < freeTcbs.length ) freeTcbs[freeCount++] = tcb;
+        }
+    }
     
+    // -------------------------------------------------------------------------
+    // getStats( List out )
+    /*
+     * SUMMARY
+     * This function is responsible for collecting the accounting of every 
+     * live TCB (see TCB.getStats( )) into out, in Tid order. It returns the
+     * number of TCBs collected.
+     */
+    public int getStats( List out ) {
+        List stats = new ArrayList( );
+        for ( TCB tcb : tcbTable.values( ) ) {
+            stats.add( tcb.getStats( ) );
+        }
+        Collections.sort( stats, new Comparator( ) {
+            public int compare( Object a, Object b ) {
+                long x = ( ( long[] )a )[TCB.STAT_TID];
+                long y = ( ( long[] )b )[TCB.STAT_TID];
+                return ( x < y ) ? -1 : ( x == y ? 0 : 1 );
+            }
+        } );
+        out.addAll( stats );
+        return stats.size( );
+    }
+
     // -------------------------------------------------------------------------
     // deleteThread( )
     /*
@@ -242,231 +474,230 @@ public class Scheduler extends Thread {
      * This function is responsible for removing the TCB of a terminating 
      * thread. Upon being called, it grabs the current TCB from the thread, 
      * it then checks to make sure it isn't null. If it isn't, it sets the 
-     * tracker to "terminated" and returns. Otherwise, it returns false.
+     * tracker to "terminated", ends the thread's quantum so its Cpu moves 
+     * on, reaps the TCB right away and returns. Otherwise, it returns false.
+     * The TCB leaves the thread index first, so no Cpu can reap and recycle
+     * it while this function still uses it.
      */
     public boolean deleteThread( ) {
         TCB tcb = getMyTcb( );
-        if ( tcb!= null ) {
-            return tcb.setTerminated( );
+        if ( tcb!= null && tcbTable.remove( Thread.currentThread( ), tcb ) ) {
+            boolean terminated = tcb.setTerminated( );
+            Cpu cpu = tcb.getCpu( );
+            if ( cpu != null ) cpu.endQuantum( tcb );
+            freeTcb( tcb );
+            return terminated;
         } else {
             return false;
         }
     }
+
+    // -------------------------------------------------------------------------
+    // blockThread( ), unblockThread( TCB tcb )
+    /*
+     * SUMMARY
+     * These functions give a TCB a blocked state. A thread calls 
+     * blockThread( ) before it waits for something: its TCB leaves the ready
+     * TCBs of its Cpu and its quantum ends, so the Cpu runs somebody else.
+     * It returns the TCB, or null for threads that ThreadOS did not spawn.
+     * Once the wait is over, the thread calls unblockThread( ), which makes
+     * the TCB ready on the same Cpu again and returns when the thread has 
+     * been dispatched.
+     */
+    public TCB blockThread( ) {
+        TCB tcb = getMyTcb( );
+        if ( tcb == null || tcb.getCpu( ) == null ) return null;
+        tcb.getCpu( ).blockTcb( tcb );
+        return tcb;
+    }
+
+    public void unblockThread( TCB tcb ) {
+        if ( tcb == null ) return;
+        tcb.markReady( VirtualClock.nanoTime( ) );
+        tcb.getCpu( ).addTcb( tcb );
+        tcb.awaitPermit( );
+    }
     
     // -------------------------------------------------------------------------
     // sleepThread( int milliseconds )
     /*
      * SUMMARY
      * This function is responsible for sleeping a current thread by a 
-     * user-specified time amount. Throughout tihs program, each queue is 
-     * allowed to sleep for a specific time - timeSlice.
+     * user-specified time amount. The TCB is blocked for the duration, so it
+     * gets no CPU time while it sleeps. The sleeping threads wait in the 
+     * timer wheel, ordered by wakeup time, or on the virtual clock if there
+     * is one, and each is made ready again when its time is up.
      */
     public void sleepThread( int milliseconds ) {
-        try {
-            sleep( milliseconds );
-        } catch ( InterruptedException e ) { }
+        TCB tcb = blockThread( );
+        VirtualClock clock = VirtualClock.get( );
+        if ( clock != null ) {
+            int tid = ( tcb != null ) ? tcb.getTid( ) : -1;
+            clock.sleepNanos( milliseconds * 1000000L, 
+                              VirtualClock.USER_RANK + tid );
+        } else {
+            timer.sleepNanos( milliseconds * 1000000L );
+        }
+        unblockThread( tcb );
     }
     
     // -------------------------------------------------------------------------
-    // run()
+    // wakeScheduler( )
     /*
      * SUMMARY
-     * Since Scheduler extends Thread, this run() function is called 
-     * automatically when ThreadOS starts. It starts out by creating a Thread
-     * variable, current. It imediately enters into a while loop that runs 
-     * indefinetly. It is responsible for managing three differetn queues 
-     * (queue0, queue1, and queue2). It does so by calling three separate 
-     * process functions to handle each queue depending on if certain metrics 
-     * are met.
+     * This function is responsible for waking up every Cpu that is parked in
+     * waitForWork( ). It must be called by anything that makes a TCB runnable
+     * again, such as a wakeup from sleep or I/O.
      */
-    public void run( ) {
-        Thread current = null;
-        while ( true ) {
-            try {
-                if(allQueuesAreEmpty()) continue;        //Back to top
-                
-                if(queue0_hasContent()){
-                    if(processQueue0(current)) continue; //Process queue0
-                    continue;                            //Back to top
-                }
-                if(queue0_isEmpty() && queue1_hasContent()){
-                    if(processQueue1(current)) continue; //Process queue1
-                    continue;                            //Back to top
-                }
-                if(queue0_isEmpty() && queue1_isEmpty() && queue2_hasContent()){
-                    if(processQueue2(current)) continue; //Process queue2
-                    continue;                            //Back to top
-                }
-            } catch ( NullPointerException e3 ) { };
+    public void wakeScheduler( ) {
+        for ( int i = 0; i < cpus.length; i++ ) {
+            cpus[i].wakeUp( );
         }
     }
-    
+
     // -------------------------------------------------------------------------
-    // processQueue0(Thread), processQueue1(Thread), processQueue2(Thread)
-    /*
-     * SUMMARY
-     * The next three functions are similar yet different at the same time. For
-     * the purpose of documentation, relevant comments are labeled on the side 
-     * of the code. Essentially, they accept a Thread and get its TCB object. 
-     * With this TCB object, it uses some supporting functions to do certain 
-     * tasks that each function shares. The main difference that one might find 
-     * between these functions is that they handle the processing of each queue
-     * in specific ways.
-     *
-     * processQueue0
-     * Allows the processes in queue0 to execute for timeSlice/2. Afterwords,
-     * it moves incomplete processes into queue1 and returns.
-     *
-     * processQueue1
-     * Allows processes in queue1 to execute for timeSlice. Afterwords, it moves
-     * incomplete processes into queue1 and returns.
-     *
-     * processQueue2
-     * The last queue in the list, queue2, is the ending place for those 
-     * processes that do not finish within the alotted time from queue0 and 
-     * queue1 - timeSlice*2. Afterwords, it moves the processes still in the 
-     * queue from the front of the queue2 to the end of queue2.
-     * 
-     * SIDE NOTE
-     * If a TCB finishes its CPU burst within this queue, it returns the 
-     * function as true so that the rest of the processing code does not 
-     * get executed.
-     *
-     */
-    private boolean processQueue0(Thread current){
-        TCB currentTCB = (TCB)queue0.firstElement( );   //grab queue's first TCB
-        if(threadIsDead(currentTCB, queue0)) return true;
-        
-        current = currentTCB.getThread( );              //grab thread object
-        getThreadGoing(current);                        //start/resume thread
-        sleepThread(timeSlice/2);                       //sleep the scheduler
-        
-        //Move TCBs from queue0 to queue1
-        finishProcessingQueue(queue0, queue1, current, currentTCB);
-        return false;
-    }
-    
-    private boolean processQueue1(Thread current){
-        TCB currentTCB = (TCB)queue1.firstElement( );   //grab queue's first TCB
-        if(threadIsDead(currentTCB, queue1)) return true;
-        
-        current = currentTCB.getThread( );              //grab thread object
-        getThreadGoing(current);                        //start/resume thread
-        
-        sleepThread(timeSlice/2);                       //first timeSlice/2
-        if(queue0_hasContent()) processNewTcb(current);
-        sleepThread(timeSlice/2);                       //second timeSlice/2
-        
-        //Move TCBs from queue1 to queue2
-        finishProcessingQueue(queue1, queue2, current, currentTCB);
-        return false;
+    // getIdleTime( ), getUpTime( )
+    /*
+     * SUMMARY
+     * These functions return, in nanoseconds, how long the Cpus have been
+     * parked with nothing to run (summed over all Cpus) and how long the 
+     * scheduler has existed.
+     */
+    public long getIdleTime( ) {
+        long idleTime = 0;
+        for ( int i = 0; i < cpus.length; i++ ) {
+            idleTime += cpus[i].getIdleTime( );
+        }
+        return idleTime;
     }
-    
-    private boolean processQueue2(Thread current){
-        TCB currentTCB = (TCB)queue2.firstElement( );   //grab queue's first TCB
-        if(threadIsDead(currentTCB, queue2)) return true;
-        
-        current = currentTCB.getThread( );              //grab thread object
-        getThreadGoing(current);                        //start/resume thread
-        
-        sleepThread(timeSlice/2);                       //first timeSlice/2
-        if(queue0_hasContent() || queue1_hasContent()) processNewTcb(current);
-        sleepThread(timeSlice/2);                       //second timeSlice/2
-        sleepThread(timeSlice);                         //last timeSlice
-        
-        //Keep TCBs in queue2 so that their bursts can be completed.
-        finishProcessingQueue(queue2, queue2, current, currentTCB);
-        return false;
+
+    public long getUpTime( ) {
+        return System.nanoTime( ) - startTime;
     }
-    
+
     // -------------------------------------------------------------------------
-    // processNewTcb(Thread current)
+    // getCpuCount( )
     /*
      * SUMMARY
-     * For clarity's sake, this function provides the processQueue# with the 
-     * ability to process any new TCB's added to the program.
+     * This function returns the number of simulated Cpus the scheduler
+     * dispatches on, as set with -Dthreados.cpus.
      */
-    private void processNewTcb(Thread current){
-        if (current != null && current.isAlive()){
-            current.suspend();                          //put thread to sleep
-            Thread newProcess = null;                   //create new thread
-            processQueue0(newProcess);                  //process new TCB
-            current.resume();                           //resume the old TCB
-        }
+    public int getCpuCount( ) {
+        return cpus.length;
     }
-    
+
     // -------------------------------------------------------------------------
-    // finishProcessingQueue(Vector myQueue, Vector nextQueue,
-    //                       Thread current, TCB currentTCB){
+    // reportIdleTime( )
     /*
      * SUMMARY
-     * This function is called by each of the processQueueX() functions. It is
-     * responsible for finishing up the processing of each tcb. It accepts the 
-     * starting and ending destination queue for the tcb object.
+     * This function is responsible for turning on the idle time report. When
+     * ThreadOS exits, it prints how long the Cpus were idle and how much CPU 
+     * time their dispatch threads consumed. With the old hot spin the CPU time
+     * grew with the idle time; now it should stay close to zero. It also
+     * prints how far the measured time slices were from the requested quanta.
      */
-    private void finishProcessingQueue(Vector myQueue, Vector nextQueue,
-                                       Thread current, TCB currentTCB){
-        synchronized ( myQueue ) {
-            if ( current != null && current.isAlive( ) ) {
-                current.suspend();                      //put thread to sleep
-                myQueue.remove( currentTCB );           //remove TCB from queue0
-                nextQueue.add(currentTCB);              //add TCB to queue1
+    public void reportIdleTime( ) {
+        final Scheduler scheduler = this;
+        Runtime.getRuntime( ).addShutdownHook( new Thread( ) {
+            public void run( ) {
+                ThreadMXBean mx = ManagementFactory.getThreadMXBean( );
+                long cpu = 0;
+                for ( int i = 0; i < cpus.length; i++ ) {
+                    Thread t = cpus[i].getThread( );
+                    if ( !mx.isThreadCpuTimeSupported( ) ) cpu = -1;
+                    if ( cpu >= 0 && t != null ) {
+                        cpu += mx.getThreadCpuTime( t.getId( ) );
+                    }
+                }
+                System.err.println( "threadOS: scheduler idle " +
+                                    scheduler.getIdleTime( ) / 1000000 +
+                                    "ms of " + cpus.length + " x " +
+                                    scheduler.getUpTime( ) / 1000000 +
+                                    "ms uptime, scheduler cpu time " +
+                                    ( cpu < 0 ? "n/a" : cpu / 1000000 + "ms" ));
+                long slices = 0, error = 0, maxError = 0;
+                for ( int i = 0; i < cpus.length; i++ ) {
+                    slices += cpus[i].getSliceCount( );
+                    error += cpus[i].getSliceError( );
+                    maxError = Math.max( maxError,
+                                         cpus[i].getMaxSliceError( ) );
+                }
+                System.err.println( "threadOS: " + slices + " slices, " +
+                                    "quantum error avg " +
+                                    ( slices > 0 ? error / slices / 1000 : 0 ) +
+                                    "us max " + maxError / 1000 + "us" );
             }
-        }
+        } );
     }
-    
+
     // -------------------------------------------------------------------------
-    // threadIsDead(TCB currentTCB, Vector queue)
+    // enableTrace( final String fileName )
     /*
      * SUMMARY
-     * This is a neat function that lets the callign function know if the 
-     * current thread has finished it's CPU burst. If it finds a TCB terminated
-     * with its CPU burst, it removes it from the queue it's in and resets the 
-     * Tid array s othat that Tid is freed up for further use.
+     * This function is responsible for turning on the event trace: every Cpu
+     * gets its own TraceBuffer, the system calls share one more, and when 
+     * ThreadOS exits they are written to fileName as a Chrome trace (see 
+     * ChromeTrace.java). It must be called before the scheduler is started.
      */
-    private boolean threadIsDead(TCB currentTCB, Vector queue){
-        if ( currentTCB.getTerminated( ) == true ) {    //if TCB is dead, run
-            queue.remove( currentTCB );                 //remove TCB from queue
-            returnTid( currentTCB.getTid( ) );          //update the Tid array
-            return true;                               //return method call
+    public void enableTrace( final String fileName ) {
+        final TraceBuffer[] buffers = new TraceBuffer[cpus.length];
+        for ( int i = 0; i < cpus.length; i++ ) {
+            buffers[i] = new TraceBuffer( "cpu" + i, 
+                                          TraceBuffer.DEFAULT_CAPACITY );
+            cpus[i].setTrace( buffers[i] );
         }
-        return false;
+        kernelTrace = new TraceBuffer( "kernel", TraceBuffer.DEFAULT_CAPACITY );
+        final TraceBuffer kernel = kernelTrace;
+        final long traceStart = VirtualClock.nanoTime( );
+        Runtime.getRuntime( ).addShutdownHook( new Thread( ) {
+            public void run( ) {
+                try {
+                    ChromeTrace.write( fileName, buffers, kernel, traceStart );
+                    System.err.println( "threadOS: trace written to " + 
+                                        fileName );
+                } catch ( java.io.IOException e ) {
+                    System.err.println( "threadOS: cannot write trace " + 
+                                        fileName + ": " + e );
+                }
+            }
+        } );
     }
-    
+
     // -------------------------------------------------------------------------
-    // getThreadGoing(Thread current)
+    // trace( int type, int syscall )
     /*
      * SUMMARY
-     * No matter what state the thread is in, this function will either spin 
-     * the thread up for the first time or simply resume its execution.
+     * This function is called by Kernel.interrupt( ) around the system calls
+     * that can block. It records the event for the calling thread's TCB, and
+     * does nothing if tracing is off or the caller has no TCB.
      */
-    private void getThreadGoing(Thread current){
-        if ( current != null ) {                        //No null threads!
-            if ( current.isAlive( ) ) {                 //if thread is suspened,
-                current.resume();                       //resume the thread
-            } else {                                    //Otherwise,
-                current.start( );                       //'spin' it up
-            }
-        }
+    public void trace( int type, int syscall ) {
+        TraceBuffer buffer = kernelTrace;
+        if ( buffer == null ) return;
+        TCB tcb = getMyTcb( );
+        if ( tcb != null ) buffer.record( type, tcb.getTid( ), syscall );
     }
-    
+
     // -------------------------------------------------------------------------
-    // boolean helper functions
+    // run()
     /*
      * SUMMARY
-     * The following list of functions provide better readability in the code 
-     * above. Their purpose is easily determined and are primarily implemented 
-     * because I care about code readability.
+     * Since Scheduler extends Thread, this run() function is called 
+     * automatically when ThreadOS starts. It starts the timer and a thread for
+     * every Cpu but the first, and then runs the first Cpu's dispatch loop 
+     * itself.
      */
-    private boolean queue0_hasContent(){ return (queue0.size() > 0); }
-    private boolean queue1_hasContent(){ return (queue1.size() > 0); }
-    private boolean queue2_hasContent(){ return (queue2.size() > 0); }
-    
-    private boolean queue0_isEmpty(){ return (queue0.size() == 0); }
-    private boolean queue1_isEmpty(){ return (queue1.size() == 0); }
-    private boolean queue2_isEmpty(){ return (queue2.size() == 0); }
-    
-    private boolean allQueuesAreEmpty(){
-        return (queue0_isEmpty() && queue1_isEmpty() && queue2_isEmpty());
+    public void run( ) {
+        VirtualClock clock = VirtualClock.get( );
+        for ( int i = 0; clock != null && i < cpus.length; i++ ) {
+            clock.activate( );                       //Every Cpu starts active
+        }
+        timer.start( );
+        for ( int i = 1; i < cpus.length; i++ ) {
+            Thread cpuThread = new Thread( cpus[i], "cpu" + i );
+            cpuThread.setDaemon( true );
+            cpuThread.start( );
+        }
+        cpus[0].run( );
     }
 }
@@ -0,0 +1,63 @@
+// --------------------------------SchedulingPolicy.java------------------------
+/*
+ * PURPOSE OF FILE
+ * This interface is what a Cpu asks when it decides which thread to run and
+ * for how long. Each Cpu owns one policy object that holds its ready TCBs.
+ * The Cpu keeps the mechanics: run permits, quantum timing, idle parking and
+ * work stealing. The policy keeps the order. Kernel's BOOT case picks the
+ * implementation with -Dthreados.policy:
+ *   mlfq     MlfqPolicy         multilevel feedback queue (the default)
+ *   rr       RoundRobinPolicy   one queue, fixed quantum
+ *   cfs      FairPolicy         lowest virtual runtime first, in a tree
+ *   lottery  LotteryPolicy      random draw weighted by tickets
+ *   stride   StridePolicy       deterministic lottery, lowest pass first
+ *
+ * THREAD SAFETY
+ * A policy is called by its Cpu, by Scheduler.addThread( ) from any thread,
+ * and by other Cpus that steal from it. Implementations synchronize every
+ * method on the policy object itself, and the Cpu relies on that to pick a
+ * TCB and mark it busy in one step.
+ *
+ * A picked TCB stays in the policy while it runs. The Cpu reports back with
+ * preempted( ) when its quantum is over, or with remove( ) when it died. A
+ * TCB that blocks leaves the policy with remove( ) before its quantum is
+ * over, and the Cpu then reports how long it ran with stopped( ).
+ */
+
+import java.util.*;
+
+public interface SchedulingPolicy {
+    // the name used to select this policy at boot
+    String getName( );
+
+    // a new (or newly stolen) TCB becomes ready
+    void add( TCB tcb );
+
+    // a TCB leaves the policy for good; returns false if it was not there
+    boolean remove( TCB tcb );
+
+    // the TCB to dispatch next, or null if there is none; not removed
+    TCB pickNext( );
+
+    // how long, in microseconds, the TCB may run once dispatched
+    int getQuantum( TCB tcb );
+
+    // how often, in microseconds, to call shouldPreempt( ); 0 means never
+    int getCheckInterval( TCB tcb );
+
+    // true if a better TCB is waiting and the running one should pause
+    boolean shouldPreempt( TCB tcb );
+
+    // the TCB used up its quantum after running for ranMicros
+    void preempted( TCB tcb, long ranMicros );
+
+    // the TCB gave up the CPU after ranMicros, before its quantum was over;
+    // it may have left the policy, or even been added again, by now
+    void stopped( TCB tcb, long ranMicros );
+
+    // hand a waiting TCB that is not in busy over to another Cpu, or null
+    TCB steal( Collection busy );
+
+    // the number of TCBs held
+    int size( );
+}
@@ -0,0 +1,55 @@
+// --------------------------------SecondChancePolicy.java----------------------
+/*
+ * PURPOSE OF FILE
+ * This is the Cache's original replacement scheme, as a CachePolicy. Every
+ * page has a reference bit, set when its block is used. A victim cursor
+ * walks the pages in a circle: a page with its bit set has the bit cleared
+ * and is passed over once, and the first page without it is the victim.
+ * Dirty pages get no extra chance, so this is plain second chance; the
+ * name "esc" is kept because -Dthreados.cache.policy already selects it.
+ */
+
+public class SecondChancePolicy implements CachePolicy {
+    private boolean[] reference;
+    private int victim;                              //Last page examined
+
+    // -------------------------------------------------------------------------
+    // SecondChancePolicy( int pages )
+    /*
+     * SUMMARY
+     * This is the constructor. The cursor starts on the last page, so the
+     * first victim is page 0.
+     */
+    public SecondChancePolicy( int pages ) {
+        reference = new boolean[pages];
+        victim = pages - 1;
+    }
+
+    public String getName( ) {
+        return "esc";
+    }
+
+    public void hit( int page ) {
+        reference[page] = true;
+    }
+
+    public int miss( int blockId, int freePage ) {
+        int page = ( freePage >= 0 ) ? freePage : nextVictim( );
+        reference[page] = true;
+        return page;
+    }
+
+    public void removed( int page ) {
+        reference[page] = false;
+    }
+
+    private int nextVictim( ) {
+        while ( true ) {
+            victim = ( victim + 1 ) % reference.length;
+            if ( !reference[victim] ) {
+                return victim;
+            }
+            reference[victim] = false;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+// --------------------------------StridePolicy.java----------------------------
+/*
+ * PURPOSE OF FILE
+ * This is stride scheduling, the deterministic version of lottery scheduling,
+ * as a SchedulingPolicy. Every TCB has a stride of STRIDE1 / tickets, with
+ * the tickets its thread set with SysLib.tickets( ), and a pass value. The
+ * TCB with the lowest pass runs next and, after running, its pass goes up
+ * by its stride (scaled by how much of the quantum it used).
+ * Each TCB gets a share of the CPU in proportion to its tickets, without the
+ * randomness of a lottery.
+ */
+
+import java.util.*;
+
+public class StridePolicy implements SchedulingPolicy {
+    private static final long STRIDE1 = 1 << 20;
+    private TreeSet tree;                            //Entries by pass
+    private Map entries = new HashMap( );            //TCB to its Entry
+    private long globalPass = 0;                     //Pass of new arrivals
+    private long nextSeq = 0;                        //Breaks pass ties
+    private int quantum;                             //us to run
+
+    // -------------------------------------------------------------------------
+    // Entry
+    /*
+     * SUMMARY
+     * A TCB's place in the tree. An Entry is taken out of the tree before its
+     * pass changes and put back after.
+     */
+    private static class Entry {
+        final TCB tcb;
+        final long seq;
+        long pass;
+
+        Entry( TCB tcb, long seq, long pass ) {
+            this.tcb = tcb;
+            this.seq = seq;
+            this.pass = pass;
+        }
+    }
+
+    private static final Comparator BY_PASS = new Comparator( ) {
+        public int compare( Object a, Object b ) {
+            Entry x = ( Entry )a, y = ( Entry )b;
+            if ( x.pass != y.pass ) return ( x.pass < y.pass ) ? -1 : 1;
+            return ( x.seq < y.seq ) ? -1 : ( x.seq == y.seq ? 0 : 1 );
+        }
+    };
+
+    // -------------------------------------------------------------------------
+    // StridePolicy( int timeSlice )
+    /*
+     * SUMMARY
+     * This is the constructor. timeSlice is in milliseconds.
+     */
+    public StridePolicy( int timeSlice ) {
+        tree = new TreeSet( BY_PASS );
+        quantum = timeSlice * 1000;
+    }
+
+    public String getName( ) {
+        return "stride";
+    }
+
+    public synchronized void add( TCB tcb ) {
+        long pass = globalPass + tcb.getPassLeft( );
+        Entry entry = new Entry( tcb, nextSeq++, pass );
+        entries.put( tcb, entry );
+        tree.add( entry );
+    }
+
+    public synchronized boolean remove( TCB tcb ) {
+        Entry entry = ( Entry )entries.remove( tcb );
+        if ( entry == null ) return false;
+        tree.remove( entry );
+        tcb.setPassLeft( entry.pass - globalPass );
+        return true;
+    }
+
+    public synchronized TCB pickNext( ) {
+        return tree.isEmpty( ) ? null : ( ( Entry )tree.first( ) ).tcb;
+    }
+
+    public int getQuantum( TCB tcb ) {
+        return quantum;
+    }
+
+    public int getCheckInterval( TCB tcb ) {
+        return 0;
+    }
+
+    public boolean shouldPreempt( TCB tcb ) {
+        return false;
+    }
+
+    // -------------------------------------------------------------------------
+    // preempted( TCB tcb, long ranMicros )
+    /*
+     * SUMMARY
+     * This function advances the TCB's pass by its stride, scaled by the part
+     * of the quantum it used, and moves the global pass up to the lowest pass
+     * left in the tree. The stride comes from the tickets the TCB holds now.
+     */
+    public synchronized void preempted( TCB tcb, long ranMicros ) {
+        Entry entry = ( Entry )entries.get( tcb );
+        if ( entry == null ) return;
+        tree.remove( entry );
+        entry.pass += charge( tcb, ranMicros );
+        tree.add( entry );
+        globalPass = Math.max( globalPass, ( ( Entry )tree.first( ) ).pass );
+    }
+
+    // -------------------------------------------------------------------------
+    // stopped( TCB tcb, long ranMicros )
+    /*
+     * SUMMARY
+     * This function charges the part of the quantum a TCB used before it
+     * blocked, in the tree if it is back already, or on the TCB until it
+     * comes back.
+     */
+    public synchronized void stopped( TCB tcb, long ranMicros ) {
+        if ( entries.containsKey( tcb ) ) {
+            preempted( tcb, ranMicros );
+        } else {
+            tcb.setPassLeft( tcb.getPassLeft( ) + charge( tcb, ranMicros ) );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // steal( Collection busy )
+    /*
+     * SUMMARY
+     * This function gives up the TCB with the highest pass unless it is busy.
+     */
+    public synchronized TCB steal( Collection busy ) {
+        if ( tree.isEmpty( ) ) return null;
+        Entry entry = ( Entry )tree.last( );
+        if ( busy.contains( entry.tcb ) ) return null;
+        tree.remove( entry );
+        entries.remove( entry.tcb );
+        entry.tcb.setPassLeft( 0 );                  //Means nothing elsewhere
+        return entry.tcb;
+    }
+
+    public synchronized int size( ) {
+        return tree.size( );
+    }
+
+    // the stride, from the tickets the TCB holds now, scaled by the part of
+    // the quantum it ran
+    private long charge( TCB tcb, long ranMicros ) {
+        long stride = STRIDE1 / tcb.getTickets( );
+        return stride * Math.max( ranMicros, 1 ) / quantum;
+    }
+}
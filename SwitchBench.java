@@ -0,0 +1,99 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// SwitchBench measures how many dispatch/preempt round trips per second the
+// scheduler can make with Thread.suspend( )/resume( ) versus the TCB run
+// permits. It runs outside ThreadOS: "java SwitchBench [seconds]".
+//
+// A worker thread counts in a loop and wakes the controller after every
+// count. Each round trip, the controller lets the worker go, parks until the
+// worker has counted once, and stops it again. In permit mode the worker
+// checks its permit every iteration, the same way a user thread checks it at
+// every system call.
+public class SwitchBench {
+    private static final AtomicLong counter = new AtomicLong( );
+    private static volatile boolean done = false;
+    private static Thread controller;
+
+    public static void main( String args[] ) {
+	int seconds = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : 3;
+	controller = Thread.currentThread( );
+	report( "suspend/resume", suspendResume( seconds ), seconds );
+	report( "run permit    ", runPermit( seconds ), seconds );
+    }
+
+    private static void report( String name, long switches, int seconds ) {
+	if ( switches < 0 )
+	    System.out.println( name + ": not supported by this JVM" );
+	else
+	    System.out.println( name + ": " + switches / seconds +
+				" switches/sec" );
+    }
+
+    // one unit of user work, followed by a hand-off to the controller
+    private static void count( ) {
+	counter.incrementAndGet( );
+	LockSupport.unpark( controller );
+	Thread.yield( );
+    }
+
+    private static long suspendResume( int seconds ) {
+	done = false;
+	Thread worker = new Thread( ) {
+		public void run( ) {
+		    while ( done == false )
+			count( );
+		}
+	    };
+	worker.setDaemon( true );
+	long switches = 0;
+	try {
+	    worker.start( );
+	    worker.suspend( );
+	    long deadline = System.nanoTime( ) + seconds * 1000000000L;
+	    while ( System.nanoTime( ) < deadline ) {
+		long seen = counter.get( );
+		worker.resume( );
+		while ( counter.get( ) == seen )
+		    Thread.yield( );
+		worker.suspend( );
+		switches++;
+	    }
+	    done = true;
+	    worker.resume( );
+	} catch ( UnsupportedOperationException e ) {
+	    done = true;
+	    return -1;
+	}
+	return switches;
+    }
+
+    private static long runPermit( int seconds ) {
+	done = false;
+	final TCB[] tcb = new TCB[1];
+	Thread worker = new Thread( ) {
+		public void run( ) {
+		    while ( done == false ) {
+			tcb[0].awaitPermit( );
+			count( );
+		    }
+		}
+	    };
+	worker.setDaemon( true );
+	tcb[0] = new TCB( worker, 0, -1 );
+	worker.start( );
+	long switches = 0;
+	long deadline = System.nanoTime( ) + seconds * 1000000000L;
+	while ( System.nanoTime( ) < deadline ) {
+	    long seen = counter.get( );
+	    tcb[0].grantPermit( );
+	    while ( counter.get( ) == seen )
+		LockSupport.park( );
+	    tcb[0].revokePermit( );
+	    switches++;
+	}
+	done = true;
+	tcb[0].grantPermit( );
+	return switches;
+    }
+}
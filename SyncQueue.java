@@ -0,0 +1,63 @@
+import java.util.concurrent.atomic.*;
+
+// Threads waiting for a condition. Kernel uses one SyncQueue with a
+// condition per TID for SysLib.join( )/exit( ) and another with a few
+// conditions for disk I/O. A condition's QueueNode is only made the first
+// time it is used, so a queue sized for maxthreads costs one array slot per
+// TID until that TID has children.
+public class SyncQueue {
+    private final static int COND_MAX = 10; // the default number of conditions
+    private final static int NO_PID = -1;   // the TID woken for a plain wakeup
+
+    private AtomicReferenceArray queue = null;
+
+    public SyncQueue( ) {
+	initQueue( COND_MAX );
+    }
+
+    public SyncQueue( int condMax ) {
+	initQueue( condMax );
+    }
+
+    private void initQueue( int condMax ) {
+	queue = new AtomicReferenceArray( condMax > 0 ? condMax : COND_MAX );
+    }
+
+    // Sleeping until dequeueAndWakeup( condition ) is called; returns the TID
+    // passed to it, or -1 if condition is out of range
+    int enqueueAndSleep( int condition ) {
+	QueueNode node = nodeOf( condition );
+	return ( node != null ) ? node.sleep( ) : NO_PID;
+    }
+
+    // Waking up one thread sleeping under condition, or the next one to
+    // sleep under it, and handing it tid
+    void dequeueAndWakeup( int condition, int tid ) {
+	QueueNode node = nodeOf( condition );
+	if ( node != null )
+	    node.wakeup( tid );
+    }
+
+    void dequeueAndWakeup( int condition ) {
+	dequeueAndWakeup( condition, 0 );
+    }
+
+    // Dropping the wakeups left under condition while nobody slept
+    void discardWakeups( int condition ) {
+	QueueNode node = nodeOf( condition );
+	if ( node != null )
+	    node.discard( );
+    }
+
+    // The QueueNode of condition, made on first use, or null if out of range
+    private QueueNode nodeOf( int condition ) {
+	if ( condition < 0 || condition >= queue.length( ) )
+	    return null;
+	QueueNode node = ( QueueNode )queue.get( condition );
+	if ( node == null ) {
+	    queue.compareAndSet( condition, null, new QueueNode( ) );
+	    node = ( QueueNode )queue.get( condition );
+	}
+	return node;
+    }
+}
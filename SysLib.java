@@ -27,8 +27,13 @@ public class SysLib {
     }
 
     public static int disk( ) {
+	return disk( -1 );
+    }
+
+    // the disk finished a request of thread tid
+    public static int disk( int tid ) {
 	return Kernel.interrupt( Kernel.INTERRUPT_DISK,
-				 0, 0, null );
+				 0, tid, null );
     }
 
     public static int cin( StringBuffer s ) {
@@ -71,6 +76,56 @@ public class SysLib {
 				 Kernel.CWRITE, blkNumber, b );
     }
 
+    // Vectored I/O: a run of b.length / 512 blocks from blkNumber, or a
+    // list of blocks, the i-th one to or from b at i * 512, in one call
+    public static int rawreadv( int blkNumber, byte[] b ) {
+	return rawreadv( run( blkNumber, b ), b );
+    }
+
+    public static int rawreadv( int[] blkNumbers, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWREADV, 0,
+				 new Object[] { blkNumbers, b } );
+    }
+
+    public static int rawwritev( int blkNumber, byte[] b ) {
+	return rawwritev( run( blkNumber, b ), b );
+    }
+
+    public static int rawwritev( int[] blkNumbers, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWWRITEV, 0,
+				 new Object[] { blkNumbers, b } );
+    }
+
+    public static int creadv( int blkNumber, byte[] b ) {
+	return creadv( run( blkNumber, b ), b );
+    }
+
+    public static int creadv( int[] blkNumbers, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CREADV, 0,
+				 new Object[] { blkNumbers, b } );
+    }
+
+    public static int cwritev( int blkNumber, byte[] b ) {
+	return cwritev( run( blkNumber, b ), b );
+    }
+
+    public static int cwritev( int[] blkNumbers, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CWRITEV, 0,
+				 new Object[] { blkNumbers, b } );
+    }
+
+    private static int[] run( int blkNumber, byte[] b ) {
+	int[] blkNumbers = new int[ ( b != null ) ? b.length / Disk.blockSize
+				    : 0 ];
+	for ( int i = 0; i < blkNumbers.length; i++ )
+	    blkNumbers[i] = blkNumber + i;
+	return blkNumbers;
+    }
+
     public static int flush( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.CFLUSH, 0, null );
@@ -81,6 +136,26 @@ public class SysLib {
 				 Kernel.CSYNC, 0, null );
     }
 
+    public static int stats( List procs ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.STATS, 0, procs );
+    }
+
+    public static int time( ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.TIME, 0, null );
+    }
+
+    public static int cstats( long[] stats ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CSTATS, 0, stats );
+    }
+
+    public static int tickets( int count ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.TICKETS, count, null );
+    }
+
     public static String[] stringToArgs( String s ) {
 	StringTokenizer token = new StringTokenizer( s," " );
 	String[] progArgs = new String[ token.countTokens( ) ];
@@ -1,18 +1,71 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
 public class TCB {
     private Thread thread = null;
     private int tid = 0;
     private int pid = 0;
     private boolean terminated = false;
     private int sleepTime = 0;
+    private volatile boolean runPermit = false; // set while dispatched
+    private boolean parked = false;   // waiting for the permit, virtual clock
+    private Cpu cpu = null;           // the Cpu whose policy holds this TCB
+    private boolean retired = false;  // reaped, to be recycled by its Cpu
+    private int tickets = DEFAULT_TICKETS; // share under lottery and stride
+    private long vruntime = 0;        // kept by FairPolicy while blocked, us
+    private long passLeft = 0;        // kept by StridePolicy while blocked
+    private long incarnation = 0;     // one up per thread, and at its exit
+    private TCB parent = null;        // the TCB that spawned this one,
+    private long parentIncarnation;   // as it was then
+
+    // accounting, in nanoseconds, kept by the Cpu that dispatches this TCB
+    public final static int STAT_TID       = 0; // indices into getStats( )
+    public final static int STAT_PID       = 1;
+    public final static int STAT_CPU       = 2; // time spent dispatched
+    public final static int STAT_WAIT      = 3; // time spent ready
+    public final static int STAT_RESPONSE  = 4; // creation to first dispatch
+    public final static int STAT_DISPATCH  = 5; // number of dispatches
+    public final static int STAT_DEMOTIONS = 6; // demotions from level 0, ...
+    public final static int DEFAULT_TICKETS = 100;
+    private long createTime = 0;
+    private long readySince = 0;      // while ready
+    private boolean dispatched = false;
+    private long dispatchedAt = 0;    // while dispatched
+    private long cpuTime = 0;
+    private long waitTime = 0;
+    private long response = -1;       // -1 until first dispatched
+    private long dispatches = 0;
+    private long[] demotions = new long[0];
     public FileTableEntry[] ftEnt = null; // added for the file system
 
     public TCB( Thread newThread, int myTid, int parentTid ) {
+	ftEnt = new FileTableEntry[32];    // added for the file system
+	reuse( newThread, myTid, parentTid );
+    }
+
+    // the scheduler keeps the TCBs of exited threads and hands them to new
+    // threads, fd table and all, instead of allocating new ones
+    public synchronized void reuse( Thread newThread, int myTid,
+				    int parentTid ) {
 	thread = newThread;
 	tid = myTid;
 	pid = parentTid;
+	incarnation++;
+	parent = null;
 	terminated = false;
-
-	ftEnt = new FileTableEntry[32];    // added for the file system
+	sleepTime = 0;
+	runPermit = false;
+	parked = false;
+	cpu = null;
+	retired = false;
+	tickets = DEFAULT_TICKETS;
+	vruntime = 0;
+	passLeft = 0;
+	createTime = readySince = VirtualClock.nanoTime( );
+	dispatchedAt = cpuTime = waitTime = dispatches = 0;
+	dispatched = false;
+	response = -1;
+	Arrays.fill( demotions, 0 );
 
 	System.err.println( "threadOS: a new thread (thread=" + thread + 
 			    " tid=" + tid + 
@@ -40,6 +93,198 @@ public class TCB {
 	return terminated;
     }
 
+    // set by the Cpu under its policy lock once the TCB is reaped
+    public synchronized void setRetired( ) {
+	retired = true;
+    }
+
+    public synchronized boolean isRetired( ) {
+	return retired;
+    }
+
+    // an exited TCB lets go of its thread and open file entries before it
+    // waits to be reused
+    public synchronized void release( ) {
+	thread = null;
+	Arrays.fill( ftEnt, null );
+    }
+
+    // the Cpu this TCB is queued on, or was when it blocked
+    public synchronized Cpu getCpu( ) {
+	return cpu;
+    }
+
+    public synchronized void setCpu( Cpu newCpu ) {
+	cpu = newCpu;
+    }
+
+    // the parent TCB, remembered with its incarnation so that a child that
+    // outlives its parent does not mistake a new thread in it for its parent
+    public void setParent( TCB parentTcb ) {
+	long born = ( parentTcb != null ) ? parentTcb.getIncarnation( ) : 0;
+	synchronized( this ) {
+	    parent = parentTcb;
+	    parentIncarnation = born;
+	}
+    }
+
+    public synchronized TCB getParent( ) {
+	return parent;
+    }
+
+    public synchronized long getParentIncarnation( ) {
+	return parentIncarnation;
+    }
+
+    public synchronized long getIncarnation( ) {
+	return incarnation;
+    }
+
+    // the thread is exiting; its children's exits are no longer for it
+    public synchronized void endIncarnation( ) {
+	incarnation++;
+    }
+
+    // the tickets this thread holds under the lottery and stride policies,
+    // which read them whenever they need them
+    public synchronized int getTickets( ) {
+	return tickets;
+    }
+
+    public synchronized void setTickets( int count ) {
+	tickets = count;
+    }
+
+    // the virtual runtime FairPolicy charged a TCB that left it, so that
+    // blocking does not reset it
+    public synchronized long getVruntime( ) {
+	return vruntime;
+    }
+
+    public synchronized void setVruntime( long micros ) {
+	vruntime = micros;
+    }
+
+    // the pass StridePolicy had left to charge a TCB above the global pass
+    // when it left, so that blocking does not reset it either
+    public synchronized long getPassLeft( ) {
+	return passLeft;
+    }
+
+    public synchronized void setPassLeft( long pass ) {
+	passLeft = pass;
+    }
+
+    // the scheduler grants the run permit to dispatch this thread; under
+    // the virtual clock a thread parked for its permit becomes active again
+    public void grantPermit( ) {
+	VirtualClock clock = VirtualClock.get( );
+	if ( clock == null ) {
+	    runPermit = true;
+	} else {
+	    synchronized( this ) {
+		runPermit = true;
+		if ( parked ) {
+		    parked = false;
+		    clock.activate( );
+		}
+	    }
+	}
+	LockSupport.unpark( thread );
+    }
+
+    // the scheduler revokes the run permit to preempt this thread
+    public void revokePermit( ) {
+	runPermit = false;
+    }
+
+    public boolean hasPermit( ) {
+	return runPermit;
+    }
+
+    // called by this TCB's own thread at every system call boundary
+    public void awaitPermit( ) {
+	VirtualClock clock = VirtualClock.get( );
+	if ( clock == null ) {
+	    while ( runPermit == false )
+		LockSupport.park( this );
+	    return;
+	}
+	synchronized( this ) {
+	    if ( runPermit )
+		return;
+	    parked = true;
+	    clock.deactivate( );
+	}
+	while ( true ) {
+	    synchronized( this ) {
+		if ( parked == false )
+		    return;
+	    }
+	    LockSupport.park( this );
+	}
+    }
+
+    // the Cpu gives this TCB the processor: the time since it became
+    // ready is waiting time, and the first dispatch is its response
+    public synchronized void markDispatched( long now ) {
+	waitTime += now - readySince;
+	if ( response < 0 )
+	    response = now - createTime;
+	dispatches++;
+	dispatchedAt = now;
+	dispatched = true;
+    }
+
+    // the Cpu takes the processor back and this TCB is ready again
+    public synchronized void markPreempted( long now ) {
+	if ( dispatched )
+	    cpuTime += now - dispatchedAt;
+	dispatched = false;
+	readySince = now;
+    }
+
+    // this TCB was blocked and is ready again; the blocked time is not
+    // waiting time
+    public synchronized void markReady( long now ) {
+	readySince = now;
+    }
+
+    // the scheduling policy moved this TCB down from the given level
+    public synchronized void recordDemotion( int level ) {
+	if ( level >= demotions.length ) {
+	    long[] grown = new long[ level + 1 ];
+	    System.arraycopy( demotions, 0, grown, 0, demotions.length );
+	    demotions = grown;
+	}
+	demotions[level]++;
+    }
+
+    // the number of demotions from all levels together
+    public synchronized long getDemotions( ) {
+	long total = 0;
+	for ( int i = 0; i < demotions.length; i++ )
+	    total += demotions[i];
+	return total;
+    }
+
+    // a snapshot of the accounting, indexed by the STAT_ constants; the
+    // time a dispatched TCB has run so far is included in STAT_CPU
+    public synchronized long[] getStats( ) {
+	long[] stats = new long[ STAT_DEMOTIONS + demotions.length ];
+	stats[STAT_TID] = tid;
+	stats[STAT_PID] = pid;
+	stats[STAT_CPU] = cpuTime;
+	if ( dispatched )
+	    stats[STAT_CPU] += VirtualClock.nanoTime( ) - dispatchedAt;
+	stats[STAT_WAIT] = waitTime;
+	stats[STAT_RESPONSE] = response;
+	stats[STAT_DISPATCH] = dispatches;
+	System.arraycopy( demotions, 0, stats, STAT_DEMOTIONS,
+			  demotions.length );
+	return stats;
+    }
+
     // added for the file system
     public synchronized int getFd( FileTableEntry entry ) {
 	if ( entry == null )
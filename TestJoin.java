@@ -0,0 +1,28 @@
+// Checks that a TID left by a child that exited unjoined does not outlive
+// its parent: a parent exits without joining its child, and then threads
+// that get the parent's TID again must join only their own children. The
+// child exits before its parent ("parent") or after it ("orphaner"). Run
+// it with a small -Dthreados.maxthreads so that TIDs are reused soon.
+class TestJoin extends Thread {
+
+    public void run( ) {
+	check( "parent" );
+	check( "orphaner" );
+	SysLib.exit( );
+    }
+
+    private void check( String role ) {
+	int parent = SysLib.exec( SysLib.stringToArgs( "TestJoinThread " + role ) );
+	SysLib.join( );
+	int rounds = Integer.getInteger( "threados.maxthreads", 8 ) * 2;
+	int reused = 0;
+	for ( int i = 0; i < rounds; i++ ) {
+	    int tid = SysLib.exec( SysLib.stringToArgs( "TestJoinThread reuser" ) );
+	    if ( tid == parent )
+		reused++;
+	    SysLib.join( );
+	}
+	SysLib.cout( "TestJoin: " + role + " tid " + parent + " reused " +
+		     reused + " times\n" );
+    }
+}
@@ -0,0 +1,35 @@
+// The threads of TestJoin. A "parent" starts a child that exits at once and
+// exits itself without joining it. An "orphaner" starts a child that exits
+// a while after it, and exits at once. A "reuser" starts a child that
+// sleeps a while and checks that join( ) returns that child's TID once it
+// exited. A "child" sleeps the given milliseconds and exits.
+class TestJoinThread extends Thread {
+    private String role;
+    private int millis;
+
+    public TestJoinThread ( String args[] ) {
+	role = args[0];
+	millis = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 0;
+    }
+
+    public void run( ) {
+	if ( role.equals( "parent" ) ) {
+	    SysLib.exec( SysLib.stringToArgs( "TestJoinThread child 0" ) );
+	    SysLib.sleep( 500 ); // the child exits while nobody joins it
+	} else if ( role.equals( "orphaner" ) ) {
+	    SysLib.exec( SysLib.stringToArgs( "TestJoinThread child 500" ) );
+	} else if ( role.equals( "reuser" ) ) {
+	    // a stale TID may even be the child's, so the time tells too
+	    int start = SysLib.time( );
+	    String[] args = SysLib.stringToArgs( "TestJoinThread child 300" );
+	    int child = SysLib.exec( args );
+	    int joined = SysLib.join( );
+	    if ( joined != child || SysLib.time( ) - start < 300 )
+		SysLib.cout( "TestJoin: FAILED, tid " + joined +
+			     " joined before " + child + " exited\n" );
+	} else if ( millis > 0 ) {
+	    SysLib.sleep( millis );
+	}
+	SysLib.exit( );
+    }
+}
@@ -1,5 +1,3 @@
-import java.util.Date;
-
 class TestThread2b extends Thread {
    private String name;
    private int cpuBurst;
@@ -12,18 +10,18 @@ class TestThread2b extends Thread {
       name = args[0];
       cpuBurst = Integer.parseInt( args[1] );
 
-      submissionTime = new Date( ).getTime( );
+      submissionTime = SysLib.time( );
    }
 
    public void run( ) {
-      responseTime = new Date( ).getTime( );
+      responseTime = SysLib.time( );
 
       for ( int burst = cpuBurst; burst > 0; burst -= 100 ) {
          SysLib.cout( "Thread[" + name + "] is running\n" );
          SysLib.sleep( 100 );
       }
 
-      completionTime = new Date( ).getTime( );
+      completionTime = SysLib.time( );
       SysLib.cout( "Thread[" + name + "]:" +
             " response time = " + (responseTime - submissionTime) +
             " turnaround time = " + (completionTime - submissionTime)+
@@ -0,0 +1,53 @@
+// Checks that tickets set with SysLib.tickets( ) decide the CPU share under
+// the lottery and stride policies: two busy threads, one with 200 tickets
+// and one with 100, should run about 2:1. Run it on one CPU, e.g.
+// java -Dthreados.policy=stride -Dthreados.cpus=1 Boot. The quantum is a
+// second, so the argument, how many seconds to measure (12 by default),
+// should be a few times larger for a lottery.
+class TestTickets extends Thread {
+    private int seconds = 12;
+
+    public TestTickets ( ) {
+    }
+
+    public TestTickets ( String args[] ) {
+	if ( args.length > 0 )
+	    seconds = Integer.parseInt( args[0] );
+    }
+
+    public void run( ) {
+	SysLib.tickets( 10000 ); // to win the draw as soon as it wakes up
+	String busy = " " + ( seconds + 2 ) * 1000; // still run at the stats
+	String[] args1 = SysLib.stringToArgs( "TestTicketsThread 200" + busy );
+	String[] args2 = SysLib.stringToArgs( "TestTicketsThread 100" + busy );
+	int rich = SysLib.exec( args1 );
+	int poor = SysLib.exec( args2 );
+	SysLib.sleep( seconds * 1000 );
+
+	java.util.List procs = new java.util.ArrayList( );
+	SysLib.stats( procs );
+	long richCpu = 0, poorCpu = 0;
+	for ( int i = 0; i < procs.size( ); i++ ) {
+	    long[] stats = ( long[] )procs.get( i );
+	    if ( stats[TCB.STAT_TID] == rich )
+		richCpu = stats[TCB.STAT_CPU];
+	    else if ( stats[TCB.STAT_TID] == poor )
+		poorCpu = stats[TCB.STAT_CPU];
+	}
+	// a lottery of one draw a second is noisy: allow three standard
+	// deviations of the share won in that many draws
+	double share = ( double )richCpu / Math.max( richCpu + poorCpu, 1 );
+	double slack = 0.05;
+	if ( "lottery".equals( System.getProperty( "threados.policy" ) ) )
+	    slack = 3 * Math.sqrt( 2.0 / 9 / seconds );
+	SysLib.cout( "TestTickets: cpu " + richCpu / 1000000 + "ms : " +
+		     poorCpu / 1000000 + "ms, share " +
+		     Math.round( share * 100 ) / 100.0 + " of 0.67 +- " +
+		     Math.round( slack * 100 ) / 100.0 +
+		     ( Math.abs( share - 2.0 / 3 ) <= slack ?
+		       " PASSED\n" : " FAILED\n" ) );
+	SysLib.join( );
+	SysLib.join( );
+	SysLib.exit( );
+    }
+}
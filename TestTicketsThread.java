@@ -0,0 +1,19 @@
+// A thread of TestTickets: it takes the given tickets and keeps the CPU busy
+// for the given milliseconds. Its system calls let the scheduler preempt it.
+class TestTicketsThread extends Thread {
+    private int tickets;
+    private int millis;
+
+    public TestTicketsThread ( String args[] ) {
+	tickets = Integer.parseInt( args[0] );
+	millis = Integer.parseInt( args[1] );
+    }
+
+    public void run( ) {
+	SysLib.tickets( tickets );
+	int end = SysLib.time( ) + millis;
+	while ( SysLib.time( ) < end )
+	    ;
+	SysLib.exit( );
+    }
+}
@@ -0,0 +1,193 @@
+// --------------------------------TidAllocator.java----------------------------
+/*
+ * PURPOSE OF FILE
+ * This file hands out thread IDs for the scheduler. In-use TIDs are kept as
+ * bits packed 64 to a word in an AtomicLongArray, and a second, 64 times
+ * smaller bitmap marks which words are full. Allocation first looks for a
+ * word that is not full, then for a clear bit in that word, and claims the
+ * bit with a compare-and-set. Several threads can allocate and release at
+ * the same time without a lock. Even with millions of TIDs and most of them
+ * taken, an allocation only reads a few summary words and one bitmap word.
+ *
+ * Like the old boolean[] scan, the search starts just after the last TID
+ * handed out, so a released TID is not reused right away.
+ */
+
+import java.util.concurrent.atomic.*;
+
+public class TidAllocator {
+    private static final long FULL = -1L;            //All 64 bits set
+    private final int capacity;
+    private final AtomicLongArray words;             //Bit set = TID in use
+    private final AtomicLongArray full;              //Bit set = word is full
+    private final AtomicInteger nextId;              //Where searches start
+
+    // -------------------------------------------------------------------------
+    // TidAllocator( int capacity )
+    /*
+     * SUMMARY
+     * This is the constructor. The bits past the last TID in the last word are
+     * set up front, so they are never handed out and a full word is always
+     * FULL.
+     */
+    public TidAllocator( int capacity ) {
+        this.capacity = ( capacity > 0 ) ? capacity : 1;
+        int wordCount = ( this.capacity + 63 ) >>> 6;
+        words = new AtomicLongArray( wordCount );
+        full = new AtomicLongArray( ( wordCount + 63 ) >>> 6 );
+        nextId = new AtomicInteger( 0 );
+        int used = this.capacity & 63;
+        if ( used != 0 ) {
+            words.set( wordCount - 1, FULL << used );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // capacity( )
+    /*
+     * SUMMARY
+     * This function returns the maximal number of TIDs.
+     */
+    public int capacity( ) {
+        return capacity;
+    }
+
+    // -------------------------------------------------------------------------
+    // allocate( )
+    /*
+     * SUMMARY
+     * This function is responsible for claiming a free TID and returning it,
+     * or -1 if all TIDs are taken. The summary bitmap is only a hint: if it
+     * claims that every word is full, the words themselves are scanned once
+     * before giving up.
+     */
+    public int allocate( ) {
+        int start = nextId.get( );
+        int wordCount = words.length( );
+        int first = ( start >>> 6 ) % wordCount;
+
+        int word = findWord( first );
+        for ( int tries = 0; word >= 0 && tries < wordCount; tries++ ) {
+            int tid = claimIn( word, ( word == first ) ? start & 63 : 0 );
+            if ( tid >= 0 ) return tid;
+            word = findWord( ( word + 1 ) % wordCount );
+        }
+        for ( int i = 0; i < wordCount; i++ ) {         //Summary was stale
+            int tid = claimIn( ( first + i ) % wordCount, 0 );
+            if ( tid >= 0 ) return tid;
+        }
+        return -1;
+    }
+
+    // -------------------------------------------------------------------------
+    // release( int tid )
+    /*
+     * SUMMARY
+     * This function is responsible for returning a TID. It returns false if
+     * the TID is out of range or was not in use.
+     */
+    public boolean release( int tid ) {
+        if ( tid < 0 || tid >= capacity ) return false;
+        int word = tid >>> 6;
+        long bit = 1L << ( tid & 63 );
+        while ( true ) {
+            long value = words.get( word );
+            if ( ( value & bit ) == 0 ) return false;
+            if ( words.compareAndSet( word, value, value & ~bit ) ) break;
+        }
+        clearFull( word );
+        return true;
+    }
+
+    // -------------------------------------------------------------------------
+    // isAllocated( int tid )
+    /*
+     * SUMMARY
+     * This function returns true if the TID is currently in use.
+     */
+    public boolean isAllocated( int tid ) {
+        if ( tid < 0 || tid >= capacity ) return false;
+        return ( words.get( tid >>> 6 ) & ( 1L << ( tid & 63 ) ) ) != 0;
+    }
+
+    // -------------------------------------------------------------------------
+    // claimIn( int word, int fromBit )
+    /*
+     * SUMMARY
+     * This function is responsible for setting the first clear bit at or after
+     * fromBit in the given word, retrying when another thread changes the word
+     * first. It returns the TID, or -1 if there is no such bit. When the claim
+     * fills the word, the word is marked full in the summary.
+     */
+    private int claimIn( int word, int fromBit ) {
+        while ( true ) {
+            long value = words.get( word );
+            long free = ~value & ( FULL << fromBit );
+            if ( free == 0 ) {
+                if ( value == FULL ) setFull( word );
+                return -1;
+            }
+            long bit = Long.lowestOneBit( free );
+            if ( words.compareAndSet( word, value, value | bit ) ) {
+                if ( ( value | bit ) == FULL ) setFull( word );
+                int tid = ( word << 6 ) + Long.numberOfTrailingZeros( bit );
+                nextId.set( ( tid + 1 < capacity ) ? tid + 1 : 0 );
+                return tid;
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // findWord( int from )
+    /*
+     * SUMMARY
+     * This function returns the first word at or after from, wrapping around,
+     * that the summary does not mark as full, or -1 if they all are.
+     */
+    private int findWord( int from ) {
+        int wordCount = words.length( );
+        int summaryCount = full.length( );
+        int s = from >>> 6;
+        long mask = FULL << ( from & 63 );
+        for ( int i = 0; i <= summaryCount; i++ ) {
+            long notFull = ~full.get( s ) & mask;
+            while ( notFull != 0 ) {
+                int word = ( s << 6 ) + Long.numberOfTrailingZeros( notFull );
+                if ( word < wordCount ) return word;
+                notFull &= notFull - 1;
+            }
+            s = ( s + 1 ) % summaryCount;
+            mask = FULL;
+        }
+        return -1;
+    }
+
+    // -------------------------------------------------------------------------
+    // setFull( int word ), clearFull( int word )
+    /*
+     * SUMMARY
+     * These functions maintain the summary bitmap. After marking a word full,
+     * setFull( ) reads the word again and undoes the mark if a release slipped
+     * in between, so the summary never hides a free TID for long.
+     */
+    private void setFull( int word ) {
+        updateFull( word, true );
+        if ( words.get( word ) != FULL ) clearFull( word );
+    }
+
+    private void clearFull( int word ) {
+        updateFull( word, false );
+    }
+
+    private void updateFull( int word, boolean isFull ) {
+        int s = word >>> 6;
+        long bit = 1L << ( word & 63 );
+        while ( true ) {
+            long value = full.get( s );
+            long updated = isFull ? ( value | bit ) : ( value & ~bit );
+            if ( value == updated || full.compareAndSet( s, value, updated ) ) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+// --------------------------------TimerWheel.java------------------------------
+/*
+ * PURPOSE OF FILE
+ * This file implements the high resolution timer that the scheduler uses for
+ * quantum deadlines and that Kernel.SLEEP uses for sleeping processes. It is
+ * a hashed timing wheel: time is cut into ticks of tickNanos, and a timer
+ * that expires at tick T is kept in slot T % wheelSize. Adding a timer and
+ * firing it are both O(1), no matter how many timers are pending.
+ *
+ * THREADS
+ * Any thread may add a timer. New timers go through a lock-free queue that
+ * the timer thread drains, so the slots themselves are only touched by the
+ * timer thread and need no locks. The timer thread parks until the next
+ * non-empty slot is due, and it is unparked early only when a timer is added
+ * that expires before that. A timer never fires before its deadline. It
+ * fires at most one tick (plus the JVM's park latency) after it.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+public class TimerWheel implements Runnable {
+    public static final int DEFAULT_TICK = 100;         //microseconds
+    public static final int DEFAULT_WHEEL_SIZE = 1024;  //slots
+    private static final long AWAKE = -1;               //parkedUntil value
+
+    private final long tickNanos;
+    private final long startTime;                    //nanoTime of tick 0
+    private final ArrayList[] slots;                 //Timeouts by tick
+    private final ConcurrentLinkedQueue incoming;    //Timeouts to be slotted
+    private Thread thread = null;                    //The timer thread
+    private long tick = 0;                           //Next tick to process
+    private volatile long parkedUntil = AWAKE;       //Tick we are parked for
+
+    // -------------------------------------------------------------------------
+    // Timeout
+    /*
+     * SUMMARY
+     * A pending timer. When it expires it either runs its task on the timer
+     * thread, which must be short, or unparks the thread waiting for it.
+     */
+    public static class Timeout {
+        private final long deadline;                 //Tick to fire at
+        private final Runnable task;
+        private final Thread waiter;
+        private volatile boolean expired = false;
+        private volatile boolean cancelled = false;
+
+        private Timeout( long deadline, Runnable task, Thread waiter ) {
+            this.deadline = deadline;
+            this.task = task;
+            this.waiter = waiter;
+        }
+
+        public boolean isExpired( ) {
+            return expired;
+        }
+
+        public void cancel( ) {
+            cancelled = true;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // TimerWheel( int tickMicros, int wheelSize )
+    /*
+     * SUMMARY
+     * This is the constructor for the timer. The wheel size is rounded up to a
+     * power of two so a slot can be found with a mask.
+     */
+    public TimerWheel( int tickMicros, int wheelSize ) {
+        tickNanos = Math.max( tickMicros, 1 ) * 1000L;
+        int size = 1;
+        while ( size < wheelSize ) size <<= 1;
+        slots = new ArrayList[size];
+        for ( int i = 0; i < size; i++ ) {
+            slots[i] = new ArrayList( );
+        }
+        incoming = new ConcurrentLinkedQueue( );
+        startTime = System.nanoTime( );
+    }
+
+    // -------------------------------------------------------------------------
+    // start( )
+    /*
+     * SUMMARY
+     * This function is responsible for starting the timer thread. Timers added
+     * before it is called simply wait in the incoming queue.
+     */
+    public void start( ) {
+        thread = new Thread( this, "timer" );
+        thread.setDaemon( true );
+        thread.setPriority( Thread.MAX_PRIORITY );
+        thread.start( );
+    }
+
+    // -------------------------------------------------------------------------
+    // schedule( Runnable task, long delayNanos )
+    /*
+     * SUMMARY
+     * This function is responsible for running a task on the timer thread
+     * once delayNanos have passed. It returns the Timeout so it can be
+     * cancelled.
+     */
+    public Timeout schedule( Runnable task, long delayNanos ) {
+        return add( new Timeout( deadlineTick( delayNanos ), task, null ) );
+    }
+
+    // -------------------------------------------------------------------------
+    // sleepNanos( long delayNanos )
+    /*
+     * SUMMARY
+     * This function is responsible for parking the calling thread until
+     * delayNanos have passed. Unlike Thread.sleep( ), the delay can be less
+     * than a millisecond.
+     */
+    public void sleepNanos( long delayNanos ) {
+        if ( delayNanos <= 0 ) return;
+        Timeout timeout = unparkLater( Thread.currentThread( ), delayNanos );
+        while ( timeout.isExpired( ) == false ) {
+            LockSupport.park( this );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // unparkLater( Thread waiter, long delayNanos )
+    /*
+     * SUMMARY
+     * This function is responsible for unparking the waiter once delayNanos
+     * have passed. It is for waiters that may also be woken for another
+     * reason: they park until the returned Timeout is expired or their own
+     * condition holds, and cancel the Timeout if they leave early.
+     */
+    public Timeout unparkLater( Thread waiter, long delayNanos ) {
+        return add( new Timeout( deadlineTick( delayNanos ), null, waiter ) );
+    }
+
+    // -------------------------------------------------------------------------
+    // getTickNanos( )
+    /*
+     * SUMMARY
+     * This function returns the length of one tick in nanoseconds.
+     */
+    public long getTickNanos( ) {
+        return tickNanos;
+    }
+
+    // -------------------------------------------------------------------------
+    // add( Timeout timeout )
+    /*
+     * SUMMARY
+     * This function is responsible for handing a new Timeout to the timer
+     * thread. The timer thread sets parkedUntil before it re-checks incoming
+     * and parks, and here we check parkedUntil after offering, so the timer
+     * thread is never left parked past the new deadline.
+     */
+    private Timeout add( Timeout timeout ) {
+        incoming.offer( timeout );
+        if ( timeout.deadline < parkedUntil && thread != null ) {
+            LockSupport.unpark( thread );
+        }
+        return timeout;
+    }
+
+    // -------------------------------------------------------------------------
+    // deadlineTick( long delayNanos ), currentTick( )
+    /*
+     * SUMMARY
+     * Conversions between nanoTime and ticks. A deadline is rounded up to the
+     * next tick so that a timer can never fire early.
+     */
+    private long deadlineTick( long delayNanos ) {
+        long at = System.nanoTime( ) - startTime + Math.max( delayNanos, 0 );
+        return ( at + tickNanos - 1 ) / tickNanos;
+    }
+
+    private long currentTick( ) {
+        return ( System.nanoTime( ) - startTime ) / tickNanos;
+    }
+
+    // -------------------------------------------------------------------------
+    // run( )
+    /*
+     * SUMMARY
+     * The timer thread. It slots new Timeouts, fires every slot up to the
+     * current tick, and parks until the next non-empty slot is due. If it
+     * fell more than a whole wheel behind, it sweeps every slot once instead
+     * of visiting each missed tick.
+     */
+    public void run( ) {
+        while ( true ) {
+            drainIncoming( );
+            long now = currentTick( );
+            if ( now - tick >= slots.length ) {
+                for ( int i = 0; i < slots.length; i++ ) {
+                    expire( slots[i], now );
+                }
+                tick = now + 1;
+            } else {
+                for ( ; tick <= now; tick++ ) {
+                    expire( slots[( int )( tick & ( slots.length - 1 ) )],
+                            tick );
+                }
+            }
+
+            long next = nextBusyTick( );
+            parkedUntil = next;
+            if ( incoming.isEmpty( ) ) {
+                if ( next == Long.MAX_VALUE ) {
+                    LockSupport.park( this );
+                } else {
+                    long wait = startTime + next * tickNanos
+                        - System.nanoTime( );
+                    if ( wait > 0 ) LockSupport.parkNanos( this, wait );
+                }
+            }
+            parkedUntil = AWAKE;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // drainIncoming( )
+    /*
+     * SUMMARY
+     * This function is responsible for moving new Timeouts into their slots.
+     * A Timeout whose deadline has already passed goes into the slot of the
+     * next tick to be processed.
+     */
+    private void drainIncoming( ) {
+        Timeout timeout;
+        while ( ( timeout = ( Timeout )incoming.poll( ) ) != null ) {
+            if ( timeout.cancelled ) continue;
+            long at = Math.max( timeout.deadline, tick );
+            slots[( int )( at & ( slots.length - 1 ) )].add( timeout );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // expire( ArrayList slot, long limit )
+    /*
+     * SUMMARY
+     * This function is responsible for firing every Timeout in the slot whose
+     * deadline is at or before the given tick, and for dropping cancelled
+     * ones. Timeouts for a later turn of the wheel stay where they are.
+     */
+    private void expire( ArrayList slot, long limit ) {
+        for ( int i = slot.size( ) - 1; i >= 0; i-- ) {
+            Timeout timeout = ( Timeout )slot.get( i );
+            if ( timeout.cancelled || timeout.deadline <= limit ) {
+                int last = slot.size( ) - 1;
+                slot.set( i, slot.get( last ) );        //O(1) removal
+                slot.remove( last );
+                if ( timeout.cancelled == false ) fire( timeout );
+            }
+        }
+    }
+
+    private void fire( Timeout timeout ) {
+        timeout.expired = true;
+        if ( timeout.waiter != null ) {
+            LockSupport.unpark( timeout.waiter );
+        }
+        if ( timeout.task != null ) {
+            try {
+                timeout.task.run( );
+            } catch ( RuntimeException e ) {
+                System.err.println( "threadOS: timer task failed: " + e );
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // nextBusyTick( )
+    /*
+     * SUMMARY
+     * This function returns the first tick from now on whose slot is not
+     * empty, or Long.MAX_VALUE if the whole wheel is empty. The Timeouts in
+     * that slot may belong to a later turn, in which case the timer thread
+     * just wakes up once more per turn.
+     */
+    private long nextBusyTick( ) {
+        for ( int i = 0; i < slots.length; i++ ) {
+            int slot = ( int )( ( tick + i ) & ( slots.length - 1 ) );
+            if ( !slots[slot].isEmpty( ) ) {
+                return tick + i;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
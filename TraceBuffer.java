@@ -0,0 +1,107 @@
+// --------------------------------TraceBuffer.java-----------------------------
+/*
+ * PURPOSE OF FILE
+ * This file holds the scheduler's event trace. Each Cpu writes dispatch,
+ * pause, preemption, demotion and exit events into its own TraceBuffer, and
+ * the kernel writes the blocking system calls of user threads into one more.
+ * ChromeTrace.java turns the buffers into a file for chrome://tracing or
+ * Perfetto.
+ *
+ * A buffer is a fixed ring of records kept in parallel atomic arrays, so
+ * recording an event allocates nothing and takes no lock: a writer claims a
+ * sequence number with one atomic increment, fills the slot, and publishes
+ * it by storing the sequence number last. When the ring is full the oldest
+ * records are overwritten. A reader copies a slot and then checks that its
+ * sequence number did not change while copying, so a record being
+ * overwritten is skipped rather than read half old and half new.
+ */
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class TraceBuffer {
+    public static final int DEFAULT_CAPACITY = 1 << 16;  //records per buffer
+
+    // event types
+    public static final int DISPATCH = 1;            //TCB gets the Cpu
+    public static final int PAUSE    = 2;            //paused for a better TCB
+    public static final int PREEMPT  = 3;            //quantum is over
+    public static final int DEMOTE   = 4;            //moved down, arg = level
+    public static final int EXIT     = 5;            //found dead and reaped
+    public static final int BLOCK    = 6;            //enters a blocking call,
+    public static final int UNBLOCK  = 7;            //  arg = system call
+
+    private final String name;                       //Track name in the trace
+    private final int mask;
+    private final AtomicLongArray times;             //nanoTime of each record
+    private final AtomicLongArray events;            //type << 32 | tid
+    private final AtomicLongArray args;
+    private final AtomicLongArray published;         //Sequence + 1 when valid
+    private final AtomicLong next = new AtomicLong( );
+
+    // -------------------------------------------------------------------------
+    // TraceBuffer( String name, int capacity )
+    /*
+     * SUMMARY
+     * This is the constructor. The capacity is rounded up to a power of two
+     * so that a slot can be found with a mask.
+     */
+    public TraceBuffer( String name, int capacity ) {
+        int size = 1;
+        while ( size < capacity ) size <<= 1;
+        this.name = name;
+        mask = size - 1;
+        times = new AtomicLongArray( size );
+        events = new AtomicLongArray( size );
+        args = new AtomicLongArray( size );
+        published = new AtomicLongArray( size );
+    }
+
+    public String getName( ) {
+        return name;
+    }
+
+    // -------------------------------------------------------------------------
+    // record( int type, int tid, long arg )
+    /*
+     * SUMMARY
+     * This function is responsible for appending one event, stamped with the
+     * current VirtualClock.nanoTime( ). Any thread may call it. The stores
+     * are ordered (lazySet) but not fenced, which is what keeps recording
+     * cheap.
+     */
+    public void record( int type, int tid, long arg ) {
+        long seq = next.getAndIncrement( );
+        int slot = ( int )( seq & mask );
+        published.lazySet( slot, 0 );                //Slot is being rewritten
+        times.lazySet( slot, VirtualClock.nanoTime( ) );
+        events.lazySet( slot, ( ( long )type << 32 ) | ( tid & 0xffffffffL ) );
+        args.lazySet( slot, arg );
+        published.set( slot, seq + 1 );              //Publish the record
+    }
+
+    // -------------------------------------------------------------------------
+    // snapshot( )
+    /*
+     * SUMMARY
+     * This function returns the records still in the ring, oldest first, as
+     * long[] { time, type, tid, arg }. Records being written or overwritten
+     * while it runs are left out.
+     */
+    public List snapshot( ) {
+        long end = next.get( );
+        long start = Math.max( 0, end - ( mask + 1 ) );
+        List records = new ArrayList( );
+        for ( long seq = start; seq < end; seq++ ) {
+            int slot = ( int )( seq & mask );
+            if ( published.get( slot ) != seq + 1 ) continue;
+            long time = times.get( slot );
+            long event = events.get( slot );
+            long arg = args.get( slot );
+            if ( published.get( slot ) != seq + 1 ) continue;
+            records.add( new long[] { time, event >>> 32,
+                                      ( int )event, arg } );
+        }
+        return records;
+    }
+}
@@ -0,0 +1,109 @@
+// --------------------------------TwoQueuePolicy.java--------------------------
+/*
+ * PURPOSE OF FILE
+ * This is 2Q (Johnson and Shasha), as a CachePolicy. A block seen for the
+ * first time goes into A1in, a FIFO of about a quarter of the pages. When it
+ * leaves A1in its block id is remembered in A1out, a FIFO of ids only,
+ * about half as long as the cache. A block that misses while remembered in
+ * A1out has been used twice in a short while, so it goes into Am, an LRU of
+ * the pages that hold the hot blocks. Hits in A1in change nothing: several
+ * uses right after each other still count as one.
+ *
+ * A scan only passes through A1in and A1out, so it cannot push the hot
+ * blocks out of Am.
+ */
+
+import java.util.*;
+
+public class TwoQueuePolicy implements CachePolicy {
+    private LinkedHashSet a1in = new LinkedHashSet( );  //Pages, oldest first
+    private LinkedHashSet a1out = new LinkedHashSet( ); //Block ids, oldest 1st
+    private LinkedHashSet am = new LinkedHashSet( );    //Pages, LRU first
+    private int[] blockOf;                              //Block in each page
+    private int kin;                                    //Pages for A1in
+    private int kout;                                   //Ids in A1out
+
+    // -------------------------------------------------------------------------
+    // TwoQueuePolicy( int pages )
+    /*
+     * SUMMARY
+     * This is the constructor. The sizes of A1in and A1out are the ones the
+     * paper recommends: 25% and 50% of the pages.
+     */
+    public TwoQueuePolicy( int pages ) {
+        blockOf = new int[pages];
+        kin = Math.max( 1, pages / 4 );
+        kout = Math.max( 1, pages / 2 );
+    }
+
+    public String getName( ) {
+        return "2q";
+    }
+
+    public void hit( int page ) {
+        Integer key = Integer.valueOf( page );
+        if ( am.remove( key ) ) {
+            am.add( key );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // miss( int blockId, int freePage )
+    /*
+     * SUMMARY
+     * A block remembered in A1out goes into Am, and any other into A1in.
+     * A1in only takes a free page while it is under its share. Otherwise it
+     * recycles its own oldest page even while some are free, and the free
+     * pages wait for Am. Without that a cold cache would fill A1in to the
+     * brim, and a scan could then flush the hot blocks before they ever
+     * reached Am.
+     */
+    public int miss( int blockId, int freePage ) {
+        Integer id = Integer.valueOf( blockId );
+        int page;
+        if ( a1out.remove( id ) ) {
+            page = ( freePage >= 0 ) ? freePage : reclaim( );
+            am.add( Integer.valueOf( page ) );
+        } else {
+            page = ( freePage >= 0 && a1in.size( ) < kin ) ? freePage
+                : reclaim( );
+            a1in.add( Integer.valueOf( page ) );
+        }
+        blockOf[page] = blockId;
+        return page;
+    }
+
+    public void removed( int page ) {
+        Integer key = Integer.valueOf( page );
+        if ( !a1in.remove( key ) ) {
+            am.remove( key );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // reclaim( )
+    /*
+     * SUMMARY
+     * This function picks the victim: the oldest page of A1in if A1in has
+     * its share, remembering its block in A1out, or else the least recently
+     * used page of Am.
+     */
+    private int reclaim( ) {
+        if ( a1in.size( ) >= kin || am.isEmpty( ) ) {
+            int page = removeFirst( a1in );
+            a1out.add( Integer.valueOf( blockOf[page] ) );
+            if ( a1out.size( ) > kout ) {
+                removeFirst( a1out );
+            }
+            return page;
+        }
+        return removeFirst( am );
+    }
+
+    private static int removeFirst( LinkedHashSet set ) {
+        Iterator first = set.iterator( );
+        int value = ( ( Integer )first.next( ) ).intValue( );
+        first.remove( );
+        return value;
+    }
+}
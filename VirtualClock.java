@@ -0,0 +1,227 @@
+// --------------------------------VirtualClock.java----------------------------
+/*
+ * PURPOSE OF FILE
+ * This file implements the discrete-event clock of the virtual clock boot
+ * mode (-Dthreados.clock=virtual). In that mode the quanta of the Cpus,
+ * SysLib.sleep( ) and the disk's seek time are all kept on this clock
+ * instead of real time, so a workload runs as fast as the host allows and
+ * its timings come out the same on every run.
+ *
+ * HOW TIME MOVES
+ * The clock counts the participating threads that are active: the Cpus, the
+ * disk and the user threads. A thread stops being active when it waits on
+ * the clock (sleepNanos( ), awaitAdvance( )) or waits for something only
+ * another participant can give it (a run permit, work for an idle Cpu, a
+ * disk command). Whoever gives it that makes it active again with
+ * activate( ) before waking it, so the count never drops to zero while a
+ * wakeup is on its way. When the count does drop to zero, everybody is
+ * waiting and the clock jumps straight to the earliest pending wakeup.
+ *
+ * Wakeups are handed out one at a time, and the next one is only handed out
+ * once everybody is waiting again. Wakeups due at the same time go in order
+ * of their rank (CPU_RANK before DISK_RANK + unit before USER_RANK + tid),
+ * never in the order the threads happened to get there, so the run is
+ * reproducible.
+ */
+
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+public class VirtualClock {
+    public static final int CPU_RANK = 0;            //+ Cpu id
+    public static final int DISK_RANK = 1 << 20;    //+ Disk unit
+    public static final int USER_RANK = 1 << 21;     //+ tid
+    private static volatile VirtualClock clock = null;  //Null in real time
+
+    private long now = 0;                            //Virtual nanoseconds
+    private int active = 0;                          //Participants running
+    private long nextSeq = 0;
+    private final PriorityQueue pending;             //Wakeups by time, rank
+    private final List advanceWaiters = new ArrayList( );
+
+    // -------------------------------------------------------------------------
+    // Wakeup
+    /*
+     * SUMMARY
+     * A thread waiting on the clock. For awaitAdvance( ), wakeAt is the time
+     * it started waiting and it wakes at the first later time.
+     */
+    private static class Wakeup {
+        final long wakeAt;
+        final int rank;
+        final long seq;
+        final Thread thread;
+        volatile boolean fired = false;
+
+        Wakeup( long wakeAt, int rank, long seq, Thread thread ) {
+            this.wakeAt = wakeAt;
+            this.rank = rank;
+            this.seq = seq;
+            this.thread = thread;
+        }
+    }
+
+    private static final Comparator BY_TIME_AND_RANK = new Comparator( ) {
+        public int compare( Object a, Object b ) {
+            Wakeup x = ( Wakeup )a, y = ( Wakeup )b;
+            if ( x.wakeAt != y.wakeAt ) return ( x.wakeAt < y.wakeAt ) ? -1 : 1;
+            if ( x.rank != y.rank ) return ( x.rank < y.rank ) ? -1 : 1;
+            return ( x.seq < y.seq ) ? -1 : ( x.seq == y.seq ? 0 : 1 );
+        }
+    };
+
+    private VirtualClock( ) {
+        pending = new PriorityQueue( 64, BY_TIME_AND_RANK );
+    }
+
+    // -------------------------------------------------------------------------
+    // enable( ), get( ), nanoTime( )
+    /*
+     * SUMMARY
+     * enable( ) switches the kernel to virtual time; Kernel's BOOT case calls
+     * it before anything else is created. get( ) returns the clock, or null
+     * when running in real time. nanoTime( ) is what the scheduler uses
+     * instead of System.nanoTime( ), so that accounting, traces and the MLFQ
+     * boost follow whichever clock is in use.
+     */
+    public static synchronized void enable( ) {
+        if ( clock == null ) clock = new VirtualClock( );
+    }
+
+    public static VirtualClock get( ) {
+        return clock;
+    }
+
+    public static long nanoTime( ) {
+        VirtualClock c = clock;
+        return ( c != null ) ? c.now( ) : System.nanoTime( );
+    }
+
+    public synchronized long now( ) {
+        return now;
+    }
+
+    // -------------------------------------------------------------------------
+    // activate( ), deactivate( )
+    /*
+     * SUMMARY
+     * activate( ) counts one more running participant. It is called by the
+     * thread that is about to wake, start or hand work to that participant.
+     * deactivate( ) is called by a participant that is about to wait; the
+     * last one to do so moves the clock on.
+     */
+    public synchronized void activate( ) {
+        active++;
+    }
+
+    public synchronized void deactivate( ) {
+        if ( --active <= 0 ) {
+            active = 0;
+            advance( );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // sleepNanos( long nanos, int rank )
+    /*
+     * SUMMARY
+     * This function is responsible for parking the calling participant until
+     * the clock reaches now + nanos. A zero sleep returns once everybody else
+     * has gone quiet at the current time.
+     */
+    public void sleepNanos( long nanos, int rank ) {
+        Wakeup wakeup;
+        synchronized( this ) {
+            wakeup = new Wakeup( now + Math.max( nanos, 0 ), rank, nextSeq++,
+                                 Thread.currentThread( ) );
+            pending.add( wakeup );
+            deactivate( );
+        }
+        while ( wakeup.fired == false ) {
+            LockSupport.park( this );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // awaitAdvance( int rank )
+    /*
+     * SUMMARY
+     * This function is responsible for parking the caller until the clock has
+     * moved past the current time and every wakeup due at the new time has
+     * run. It replaces a busy wait on something another participant will do
+     * at some later time, such as the disk finishing a request.
+     */
+    public void awaitAdvance( int rank ) {
+        Wakeup wakeup;
+        synchronized( this ) {
+            wakeup = new Wakeup( now, rank, nextSeq++,
+                                 Thread.currentThread( ) );
+            advanceWaiters.add( wakeup );
+            deactivate( );
+        }
+        while ( wakeup.fired == false ) {
+            LockSupport.park( this );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // wakeEarly( Thread thread )
+    /*
+     * SUMMARY
+     * This function is responsible for cutting short the sleepNanos( ) of the
+     * given thread, such as a Cpu whose thread blocked before its quantum
+     * was over. The caller must be active itself. It does nothing if the
+     * thread is not sleeping on the clock.
+     */
+    public synchronized void wakeEarly( Thread thread ) {
+        Iterator i = pending.iterator( );
+        while ( i.hasNext( ) ) {
+            Wakeup wakeup = ( Wakeup )i.next( );
+            if ( wakeup.thread == thread ) {
+                i.remove( );
+                fire( wakeup );
+                return;
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // advance( )
+    /*
+     * SUMMARY
+     * This function is called with the lock held once nobody is active. It
+     * wakes exactly one waiter: first anything still due at the current
+     * time, then an awaitAdvance( ) waiter from an earlier time, and only
+     * then does the clock jump to the next pending wakeup. With nothing
+     * pending the clock stops until something outside, such as keyboard
+     * input, makes a participant active again.
+     */
+    private void advance( ) {
+        Wakeup head = ( Wakeup )pending.peek( );
+        if ( head != null && head.wakeAt <= now ) {
+            fire( ( Wakeup )pending.poll( ) );
+            return;
+        }
+        Wakeup waiter = null;
+        for ( int i = 0; i < advanceWaiters.size( ); i++ ) {
+            Wakeup w = ( Wakeup )advanceWaiters.get( i );
+            if ( w.wakeAt < now && ( waiter == null ||
+                     BY_TIME_AND_RANK.compare( w, waiter ) < 0 ) ) {
+                waiter = w;
+            }
+        }
+        if ( waiter != null ) {
+            advanceWaiters.remove( waiter );
+            fire( waiter );
+        } else if ( head != null ) {
+            now = head.wakeAt;
+            fire( ( Wakeup )pending.poll( ) );
+        }
+    }
+
+    private void fire( Wakeup wakeup ) {
+        active++;
+        wakeup.fired = true;
+        LockSupport.unpark( wakeup.thread );
+    }
+}